@@ -0,0 +1,253 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.DEFAULT_MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION;
+import static org.sagebionetworks.Constants.DEFAULT_MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER;
+import static org.sagebionetworks.Constants.EVALUATION_WEIGHTS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getIntegerProperty;
+import static org.sagebionetworks.Utils.getProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONObject;
+import org.sagebionetworks.evaluation.model.Submission;
+import org.sagebionetworks.evaluation.model.SubmissionBundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Decides which of the submissions waiting in the evaluation queues are started.
+ *
+ * Submissions are admitted while there are free slots under MAX_CONCURRENT_WORKFLOWS,
+ * subject to the optional per-evaluation and per-submitter limits.  The free slots are
+ * shared between the queues by weighted fair queuing:  the next submission is taken from
+ * the queue having the fewest running jobs relative to its weight.  Within a queue,
+ * submissions are taken in the order they were submitted.
+ */
+public class AdmissionScheduler {
+    private static Logger log = LoggerFactory.getLogger(AdmissionScheduler.class);
+
+    private static final double DEFAULT_EVALUATION_WEIGHT = 1.0;
+
+    public static class Decision {
+        private String evaluationId;
+        private String submitterId;
+        private SubmissionBundle submissionBundle;
+        private boolean admitted;
+        private String reason;
+
+        Decision(String evaluationId, String submitterId, SubmissionBundle submissionBundle, boolean admitted, String reason) {
+            this.evaluationId=evaluationId;
+            this.submitterId=submitterId;
+            this.submissionBundle=submissionBundle;
+            this.admitted=admitted;
+            this.reason=reason;
+        }
+
+        public String getEvaluationId() {
+            return evaluationId;
+        }
+
+        public String getSubmitterId() {
+            return submitterId;
+        }
+
+        public SubmissionBundle getSubmissionBundle() {
+            return submissionBundle;
+        }
+
+        public String getSubmissionId() {
+            return submissionBundle.getSubmission().getId();
+        }
+
+        public boolean isAdmitted() {
+            return admitted;
+        }
+
+        // why the submission was not admitted, or null if it was
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return "Decision [evaluationId=" + evaluationId + ", submissionId=" + getSubmissionId() + ", submitterId="
+                    + submitterId + ", admitted=" + admitted + ", reason=" + reason + "]";
+        }
+    }
+
+    // the number of running jobs for each evaluation and for each submitter
+    private Map<String,Integer> runningPerEvaluation = new HashMap<String,Integer>();
+    private Map<String,Integer> runningPerSubmitter = new HashMap<String,Integer>();
+
+    private List<Decision> lastDecisions = Collections.emptyList();
+
+    private static final Comparator<SubmissionBundle> SUBMISSION_ORDER = new Comparator<SubmissionBundle>() {
+        @Override
+        public int compare(SubmissionBundle o1, SubmissionBundle o2) {
+            int result = compareCreatedOn(o1.getSubmission().getCreatedOn(), o2.getSubmission().getCreatedOn());
+            if (result!=0) return result;
+            return compareIds(o1.getSubmission().getId(), o2.getSubmission().getId());
+        }
+    };
+
+    // earlier dates first, missing dates last
+    private static int compareCreatedOn(Date d1, Date d2) {
+        if (d1==null) return d2==null ? 0 : 1;
+        if (d2==null) return -1;
+        return d1.compareTo(d2);
+    }
+
+    private static int compareIds(String id1, String id2) {
+        try {
+            return Long.compare(Long.parseLong(id1), Long.parseLong(id2));
+        } catch (NumberFormatException e) {
+            return id1.compareTo(id2);
+        }
+    }
+
+    private static int getMaxConcurrentWorkflowsPerEvaluation() {
+        return getIntegerProperty(MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME, DEFAULT_MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION);
+    }
+
+    private static int getMaxConcurrentWorkflowsPerSubmitter() {
+        return getIntegerProperty(MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER_PROPERTY_NAME, DEFAULT_MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER);
+    }
+
+    /*
+     * EVALUATION_WEIGHTS is a JSON object mapping evaluation ID to weight, e.g. {"9614112":2, "9614113":1}
+     * Evaluations not mentioned have a weight of 1.
+     */
+    public static Map<String,Double> getEvaluationWeights() {
+        Map<String,Double> result = new HashMap<String,Double>();
+        String json = getProperty(EVALUATION_WEIGHTS_PROPERTY_NAME, false);
+        if (StringUtils.isEmpty(json)) return result;
+        JSONObject weights = new JSONObject(json);
+        for (Iterator<String> evaluationIdIterator=weights.keys(); evaluationIdIterator.hasNext();) {
+            String evaluationId = evaluationIdIterator.next();
+            double weight = weights.getDouble(evaluationId);
+            if (weight<=0) throw new IllegalStateException("Weight for evaluation "+evaluationId+" must be positive but found "+weight);
+            result.put(evaluationId, weight);
+        }
+        return result;
+    }
+
+    private static int getCount(Map<String,Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return count==null ? 0 : count;
+    }
+
+    private static void increment(Map<String,Integer> counts, String key) {
+        counts.put(key, getCount(counts, key)+1);
+    }
+
+    private static void decrement(Map<String,Integer> counts, String key) {
+        int count = getCount(counts, key);
+        if (count>1) counts.put(key, count-1); else counts.remove(key);
+    }
+
+    /*
+     * Record the submissions currently being processed, replacing what was previously recorded.
+     */
+    public synchronized void setRunningSubmissions(List<SubmissionBundle> runningSubmissions) {
+        runningPerEvaluation.clear();
+        runningPerSubmitter.clear();
+        for (SubmissionBundle sb : runningSubmissions) {
+            Submission submission = sb.getSubmission();
+            increment(runningPerEvaluation, submission.getEvaluationId());
+            increment(runningPerSubmitter, SubmissionUtils.getSubmittingUserOrTeamId(submission));
+        }
+    }
+
+    /*
+     * Record that the given submission is no longer being processed, or that it was admitted
+     * but could not be started, so that its evaluation and submitter need not wait for the
+     * next call to setRunningSubmissions()
+     */
+    public synchronized void submissionFinished(Submission submission) {
+        decrement(runningPerEvaluation, submission.getEvaluationId());
+        decrement(runningPerSubmitter, SubmissionUtils.getSubmittingUserOrTeamId(submission));
+    }
+
+    /*
+     * Decide which of the given waiting submissions to start.
+     *
+     * @param candidates the waiting submissions, keyed by evaluation ID
+     * @param availableSlots the number of jobs which may be started under MAX_CONCURRENT_WORKFLOWS
+     * @return a decision for every candidate.  The admitted submissions come first, in the order they should be started.
+     */
+    public synchronized List<Decision> schedule(Map<String,List<SubmissionBundle>> candidates, int availableSlots) {
+        int maxPerEvaluation = getMaxConcurrentWorkflowsPerEvaluation();
+        int maxPerSubmitter = getMaxConcurrentWorkflowsPerSubmitter();
+        Map<String,Double> weights = getEvaluationWeights();
+
+        Map<String,LinkedList<SubmissionBundle>> queues = new HashMap<String,LinkedList<SubmissionBundle>>();
+        for (Map.Entry<String,List<SubmissionBundle>> entry : candidates.entrySet()) {
+            if (entry.getValue()==null || entry.getValue().isEmpty()) continue;
+            LinkedList<SubmissionBundle> queue = new LinkedList<SubmissionBundle>(entry.getValue());
+            Collections.sort(queue, SUBMISSION_ORDER);
+            queues.put(entry.getKey(), queue);
+        }
+
+        List<Decision> admitted = new ArrayList<Decision>();
+        List<Decision> deferred = new ArrayList<Decision>();
+        while (true) {
+            // pick the queue which is furthest behind its fair share, breaking ties by the oldest submission
+            String evaluationId = null;
+            double lowestShare = 0;
+            for (Map.Entry<String,LinkedList<SubmissionBundle>> entry : queues.entrySet()) {
+                if (entry.getValue().isEmpty()) continue;
+                Double weight = weights.get(entry.getKey());
+                double share = getCount(runningPerEvaluation, entry.getKey())/(weight==null ? DEFAULT_EVALUATION_WEIGHT : weight);
+                if (evaluationId==null || share<lowestShare || (share==lowestShare &&
+                        SUBMISSION_ORDER.compare(entry.getValue().getFirst(), queues.get(evaluationId).getFirst())<0)) {
+                    evaluationId = entry.getKey();
+                    lowestShare = share;
+                }
+            }
+            if (evaluationId==null) break;
+
+            SubmissionBundle sb = queues.get(evaluationId).removeFirst();
+            String submitterId = SubmissionUtils.getSubmittingUserOrTeamId(sb.getSubmission());
+            String reason = null;
+            if (admitted.size()>=availableSlots) {
+                reason = "the maximum concurrent workflow count has been reached";
+            } else if (getCount(runningPerEvaluation, evaluationId)>=maxPerEvaluation) {
+                reason = "evaluation "+evaluationId+" has reached its limit of "+maxPerEvaluation+" concurrent workflows";
+            } else if (getCount(runningPerSubmitter, submitterId)>=maxPerSubmitter) {
+                reason = "submitter "+submitterId+" has reached their limit of "+maxPerSubmitter+" concurrent workflows";
+            }
+            if (reason==null) {
+                admitted.add(new Decision(evaluationId, submitterId, sb, true, null));
+                increment(runningPerEvaluation, evaluationId);
+                increment(runningPerSubmitter, submitterId);
+            } else {
+                log.info("Will not start submission "+sb.getSubmission().getId()+" at this time:  "+reason+".");
+                deferred.add(new Decision(evaluationId, submitterId, sb, false, reason));
+            }
+        }
+
+        List<Decision> result = new ArrayList<Decision>(admitted);
+        result.addAll(deferred);
+        lastDecisions = Collections.unmodifiableList(result);
+        return lastDecisions;
+    }
+
+    /*
+     * The decisions made by the most recent call to schedule()
+     */
+    public synchronized List<Decision> getLastDecisions() {
+        return lastDecisions;
+    }
+
+}
@@ -4,20 +4,20 @@ import static org.sagebionetworks.Utils.getProperty;
 import static org.sagebionetworks.Utils.getSynIdProperty;
 import static org.sagebionetworks.Utils.getTempDir;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.lang.StringUtils;
-import org.fuin.utils4j.Utils4J;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
@@ -35,23 +35,39 @@ import org.slf4j.LoggerFactory;
 public class Archiver {
     private SynapseClient synapse;
     private WorkflowManager workflowManager;
+    private FolderCache folderCache;
+    private volatile String myOwnPrincipalId = null;
 
     private static Logger log = LoggerFactory.getLogger(Archiver.class);
 
     public static final int MAX_FILE_NAME_LENGTH = 100;
 
+    private static final int BUFFER_SIZE = 65536;
+
     public Archiver(SynapseClient synapse, WorkflowManager workflowManager) {
+        this(synapse, workflowManager, new FolderCache());
+    }
+
+    public Archiver(SynapseClient synapse, WorkflowManager workflowManager, FolderCache folderCache) {
         this.synapse=synapse;
         this.workflowManager=workflowManager;
+        this.folderCache=folderCache;
+    }
+
+    private String getMyOwnPrincipalId() throws SynapseException {
+        if (myOwnPrincipalId==null) myOwnPrincipalId=synapse.getMyProfile().getOwnerId();
+        return myOwnPrincipalId;
     }
 
     /*
      * return false if already shared, true if newly shared
      */
     public boolean shareEntity(String entityId, Map<String,Set<ACCESS_TYPE>> principalAndPermissions) throws SynapseException {
+        if (isShared(entityId, principalAndPermissions.keySet())) return false;
         try {
             // have we already shared the folder?
             synapse.getACL(entityId);
+            setShared(entityId, principalAndPermissions.keySet());
             return false;
         } catch (SynapseNotFoundException e) {
             AccessControlList acl = new AccessControlList();
@@ -61,7 +77,7 @@ public class Archiver {
             {
                 ResourceAccess ra = new ResourceAccess();
                 ras.add(ra);
-                ra.setPrincipalId(Long.parseLong(synapse.getMyProfile().getOwnerId()));
+                ra.setPrincipalId(Long.parseLong(getMyOwnPrincipalId()));
                 ra.setAccessType(ModelConstants.ENTITY_ADMIN_ACCESS_PERMISSIONS);
             }
             for (String principalId : principalAndPermissions.keySet()) {
@@ -71,10 +87,23 @@ public class Archiver {
                 ra.setAccessType(principalAndPermissions.get(principalId));
             }
             synapse.createACL(acl);
+            setShared(entityId, principalAndPermissions.keySet());
             return true;
         }
     }
 
+    private boolean isShared(String entityId, Set<String> principalIds) {
+        if (principalIds.isEmpty()) return false;
+        for (String principalId : principalIds) {
+            if (!folderCache.isShared(entityId, principalId)) return false;
+        }
+        return true;
+    }
+
+    private void setShared(String entityId, Set<String> principalIds) {
+        for (String principalId : principalIds) folderCache.setShared(entityId, principalId);
+    }
+
     /**
      * Upload a file to Synapse
      *
@@ -108,70 +137,17 @@ public class Archiver {
         return fileEntity.getId();
     }
 
-    /*
-     * zip the given path, using the given file name prefix.
-     * @return the zipped file
-     */
-    private File zip(Path pathToArchive, String zipFilePrefix) throws IOException {
-        // make sure the file name is legal
-        final File directoryOrFileToArchive = pathToArchive.toFile();
-        String zipFileName = zipFilePrefix.replaceAll("[^a-zA-Z0-9-]", "_")+".zip";
-        // instead of zipping to directoryOrFileToArchive.getParentFile() which may or may not
-        // be on the same volume of directoryOrFileToArchive, we just zip to a known temp dir
-        File zipFile=new File(getTempDir(), zipFileName);
-        if (directoryOrFileToArchive.isDirectory()) {
-            Utils4J.zipDir(directoryOrFileToArchive, null, zipFile);
-        } else if (directoryOrFileToArchive.isFile()) {
-            Utils4J.zipDir(directoryOrFileToArchive.getParentFile(),
-                    new FileFilter() {
-                public boolean accept(File pathname) {
-                    return pathname.equals(directoryOrFileToArchive);
-                }},
-                    null, zipFile);
-        } else {
-            throw new RuntimeException(directoryOrFileToArchive.getAbsolutePath()+" is neither a directory nor a file");
-        }
-        return zipFile;
-    }
-
-    /**
-     * Zip a file or directory and upload to a given Synapse folder using a given
-     * Synapse file name (prefix). If a file has already been uploaded under the
-     * target folder+file name, then upload as a *revision* of the Synapse file.
-     * If the zip file exceeded the submitter's daily OR round limit then throw an exception.
-     *
-     * @param pathToArchive directory to archive
-     * @param zipFilePrefix name of zip file to create from directory
-     * @param submissionFolder submission folder in Synapse
-     * @return the ID of the created entity
-     * @throws IOException
-     * @throws SynapseException
-     * @throws InterruptedException
-     */
-    public String archiveLogsToSynapse(
-            Path pathToArchive,
-            String zipFilePrefix,
-            Folder submissionFolder) throws Throwable {
-        log.info("Will archive "+pathToArchive.toFile().getAbsolutePath());
-
-        zipFilePrefix = Utils.trunc(zipFilePrefix, MAX_FILE_NAME_LENGTH-4);
-
-        final File zipFile = zip(pathToArchive, zipFilePrefix);
-
-        String fileEntityId = uploadToSynapse(zipFile, submissionFolder.getId());
-        log.info("Archived "+pathToArchive.toFile().getAbsolutePath()+" to "+fileEntityId);
-
-        zipFile.delete();
-        return fileEntityId;
-    }
-
-
     public Folder getOrCreateFolder(String name, String parentId) throws SynapseException {
         if (StringUtils.isEmpty(name)) throw new IllegalArgumentException("name is required.");
         if (StringUtils.isEmpty(parentId)) throw new IllegalArgumentException("parentId is required.");
         Folder folder = new Folder();
         folder.setParentId(parentId);
         folder.setName(name);
+        String cachedFolderId = folderCache.getFolderId(parentId, name);
+        if (cachedFolderId!=null) {
+            folder.setId(cachedFolderId);
+            return folder;
+        }
         try {
             folder = synapse.createEntity(folder);
         } catch (SynapseServerException cue) {
@@ -181,6 +157,7 @@ public class Archiver {
             folder = getFolder(name, parentId);
             if (folder==null) throw new IllegalStateException("Can neither create nor find folder named "+name+" with parent "+parentId, cue);
         }
+        folderCache.putFolderId(parentId, name, folder.getId());
         return folder;
     }
 
@@ -253,33 +230,100 @@ public class Archiver {
     }
 
     /*
-     * returns the tail of the uploaded logs
+     * What was uploaded by uploadLogs()
      */
-    public String uploadLogs(WorkflowJob workflowJob,
+    public static class LogUpload {
+        private final String tail;
+        private final long size;
+        private final boolean truncated;
+
+        public LogUpload(String tail, long size, boolean truncated) {
+            this.tail=tail;
+            this.size=size;
+            this.truncated=truncated;
+        }
+
+        /*
+         * the tail of the log, as requested
+         */
+        public String getTail() {return tail;}
+
+        /*
+         * the size of the whole log, including any part not uploaded
+         */
+        public long getSize() {return size;}
+
+        /*
+         * true if the log exceeded the quota, so that only its head and tail were uploaded
+         */
+        public boolean isTruncated() {return truncated;}
+    }
+
+    /*
+     * Upload the job's log, returning null if there is none.  If 'logQuotaBytes' is not null
+     * and the log is larger, then only its first 'logQuotaHeadBytes' and the rest of the quota
+     * from its end are uploaded.
+     */
+    public LogUpload uploadLogs(WorkflowJob workflowJob,
             String submissionId,
             String submittingUserOrTeamId,
             String nameSuffix, // e.g., "_logs"
             Integer maxTailLengthInCharacters,
-            Folder submissionFolder) throws Throwable {
+            Folder submissionFolder,
+            Long logQuotaBytes,
+            long logQuotaHeadBytes) throws Throwable {
         String filePrefix = submissionId+nameSuffix;
         filePrefix  = filePrefix.replaceAll("[^a-zA-Z0-9-]", "_");
-        // get the logs from the container
-        Path logFile = FileSystems.getDefault().getPath(getTempDir().getAbsolutePath(), filePrefix+".txt");
-        String logTail=workflowManager.getWorkflowLog(workflowJob, logFile, maxTailLengthInCharacters);
-        assert Files.exists(logFile);
-
-        // if no output, just return
-        if (Files.size(logFile)==0) {
-            log.info("logFile "+logFile+" has no content.  Nothing to upload.");
-            return null;
+        long headBytes = Long.MAX_VALUE;
+        long tailBytes = 0L;
+        if (logQuotaBytes!=null) {
+            headBytes = Math.max(0L, Math.min(logQuotaHeadBytes, logQuotaBytes));
+            tailBytes = Math.max(0L, logQuotaBytes-headBytes);
         }
+        // the logs are compressed as they are read from the container, straight into the archive
+        // to be uploaded, rather than being written out in full and then zipped into a second file
+        File zipFile = new File(getTempDir(), Utils.trunc(filePrefix, MAX_FILE_NAME_LENGTH-4)+".zip");
+        try {
+            String logTail;
+            HeadTailOutputStream headTail;
+            try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile), BUFFER_SIZE))) {
+                zos.putNextEntry(new ZipEntry(filePrefix+".txt"));
+                headTail = new HeadTailOutputStream(zos, headBytes, tailBytes);
+                try {
+                    // the log is written a line at a time, so is buffered ahead of the compressor
+                    OutputStream os = new BufferedOutputStream(headTail, BUFFER_SIZE);
+                    logTail=workflowManager.getWorkflowLog(workflowJob, os, maxTailLengthInCharacters);
+                    os.flush();
+                } finally {
+                    headTail.finish();
+                }
+                zos.closeEntry();
+            }
+            long logSize = headTail.getCount();
 
-        log.info("Found "+Files.size(logFile)+" bytes to log.");
+            // if no output, just return
+            if (logSize==0) {
+                log.info("Log for "+submissionId+" has no content.  Nothing to upload.");
+                return null;
+            }
 
-        archiveLogsToSynapse(logFile, filePrefix, submissionFolder);
+            log.info("Found "+logSize+" bytes to log.");
+            if (headTail.isTruncated()) {
+                log.warn("Log for "+submissionId+" exceeds the quota of "+logQuotaBytes+" bytes.  Will upload just its head and tail.");
+            }
 
-        logFile.toFile().delete();
+            try {
+                String fileEntityId = uploadToSynapse(zipFile, submissionFolder.getId());
+                log.info("Archived "+zipFile.getName()+" to "+fileEntityId);
+            } catch (SynapseNotFoundException e) {
+                // the folder may have been deleted since we cached it
+                folderCache.removeFolder(submissionFolder.getId());
+                throw e;
+            }
 
-        return logTail;
+            return new LogUpload(logTail, logSize, headTail.isTruncated());
+        } finally {
+            zipFile.delete();
+        }
     }
 }
@@ -0,0 +1,100 @@
+package org.sagebionetworks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.evaluation.model.Submission;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+
+/*
+ * Makes calls to Synapse on a dedicated pool of I/O threads, so that a caller can make several
+ * calls at once rather than waiting for each in turn.  The calls go through the given client, so
+ * they are retried and rate limited as usual.  A retry deadline set on the calling thread (see
+ * ExponentialBackoffRunner.setDeadline()) applies to the calls it makes here.
+ */
+public class AsyncSynapseClient {
+
+    /*
+     * A call to make on the Synapse client
+     */
+    public interface SynapseCall<T> {
+        T call(SynapseClient synapse) throws SynapseException;
+    }
+
+    private SynapseClient synapse;
+    private Executor executor;
+
+    public AsyncSynapseClient(SynapseClient synapse, Executor executor) {
+        this.synapse=synapse;
+        this.executor=executor;
+    }
+
+    public <T> CompletableFuture<T> call(final SynapseCall<T> call) {
+        final Long deadline = ExponentialBackoffRunner.getDeadline();
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ExponentialBackoffRunner.setDeadline(deadline);
+                try {
+                    result.complete(call.call(synapse));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    ExponentialBackoffRunner.setDeadline(null);
+                }
+            }
+        });
+        return result;
+    }
+
+    public CompletableFuture<Submission> getSubmission(final String submissionId) {
+        return call(new SynapseCall<Submission>() {
+            @Override
+            public Submission call(SynapseClient synapse) throws SynapseException {
+                return synapse.getSubmission(submissionId);
+            }
+        });
+    }
+
+    public CompletableFuture<SubmissionStatus> getSubmissionStatus(final String submissionId) {
+        return call(new SynapseCall<SubmissionStatus>() {
+            @Override
+            public SubmissionStatus call(SynapseClient synapse) throws SynapseException {
+                return synapse.getSubmissionStatus(submissionId);
+            }
+        });
+    }
+
+    public CompletableFuture<SubmissionStatus> updateSubmissionStatus(final SubmissionStatus submissionStatus) {
+        return call(new SynapseCall<SubmissionStatus>() {
+            @Override
+            public SubmissionStatus call(SynapseClient synapse) throws SynapseException {
+                return synapse.updateSubmissionStatus(submissionStatus);
+            }
+        });
+    }
+
+    /*
+     * Wait for the result of a call, throwing the exception it failed with, if any
+     */
+    public static <T> T get(CompletableFuture<T> future) throws SynapseException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException|CompletionException e) {
+            Throwable cause = e.getCause()==null ? e : e.getCause();
+            if (cause instanceof SynapseException) throw (SynapseException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+}
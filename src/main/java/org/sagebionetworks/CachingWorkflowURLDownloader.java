@@ -0,0 +1,236 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.DEFAULT_WORKFLOW_TEMPLATE_CACHE_SECONDS;
+import static org.sagebionetworks.Constants.WORKFLOW_TEMPLATE_CACHE_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getLongProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A WorkflowURLDownloader which keeps the templates it downloads, so that the jobs
+ * started from the same template don't each download it again.
+ *
+ * Downloaded templates are stored under the hash of their content, so a template
+ * which is re-downloaded (after its cache period expires) but has not changed is stored
+ * just once.  Concurrent requests for the same template share a single download.
+ * Each job gets its own copy of the template, since the job may write into its folder.
+ * Once no cached template refers to some stored content, e.g. after a template has
+ * changed, that content is deleted.
+ */
+public class CachingWorkflowURLDownloader extends WorkflowURLDownloader {
+    private static Logger log = LoggerFactory.getLogger(CachingWorkflowURLDownloader.class);
+
+    private static final String CACHE_DIR_NAME = "workflow_template_cache";
+
+    private File cacheRoot;
+
+    // map from URL and entry point to the (possibly in progress) download
+    private ConcurrentMap<String, FutureTask<CachedTemplate>> templates =
+            new ConcurrentHashMap<String, FutureTask<CachedTemplate>>();
+
+    // the number of cached templates referring to each content directory, guarded by 'this'
+    private Map<File, Integer> contentReferences = new HashMap<File, Integer>();
+
+    // content is copied under the read lock and deleted under the write lock
+    private ReadWriteLock contentLock = new ReentrantReadWriteLock();
+
+    private static class CachedTemplate {
+        File contentDir;
+        long downloadedOn;
+
+        CachedTemplate(File contentDir, long downloadedOn) {
+            this.contentDir=contentDir;
+            this.downloadedOn=downloadedOn;
+        }
+    }
+
+    public CachingWorkflowURLDownloader(URLFactory urlFactory, File cacheRoot) {
+        super(urlFactory);
+        init(cacheRoot);
+    }
+
+    public CachingWorkflowURLDownloader() {
+        super();
+        init(new File(Utils.getTempDir(), CACHE_DIR_NAME));
+    }
+
+    private void init(File cacheRoot) {
+        this.cacheRoot=cacheRoot;
+        // start afresh each time the Orchestrator starts
+        if (cacheRoot.exists()) Utils.deleteFolderContent(cacheRoot);
+        cacheRoot.mkdirs();
+    }
+
+    private static long getCachePeriodMillis() {
+        return getLongProperty(WORKFLOW_TEMPLATE_CACHE_SECONDS_PROPERTY_NAME, DEFAULT_WORKFLOW_TEMPLATE_CACHE_SECONDS)*1000L;
+    }
+
+    @Override
+    public void downloadWorkflowFromURL(String workflowUrlString, String entrypoint, File targetDir) throws IOException {
+        while (true) {
+            CachedTemplate template = getTemplate(workflowUrlString, entrypoint);
+            contentLock.readLock().lock();
+            try {
+                // the content is gone if the template has expired since, in which case get it again
+                if (template.contentDir.exists()) {
+                    FileUtils.copyDirectory(template.contentDir, targetDir);
+                    return;
+                }
+            } finally {
+                contentLock.readLock().unlock();
+            }
+        }
+    }
+
+    private CachedTemplate getTemplate(final String workflowUrlString, final String entrypoint) throws IOException {
+        String key = workflowUrlString+"\n"+entrypoint;
+        // the content of expired templates is released only once the new download is done, so that unchanged content is kept
+        List<File> expiredContent = new ArrayList<File>();
+        try {
+            return getTemplate(key, workflowUrlString, entrypoint, expiredContent);
+        } finally {
+            for (File contentDir : expiredContent) release(contentDir);
+        }
+    }
+
+    private CachedTemplate getTemplate(String key, final String workflowUrlString, final String entrypoint, List<File> expiredContent) throws IOException {
+        while (true) {
+            FutureTask<CachedTemplate> download = templates.get(key);
+            boolean downloadedHere = false;
+            if (download==null) {
+                FutureTask<CachedTemplate> newDownload = new FutureTask<CachedTemplate>(new Callable<CachedTemplate>() {
+                    @Override
+                    public CachedTemplate call() throws Exception {
+                        return download(workflowUrlString, entrypoint);
+                    }
+                });
+                download = templates.putIfAbsent(key, newDownload);
+                if (download==null) {
+                    download = newDownload;
+                    download.run();
+                    downloadedHere = true;
+                }
+            }
+            CachedTemplate template;
+            try {
+                template = download.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                // don't keep failures.  The next request will try again
+                templates.remove(key, download);
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException)cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                throw new RuntimeException(cause);
+            }
+            if (downloadedHere || template.downloadedOn+getCachePeriodMillis()>System.currentTimeMillis()) {
+                return template;
+            }
+            // expired.  Drop it and download again
+            if (templates.remove(key, download)) expiredContent.add(template.contentDir);
+        }
+    }
+
+    private CachedTemplate download(String workflowUrlString, String entrypoint) throws IOException {
+        File stagingDir = new File(cacheRoot, "download-"+UUID.randomUUID());
+        if (!stagingDir.mkdir()) throw new RuntimeException("Unable to create "+stagingDir.getAbsolutePath());
+        try {
+            super.downloadWorkflowFromURL(workflowUrlString, entrypoint, stagingDir);
+            File contentDir = new File(cacheRoot, hashDirectoryContent(stagingDir));
+            synchronized (this) {
+                if (contentDir.exists()) {
+                    log.info("Template downloaded from "+workflowUrlString+" is unchanged.");
+                } else if (!stagingDir.renameTo(contentDir)) {
+                    throw new RuntimeException("Unable to rename "+stagingDir.getAbsolutePath()+" to "+contentDir.getAbsolutePath());
+                }
+                Integer references = contentReferences.get(contentDir);
+                contentReferences.put(contentDir, references==null ? 1 : references+1);
+            }
+            return new CachedTemplate(contentDir, System.currentTimeMillis());
+        } finally {
+            if (stagingDir.exists()) {
+                Utils.deleteFolderContent(stagingDir);
+                stagingDir.delete();
+            }
+        }
+    }
+
+    /*
+     * Record that a cached template no longer refers to the given content, deleting the
+     * content if no other does
+     */
+    private synchronized void release(File contentDir) {
+        Integer references = contentReferences.get(contentDir);
+        if (references!=null && references>1) {
+            contentReferences.put(contentDir, references-1);
+            return;
+        }
+        contentReferences.remove(contentDir);
+        contentLock.writeLock().lock();
+        try {
+            Utils.deleteFolderContent(contentDir);
+            contentDir.delete();
+        } finally {
+            contentLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * SHA-256 digest of the relative paths and content of all the files under the given directory
+     */
+    public static String hashDirectoryContent(File dir) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        Path root = dir.toPath();
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toCollection(ArrayList::new));
+        }
+        Collections.sort(files);
+        byte[] buffer = new byte[8192];
+        for (Path file : files) {
+            digest.update(root.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+            try (InputStream is = Files.newInputStream(file)) {
+                int n;
+                while ((n=is.read(buffer))>=0) digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+}
@@ -109,5 +109,139 @@ public class Constants {
 
     public static final String ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME = "ACCEPT_NEW_SUBMISSIONS";
 
+    // the number of worker threads used to check and update running workflow jobs in parallel
+    public static final String WORKER_THREAD_COUNT_PROPERTY_NAME = "WORKER_THREAD_COUNT";
+    public static final int DEFAULT_WORKER_THREAD_COUNT = 4;
+
+    // the maximum time a single pass over the running workflow jobs may take, after which
+    // unfinished updates are cancelled and left for the next pass
+    public static final String UPDATE_PASS_TIMEOUT_SECONDS_PROPERTY_NAME = "UPDATE_PASS_TIMEOUT_SECONDS";
+    public static final long DEFAULT_UPDATE_PASS_TIMEOUT_SECONDS = 30*60L;
+
+    // if true, running workflow jobs are updated when the workflow system reports that they have
+    // stopped, rather than on every pass.  A full pass is still made periodically to reconcile.
+    public static final String EVENT_DRIVEN_UPDATES_PROPERTY_NAME = "EVENT_DRIVEN_UPDATES";
+    public static final String RECONCILIATION_PERIOD_SECONDS_PROPERTY_NAME = "RECONCILIATION_PERIOD_SECONDS";
+    public static final long DEFAULT_RECONCILIATION_PERIOD_SECONDS = 5*60L;
+
+    // while subscribed to Docker events, how often to refresh the cached list of workflow containers
+    public static final String CONTAINER_CACHE_REFRESH_SECONDS_PROPERTY_NAME = "CONTAINER_CACHE_REFRESH_SECONDS";
+    public static final long DEFAULT_CONTAINER_CACHE_REFRESH_SECONDS = 5*60L;
+
+    // how long a downloaded workflow template is reused before it is downloaded again
+    public static final String WORKFLOW_TEMPLATE_CACHE_SECONDS_PROPERTY_NAME = "WORKFLOW_TEMPLATE_CACHE_SECONDS";
+    public static final long DEFAULT_WORKFLOW_TEMPLATE_CACHE_SECONDS = 10*60L;
+
+    // optional limits on the running workflows for any one evaluation queue or submitter
+    public static final String MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME = "MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION";
+    public static final int DEFAULT_MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION = Integer.MAX_VALUE;
+    public static final String MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER_PROPERTY_NAME = "MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER";
+    public static final int DEFAULT_MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER = Integer.MAX_VALUE;
+
+    // JSON map from evaluation ID to its share of the workflow slots
+    public static final String EVALUATION_WEIGHTS_PROPERTY_NAME = "EVALUATION_WEIGHTS";
+
+    // if true, new workflows are started only when the Docker host has room for them
+    public static final String HOST_CAPACITY_ADMISSION_PROPERTY_NAME = "HOST_CAPACITY_ADMISSION";
+    // the percentage of the host's CPU, memory and disk to keep free
+    public static final String HOST_CAPACITY_HEADROOM_PERCENT_PROPERTY_NAME = "HOST_CAPACITY_HEADROOM_PERCENT";
+    public static final int DEFAULT_HOST_CAPACITY_HEADROOM_PERCENT = 20;
+    // the resources we expect a new workflow to need
+    public static final String WORKFLOW_CPU_ESTIMATE_PROPERTY_NAME = "WORKFLOW_CPU_ESTIMATE";
+    public static final double DEFAULT_WORKFLOW_CPU_ESTIMATE = 1.0;
+    public static final String WORKFLOW_MEMORY_ESTIMATE_MB_PROPERTY_NAME = "WORKFLOW_MEMORY_ESTIMATE_MB";
+    public static final long DEFAULT_WORKFLOW_MEMORY_ESTIMATE_MB = 4096L;
+    public static final String WORKFLOW_DISK_ESTIMATE_MB_PROPERTY_NAME = "WORKFLOW_DISK_ESTIMATE_MB";
+    public static final long DEFAULT_WORKFLOW_DISK_ESTIMATE_MB = 10240L;
+    // the number of running workflow containers whose resource usage is sampled at once
+    public static final String CONTAINER_STATISTICS_THREAD_COUNT_PROPERTY_NAME = "CONTAINER_STATISTICS_THREAD_COUNT";
+    public static final int DEFAULT_CONTAINER_STATISTICS_THREAD_COUNT = 4;
+
+    // identifies this Orchestrator when several share the same evaluation queues
+    public static final String ORCHESTRATOR_INSTANCE_ID_PROPERTY_NAME = "ORCHESTRATOR_INSTANCE_ID";
+    // how long an instance's claim on a submission lasts unless renewed
+    public static final String SUBMISSION_LEASE_SECONDS_PROPERTY_NAME = "SUBMISSION_LEASE_SECONDS";
+    public static final long DEFAULT_SUBMISSION_LEASE_SECONDS = 60*60L;
+
+    // directory in which to keep a local journal of the running submissions
+    public static final String STATE_JOURNAL_DIR_PROPERTY_NAME = "STATE_JOURNAL_DIR";
+
+    // list just the submission statuses, retrieving each submission only when it first appears
+    public static final String INCREMENTAL_SUBMISSION_DISCOVERY_PROPERTY_NAME = "INCREMENTAL_SUBMISSION_DISCOVERY";
+    // how often to list the full submissions nonetheless
+    public static final String FULL_SUBMISSION_SWEEP_SECONDS_PROPERTY_NAME = "FULL_SUBMISSION_SWEEP_SECONDS";
+    public static final long DEFAULT_FULL_SUBMISSION_SWEEP_SECONDS = 10*60L;
+
+    // the number of submissions to retrieve in each request when listing an evaluation queue
+    public static final String SUBMISSION_PAGE_SIZE_PROPERTY_NAME = "SUBMISSION_PAGE_SIZE";
+    public static final int DEFAULT_SUBMISSION_PAGE_SIZE = 10;
+    // the number of pages of a listing retrieved in parallel
+    public static final String SUBMISSION_PAGE_FETCH_THREAD_COUNT_PROPERTY_NAME = "SUBMISSION_PAGE_FETCH_THREAD_COUNT";
+    public static final int DEFAULT_SUBMISSION_PAGE_FETCH_THREAD_COUNT = 4;
+
+    // write the submission statuses updated in a pass together, a batch per evaluation
+    public static final String BATCH_SUBMISSION_STATUS_UPDATES_PROPERTY_NAME = "BATCH_SUBMISSION_STATUS_UPDATES";
+
+    // how often to write the heartbeat of a running job when nothing else has changed.  0 means every check.
+    public static final String HEARTBEAT_INTERVAL_SECONDS_PROPERTY_NAME = "HEARTBEAT_INTERVAL_SECONDS";
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_SECONDS = 0L;
+    // the change in progress (in percentage points) which is written without waiting for the heartbeat interval
+    public static final String PROGRESS_WRITE_THRESHOLD_PROPERTY_NAME = "PROGRESS_WRITE_THRESHOLD";
+    public static final double DEFAULT_PROGRESS_WRITE_THRESHOLD = 5.0;
+
+    // the number of submitter names to cache, and for how long
+    public static final String SUBMITTER_CACHE_SIZE_PROPERTY_NAME = "SUBMITTER_CACHE_SIZE";
+    public static final int DEFAULT_SUBMITTER_CACHE_SIZE = 1000;
+    public static final String SUBMITTER_CACHE_TTL_SECONDS_PROPERTY_NAME = "SUBMITTER_CACHE_TTL_SECONDS";
+    public static final long DEFAULT_SUBMITTER_CACHE_TTL_SECONDS = 60*60L;
+
+    // the most calls per second to make to Synapse, by kind of call.  0 means no limit.
+    public static final String SYNAPSE_READ_CALLS_PER_SECOND_PROPERTY_NAME = "SYNAPSE_READ_CALLS_PER_SECOND";
+    public static final double DEFAULT_SYNAPSE_READ_CALLS_PER_SECOND = 10d;
+    public static final String SYNAPSE_WRITE_CALLS_PER_SECOND_PROPERTY_NAME = "SYNAPSE_WRITE_CALLS_PER_SECOND";
+    public static final double DEFAULT_SYNAPSE_WRITE_CALLS_PER_SECOND = 5d;
+    public static final String SYNAPSE_UPLOAD_CALLS_PER_SECOND_PROPERTY_NAME = "SYNAPSE_UPLOAD_CALLS_PER_SECOND";
+    public static final double DEFAULT_SYNAPSE_UPLOAD_CALLS_PER_SECOND = 2d;
+    public static final String SYNAPSE_MESSAGE_CALLS_PER_SECOND_PROPERTY_NAME = "SYNAPSE_MESSAGE_CALLS_PER_SECOND";
+    public static final double DEFAULT_SYNAPSE_MESSAGE_CALLS_PER_SECOND = 1d;
+
+    // the longest time, from the first attempt, over which an operation is retried
+    public static final String RETRY_TIME_LIMIT_SECONDS_PROPERTY_NAME = "RETRY_TIME_LIMIT_SECONDS";
+    public static final long DEFAULT_RETRY_TIME_LIMIT_SECONDS = 15*60L;
+
+    // the number of threads making asynchronous calls to Synapse
+    public static final String SYNAPSE_IO_THREAD_COUNT_PROPERTY_NAME = "SYNAPSE_IO_THREAD_COUNT";
+    public static final int DEFAULT_SYNAPSE_IO_THREAD_COUNT = 8;
+
+    // queue notifications to be sent in the background, in digests
+    public static final String NOTIFICATION_OUTBOX_PROPERTY_NAME = "NOTIFICATION_OUTBOX";
+    // how often to send the queued notifications
+    public static final String NOTIFICATION_DIGEST_SECONDS_PROPERTY_NAME = "NOTIFICATION_DIGEST_SECONDS";
+    public static final long DEFAULT_NOTIFICATION_DIGEST_SECONDS = 60L;
+    // the directory holding the queued notifications
+    public static final String NOTIFICATION_OUTBOX_DIR_PROPERTY_NAME = "NOTIFICATION_OUTBOX_DIR";
+    // the directory, within STATE_JOURNAL_DIR, holding the queued notifications if NOTIFICATION_OUTBOX_DIR is not set
+    public static final String NOTIFICATION_OUTBOX_DIR_NAME = "outbox";
+
+    // how long to keep rarely changing Synapse metadata, e.g. evaluation queues and workflow templates
+    public static final String METADATA_CACHE_TTL_SECONDS_PROPERTY_NAME = "METADATA_CACHE_TTL_SECONDS";
+    public static final long DEFAULT_METADATA_CACHE_TTL_SECONDS = 5*60L;
+
+    // collect from Docker only the log output produced since the last collection
+    public static final String INCREMENTAL_LOG_COLLECTION_PROPERTY_NAME = "INCREMENTAL_LOG_COLLECTION";
+    // the directory, within the shared directory, holding the logs collected so far
+    public static final String LOG_DIR_NAME = "logs";
+
+    // the longest to wait for a Docker log, exec or attach stream to complete
+    public static final String DOCKER_STREAM_TIMEOUT_SECONDS_PROPERTY_NAME = "DOCKER_STREAM_TIMEOUT_SECONDS";
+    public static final long DEFAULT_DOCKER_STREAM_TIMEOUT_SECONDS = 60*60L;
+
+    // the most of a submission's log to upload, 0 for no limit
+    public static final String LOG_QUOTA_BYTES_PROPERTY_NAME = "LOG_QUOTA_BYTES";
+    public static final long DEFAULT_LOG_QUOTA_BYTES = 100*1024*1024L;
+    // how much of the quota to fill from the start of a log which exceeds it, the rest coming from the end
+    public static final String LOG_QUOTA_HEAD_BYTES_PROPERTY_NAME = "LOG_QUOTA_HEAD_BYTES";
+    public static final long DEFAULT_LOG_QUOTA_HEAD_BYTES = 10*1024*1024L;
+
 
 }
@@ -0,0 +1,111 @@
+package org.sagebionetworks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
+import com.github.dockerjava.api.model.Container;
+
+/*
+ * An in-memory view of the containers matching a given filter, and of their states.
+ *
+ * The list of containers is fetched from the Docker engine at most once per refresh period,
+ * or sooner once a container is known to have changed (e.g. we started it, or Docker
+ * told us that it stopped).  A container is inspected when first asked about and again
+ * only after its state has changed, rather than every time its state is requested.
+ */
+public class ContainerStateCache {
+    private static Logger log = LoggerFactory.getLogger(ContainerStateCache.class);
+
+    private DockerUtils dockerUtils;
+    private Filter filter;
+    private String nameFilter;
+    private volatile long refreshPeriodMillis;
+
+    // map from container name to container
+    private Map<String, Container> containers = null;
+    // map from container ID to the state listed for the container
+    private Map<String, String> listedStates = new HashMap<String, String>();
+    // map from container ID to the result of inspecting the container
+    private Map<String, ContainerState> containerStates = new ConcurrentHashMap<String, ContainerState>();
+    private long lastRefresh = 0L;
+
+    /*
+     * @param filter the client side filter for the container names
+     * @param nameFilter the server side filter for the container names, may be null
+     */
+    public ContainerStateCache(DockerUtils dockerUtils, Filter filter, String nameFilter, long refreshPeriodMillis) {
+        this.dockerUtils=dockerUtils;
+        this.filter=filter;
+        this.nameFilter=nameFilter;
+        this.refreshPeriodMillis=refreshPeriodMillis;
+    }
+
+    public void setRefreshPeriodMillis(long refreshPeriodMillis) {
+        this.refreshPeriodMillis=refreshPeriodMillis;
+    }
+
+    /*
+     * @param running true: list only the running containers, false: list only the non-running containers, null: list all
+     * @return map from container name to container
+     */
+    public synchronized Map<String, Container> listContainers(Boolean running) {
+        if (containers==null || System.currentTimeMillis()>=lastRefresh+refreshPeriodMillis) {
+            refresh();
+        }
+        Map<String, Container> result = new HashMap<String, Container>();
+        for (String name : containers.keySet()) {
+            Container container = containers.get(name);
+            if (running!=null && running!=DockerUtils.isRunning(container)) continue;
+            result.put(name, container);
+        }
+        return result;
+    }
+
+    private void refresh() {
+        Map<String, Container> latest = dockerUtils.listContainers(filter, /*running*/null, nameFilter);
+        Map<String, String> latestStates = new HashMap<String, String>();
+        for (Container container : latest.values()) {
+            latestStates.put(container.getId(), container.getState());
+        }
+        // forget what we know of any container which is gone or whose state has changed
+        for (String containerId : listedStates.keySet()) {
+            String latestState = latestStates.get(containerId);
+            if (latestState==null || !latestState.equals(listedStates.get(containerId))) {
+                containerStates.remove(containerId);
+            }
+        }
+        containers = latest;
+        listedStates = latestStates;
+        lastRefresh = System.currentTimeMillis();
+    }
+
+    /*
+     * The container is inspected within computeIfAbsent, so that an invalidate() made meanwhile
+     * waits for the inspection and then removes its result, rather than the result, which may
+     * be stale, being cached after the invalidation.
+     */
+    public ContainerState getContainerState(String containerId) {
+        return containerStates.computeIfAbsent(containerId, new Function<String, ContainerState>() {
+            @Override
+            public ContainerState apply(String id) {
+                return dockerUtils.getContainerState(id);
+            }
+        });
+    }
+
+    /*
+     * Called when a container is known to have changed, e.g. it was created, started, stopped or removed
+     */
+    public synchronized void invalidate(String containerId) {
+        log.debug("Container "+containerId+" has changed.");
+        if (containerId!=null) containerStates.remove(containerId);
+        containers = null;
+    }
+
+}
@@ -1,27 +1,39 @@
 package org.sagebionetworks;
 
+import static org.sagebionetworks.Constants.DEFAULT_DOCKER_STREAM_TIMEOUT_SECONDS;
 import static org.sagebionetworks.Constants.DOCKER_CERT_PATH_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DOCKER_STREAM_TIMEOUT_SECONDS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.SYNAPSE_PAT_PROPERTY;
 import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
 import static org.sagebionetworks.Constants.UNIX_SOCKET_PREFIX;
 import static org.sagebionetworks.Utils.checkHttpResponseCode;
 import static org.sagebionetworks.Utils.getHttpClient;
+import static org.sagebionetworks.Utils.getLongProperty;
 import static org.sagebionetworks.Utils.getProperty;
 import static org.sagebionetworks.Utils.getResponseBodyAsJson;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.Header;
@@ -43,11 +55,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.async.ResultCallbackTemplate;
 import com.github.dockerjava.api.command.CreateContainerCmd;
 import com.github.dockerjava.api.command.CreateContainerResponse;
 import com.github.dockerjava.api.command.ExecCreateCmdResponse;
 import com.github.dockerjava.api.command.InspectContainerResponse;
 import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
+import com.github.dockerjava.api.command.ListContainersCmd;
+import com.github.dockerjava.api.command.LogContainerCmd;
 import com.github.dockerjava.api.exception.DockerClientException;
 import com.github.dockerjava.api.exception.DockerException;
 import com.github.dockerjava.api.exception.InternalServerErrorException;
@@ -57,10 +73,12 @@ import com.github.dockerjava.api.model.AuthConfig;
 import com.github.dockerjava.api.model.Bind;
 import com.github.dockerjava.api.model.Container;
 import com.github.dockerjava.api.model.Device;
+import com.github.dockerjava.api.model.Event;
 import com.github.dockerjava.api.model.HostConfig;
 import com.github.dockerjava.api.model.Info;
 import com.github.dockerjava.api.model.LogConfig;
 import com.github.dockerjava.api.model.LogConfig.LoggingType;
+import com.github.dockerjava.api.model.Statistics;
 import com.github.dockerjava.api.model.Volume;
 import com.github.dockerjava.core.DefaultDockerClientConfig;
 import com.github.dockerjava.core.DefaultDockerClientConfig.Builder;
@@ -153,6 +171,30 @@ public class DockerUtils {
         return dockerClient.infoCmd().exec();
     }
 
+    private static final long STATISTICS_TIMEOUT_MILLIS = 10*1000L;
+
+    /*
+     * Return one sample of the container's resource usage, or null if none arrives in time.
+     * The Docker engine streams samples, so we take the first and then close the stream.
+     */
+    public Statistics getStatistics(String containerId) {
+        final BlockingQueue<Statistics> samples = new LinkedBlockingQueue<Statistics>();
+        ResultCallbackTemplate<?,Statistics> callback = new ResultCallbackTemplate<ResultCallback<Statistics>,Statistics>() {
+            @Override
+            public void onNext(Statistics statistics) {
+                samples.add(statistics);
+            }
+        };
+        try (ResultCallback<Statistics> stream = dockerClient.statsCmd(containerId).exec(callback)) {
+            return samples.poll(STATISTICS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public String getVolumeMountPoint(String volumeName) {
         return dockerClient.inspectVolumeCmd(volumeName).exec().getMountpoint();
     }
@@ -353,26 +395,80 @@ public class DockerUtils {
      * Create a temporary file having the content of the container's output
      * Also return the very tail of the logs, if maxTailLength is not null
      */
+    private static long getStreamTimeoutMillis() {
+        return getLongProperty(DOCKER_STREAM_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_DOCKER_STREAM_TIMEOUT_SECONDS)*1000L;
+    }
+
     public String getLogs(String containerId, Path outPath, Integer maxTailLengthCharacters) throws IOException {
-        final OutputStream os = new FileOutputStream(outPath.toFile());
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outPath.toFile()))) {
+            return getLogs(containerId, os, maxTailLengthCharacters);
+        }
+    }
+
+    /*
+     * Write the container's log to the given stream, which is flushed but left open
+     */
+    public String getLogs(String containerId, OutputStream os, Integer maxTailLengthCharacters) throws IOException {
         try {
             LoggingResultsCallback resultCallback = new LoggingResultsCallback(
-                    os, Thread.currentThread(), maxTailLengthCharacters);
+                    os, maxTailLengthCharacters);
             dockerClient.logContainerCmd(containerId)
             .withStdErr(true)
             .withStdOut(true)
             .withTimestamps(true)
             .exec(resultCallback);
-            while (!resultCallback.isComplete()) {
-                try {
-                    Thread.sleep(1000L);
-                } catch (InterruptedException e) {
-                    // callback has interrupted our sleep!
-                }
-            }
+            resultCallback.awaitCompletion(getStreamTimeoutMillis());
             return resultCallback.getTail();
         } finally {
-            os.close();
+            os.flush();
+        }
+    }
+
+    /*
+     * Append to 'logFile' the container's output since the time recorded in 'cursorFile',
+     * then record there the time of the last frame appended.  Thus each call retrieves from
+     * Docker only the output produced since the previous one.  Without a cursor the whole
+     * log is collected, replacing whatever is in 'logFile'.  If the collection fails,
+     * 'logFile' is cut back to what it held before, so that the cursor still matches it and
+     * the next call collects the same output again rather than appending it twice.
+     */
+    public void appendNewLogs(String containerId, File logFile, File cursorFile) throws IOException {
+        Instant cursor = null;
+        if (cursorFile.exists() && logFile.exists()) {
+            try {
+                cursor = Instant.parse(new String(Files.readAllBytes(cursorFile.toPath()), StandardCharsets.UTF_8).trim());
+            } catch (DateTimeParseException e) {
+                log.warn("Could not read log cursor "+cursorFile.getAbsolutePath()+".  Will collect the whole log.");
+            }
+        }
+        IncrementalLogCallback resultCallback;
+        try (FileOutputStream fos = new FileOutputStream(logFile, /*append*/cursor!=null)) {
+            long startingLength = fos.getChannel().size();
+            BufferedOutputStream os = new BufferedOutputStream(fos);
+            resultCallback = new IncrementalLogCallback(os, cursor);
+            try {
+                LogContainerCmd logContainerCmd = dockerClient.logContainerCmd(containerId)
+                        .withStdErr(true)
+                        .withStdOut(true)
+                        .withTimestamps(true);
+                if (cursor!=null) logContainerCmd = logContainerCmd.withSince((int)cursor.getEpochSecond());
+                logContainerCmd.exec(resultCallback);
+                resultCallback.awaitCompletion(getStreamTimeoutMillis());
+                os.flush();
+            } catch (IOException | RuntimeException e) {
+                // the cursor is not advanced, so drop the frames already written
+                resultCallback.cancel();
+                fos.getChannel().truncate(startingLength);
+                throw e;
+            }
+            fos.getFD().sync();
+        }
+        if (resultCallback.getCursor()!=null && !resultCallback.getCursor().equals(cursor)) {
+            File tempFile = new File(cursorFile.getParentFile(), cursorFile.getName()+".tmp");
+            try (FileOutputStream os = new FileOutputStream(tempFile)) {
+                os.write(resultCallback.getCursor().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            Files.move(tempFile.toPath(), cursorFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         }
     }
 
@@ -381,17 +477,11 @@ public class DockerUtils {
         final ByteArrayOutputStream os = new ByteArrayOutputStream();
         try {
             LoggingResultsCallback resultCallback = new LoggingResultsCallback(
-                    os, Thread.currentThread(), null);
+                    os, null);
             dockerClient.logContainerCmd(containerId).withTimestamps(true)
             .withStdErr(true).withStdOut(true).withTail(numberOfLines)
             .exec(resultCallback);
-            while (!resultCallback.isComplete()) {
-                try {
-                    Thread.sleep(1000L);
-                } catch (InterruptedException e) {
-                    // callback has interrupted our sleep!
-                }
-            }
+            resultCallback.awaitCompletion(getStreamTimeoutMillis());
         } finally {
             os.close();
         }
@@ -500,15 +590,29 @@ public class DockerUtils {
     });
 
 
+    public static boolean isRunning(Container container) {
+        return PRE_TERMINAL_STATES.contains(container.getState());
+    }
+
     /*
      * pass null for filter to return all containers
      */
     public Map<String, Container> listContainers(Filter filter, Boolean running) {
+        return listContainers(filter, running, null);
+    }
+
+    /*
+     * pass null for filter to return all containers
+     * 'nameFilter', if not null, is passed to the Docker engine, which returns only
+     * the containers whose names contain it, saving us from listing every container on the host
+     */
+    public Map<String, Container> listContainers(Filter filter, Boolean running, String nameFilter) {
         Map<String, Container> result = new HashMap<String, Container>();
-        List<Container> containers = dockerClient.listContainersCmd()
-                .withShowAll(true).exec();
+        ListContainersCmd listContainersCmd = dockerClient.listContainersCmd().withShowAll(true);
+        if (nameFilter!=null) listContainersCmd = listContainersCmd.withNameFilter(Collections.singletonList(nameFilter));
+        List<Container> containers = listContainersCmd.exec();
         for (Container container : containers) {
-            boolean jobIsRunning = PRE_TERMINAL_STATES.contains(container.getState());
+            boolean jobIsRunning = isRunning(container);
             // if running==true only add running jobs; if running==false only add non-running jobs
             if (running!=null && (running != jobIsRunning)) continue;
 
@@ -525,25 +629,25 @@ public class DockerUtils {
         return result;
     }
 
+    /*
+     * Subscribe to the Docker engine's event stream, limited to the given actions
+     * (e.g. "die").  Closing the returned callback ends the subscription.
+     */
+    public ResultCallback<Event> subscribeToEvents(List<String> actions, ResultCallback<Event> callback) {
+        return dockerClient.eventsCmd()
+                .withEventFilter(actions.toArray(new String[actions.size()]))
+                .exec(callback);
+    }
+
     public String exec(String containerId, String[] command) throws IOException {
         ExecCreateCmdResponse eccr = dockerClient.execCreateCmd(containerId).withCmd(command)
                 .withAttachStderr(true).withAttachStdout(true).exec();
         final ByteArrayOutputStream os = new ByteArrayOutputStream();
         try {
             LoggingResultsCallback resultCallback = new LoggingResultsCallback(
-                    os, Thread.currentThread(), null);
+                    os, null, Constants.GIGABYTE_IN_BYTES);
             dockerClient.execStartCmd(eccr.getId()).exec(resultCallback);
-            while (!resultCallback.isComplete()) {
-                try {
-                    Thread.sleep(1000L);
-                } catch (InterruptedException e) {
-                    // callback has interrupted our sleep!
-                }
-                if (os.size()>Constants.GIGABYTE_IN_BYTES) {
-                    log.warn("Command response has exceeded 1GB in size.  Will not collect any more data.");
-                    break;
-                }
-            }
+            resultCallback.awaitCompletion(getStreamTimeoutMillis());
         } finally {
             os.close();
         }
@@ -1,20 +1,41 @@
 package org.sagebionetworks;
 
+import static org.sagebionetworks.Constants.DEFAULT_FULL_SUBMISSION_SWEEP_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_SUBMISSION_PAGE_FETCH_THREAD_COUNT;
+import static org.sagebionetworks.Constants.DEFAULT_SUBMISSION_PAGE_SIZE;
 import static org.sagebionetworks.Constants.EXECUTION_STAGE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.FULL_SUBMISSION_SWEEP_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.INCREMENTAL_SUBMISSION_DISCOVERY_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SUBMISSION_PAGE_FETCH_THREAD_COUNT_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SUBMISSION_PAGE_SIZE_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getBooleanProperty;
+import static org.sagebionetworks.Utils.getIntegerProperty;
+import static org.sagebionetworks.Utils.getLongProperty;
 import static org.sagebionetworks.Utils.getProperty;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.evaluation.model.Evaluation;
+import org.sagebionetworks.evaluation.model.Submission;
 import org.sagebionetworks.evaluation.model.SubmissionBundle;
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
 import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
@@ -25,9 +46,11 @@ import org.sagebionetworks.repo.model.annotation.DoubleAnnotation;
 import org.sagebionetworks.repo.model.annotation.LongAnnotation;
 import org.sagebionetworks.repo.model.annotation.StringAnnotation;
 import org.sagebionetworks.schema.adapter.JSONObjectAdapterException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class EvaluationUtils {
-    private static final int PAGE_SIZE = 10;
+    private static Logger log = LoggerFactory.getLogger(EvaluationUtils.class);
 
     // submission annotation names
     public static final String WORKFLOW_JOB_ID = "orgSagebionetworksSynapseWorkflowOrchestratorWorkflowJobId";
@@ -42,6 +65,9 @@ public class EvaluationUtils {
     public static final String LAST_LOG_UPLOAD = "orgSagebionetworksSynapseWorkflowOrchestratorLastLogUpload";
     public static final String SUBMISSION_PROCESSING_STARTED_SENT = "orgSagebionetworksSynapseWorkflowOrchestratorSubmissionProcessingStartedSent";
     public static final String PROGRESS = "orgSagebionetworksSynapseWorkflowOrchestratorProgress";
+    // the Orchestrator instance processing the submission and when its claim expires
+    public static final String LEASE_OWNER = "orgSagebionetworksSynapseWorkflowOrchestratorLeaseOwner";
+    public static final String LEASE_EXPIRES = "orgSagebionetworksSynapseWorkflowOrchestratorLeaseExpires";
     public static final boolean ADMIN_ANNOTS_ARE_PRIVATE = true;
 
     //annotation values
@@ -57,8 +83,41 @@ public class EvaluationUtils {
 
     private SynapseClient synapse;
 
+    /*
+     * What we know of the submissions in one state in one evaluation queue, for incremental discovery
+     */
+    private static class QueueSnapshot {
+        // the submissions last seen, in the order listed.  A submission never changes, so once
+        // retrieved it need not be retrieved again
+        Map<String,SubmissionBundle> bundles = new LinkedHashMap<String,SubmissionBundle>();
+        // the ID of the last submission listed, past which new submissions are looked for
+        String watermark = null;
+        long nextFullSweep = 0L;
+
+        void update(List<SubmissionBundle> listing) {
+            bundles = new LinkedHashMap<String,SubmissionBundle>();
+            watermark = null;
+            for (SubmissionBundle bundle : listing) {
+                watermark = bundle.getSubmission().getId();
+                bundles.put(watermark, bundle);
+            }
+        }
+    }
+
+    private ConcurrentMap<String,QueueSnapshot> queueSnapshots = new ConcurrentHashMap<String,QueueSnapshot>();
+
+    // retrieves the pages of a listing, and newly listed submissions, in parallel, created when first used
+    private ExecutorService pageFetchPool = null;
+
+    private MetadataCache metadataCache;
+
     public EvaluationUtils(SynapseClient synapse) {
+        this(synapse, new MetadataCache(synapse));
+    }
+
+    public EvaluationUtils(SynapseClient synapse, MetadataCache metadataCache) {
         this.synapse=synapse;
+        this.metadataCache=metadataCache;
     }
 
     public enum EXECUTION_STAGE {
@@ -395,39 +454,219 @@ public class EvaluationUtils {
         }
     }
 
+    /*
+     * Evaluation queues rarely change, so they are cached
+     */
     public Evaluation getEvaluation(String evaluationId) throws SynapseException {
-        return synapse.getEvaluation(evaluationId);
+        return metadataCache.getEvaluation(evaluationId);
+    }
+
+    /*
+     * Forget the cached evaluation queue, e.g. when it is found to have changed or gone
+     */
+    public void invalidateEvaluation(String evaluationId) {
+        metadataCache.invalidateEvaluation(evaluationId);
     }
 
     /**
+     * Return the submissions in the given state in the given evaluation queue.
+     *
+     * With incremental discovery just the submission statuses listed after the last submission
+     * seen are read, and the new submissions are retrieved in parallel.  The submissions seen
+     * before keep the statuses they were last listed with.  If any of the
+     * submissions seen before have left the queue, all the statuses are listed again, each
+     * submission itself still being retrieved only when it first appears in the queue.  The
+     * full bundles are listed periodically nonetheless, in case anything has been missed.
      *
      * @throws SynapseException
      * @throws IOException
      * @throws JSONObjectAdapterException
      */
     public List<SubmissionBundle> selectSubmissions(String evaluationId, SubmissionStatusEnum state) throws SynapseException, IOException, JSONObjectAdapterException {
-        long total = Integer.MAX_VALUE;
+        if (!getBooleanProperty(INCREMENTAL_SUBMISSION_DISCOVERY_PROPERTY_NAME, false)) {
+            return selectAllSubmissions(evaluationId, state);
+        }
+        String queueKey = evaluationId+"/"+state;
+        queueSnapshots.putIfAbsent(queueKey, new QueueSnapshot());
+        QueueSnapshot snapshot = queueSnapshots.get(queueKey);
+        synchronized (snapshot) {
+            long now = System.currentTimeMillis();
+            if (now>=snapshot.nextFullSweep) {
+                List<SubmissionBundle> result = selectAllSubmissions(evaluationId, state);
+                snapshot.update(result);
+                snapshot.nextFullSweep = now+getLongProperty(FULL_SUBMISSION_SWEEP_SECONDS_PROPERTY_NAME,
+                        DEFAULT_FULL_SUBMISSION_SWEEP_SECONDS)*1000L;
+                return result;
+            }
+            List<SubmissionBundle> result = new ArrayList<SubmissionBundle>();
+            List<SubmissionStatus> statuses = selectSubmissionStatusesPastWatermark(evaluationId, state, snapshot);
+            if (statuses!=null) {
+                result.addAll(snapshot.bundles.values());
+            } else {
+                // some of the submissions seen before have left this state, so list them all again
+                statuses = selectSubmissionStatuses(evaluationId, state);
+            }
+            List<String> newIds = new ArrayList<String>();
+            for (SubmissionStatus status : statuses) {
+                if (!snapshot.bundles.containsKey(status.getId())) newIds.add(status.getId());
+            }
+            Map<String,Submission> newSubmissions = getSubmissions(newIds);
+            for (SubmissionStatus status : statuses) {
+                SubmissionBundle known = snapshot.bundles.get(status.getId());
+                SubmissionBundle bundle = new SubmissionBundle();
+                bundle.setSubmission(known==null ? newSubmissions.get(status.getId()) : known.getSubmission());
+                bundle.setSubmissionStatus(status);
+                result.add(bundle);
+            }
+            snapshot.update(result);
+            return result;
+        }
+    }
+
+    /*
+     * Return the statuses listed after the last submission seen, reading the listing from the
+     * position of that submission onwards.  Return null if the submissions seen before are
+     * no longer those at the start of the listing, e.g. because some have left this state.
+     */
+    private List<SubmissionStatus> selectSubmissionStatusesPastWatermark(final String evaluationId, final SubmissionStatusEnum state,
+            QueueSnapshot snapshot) throws SynapseException {
+        if (snapshot.watermark==null) return null;
+        List<SubmissionStatus> listing = listAll(new PageSource<SubmissionStatus>() {
+            @Override
+            public PaginatedResults<SubmissionStatus> getPage(long offset, long limit) throws SynapseException {
+                return synapse.getAllSubmissionStatusesByStatus(evaluationId, state, offset, limit);
+            }
+        }, snapshot.bundles.size()-1);
+        if (listing.isEmpty() || !snapshot.watermark.equals(listing.get(0).getId())) return null;
+        List<SubmissionStatus> result = new ArrayList<SubmissionStatus>();
+        Set<String> ids = new HashSet<String>(snapshot.bundles.keySet());
+        for (SubmissionStatus status : listing.subList(1, listing.size())) {
+            if (!ids.add(status.getId()) || !state.equals(status.getStatus())) return null;
+            result.add(status);
+        }
+        return result;
+    }
+
+    /*
+     * Retrieve the given submissions in parallel
+     */
+    private Map<String,Submission> getSubmissions(Collection<String> submissionIds) throws SynapseException {
+        List<Future<Submission>> futures = new ArrayList<Future<Submission>>();
+        for (final String submissionId : submissionIds) {
+            futures.add(getPageFetchPool().submit(new Callable<Submission>() {
+                @Override
+                public Submission call() throws Exception {
+                    return synapse.getSubmission(submissionId);
+                }
+            }));
+        }
+        Map<String,Submission> result = new HashMap<String,Submission>();
+        for (Submission submission : getAll(futures)) result.put(submission.getId(), submission);
+        return result;
+    }
+
+    private List<SubmissionStatus> selectSubmissionStatuses(final String evaluationId, final SubmissionStatusEnum state) throws SynapseException {
+        List<SubmissionStatus> result = new ArrayList<SubmissionStatus>();
+        Set<String> ids = new HashSet<String>();
+        for (SubmissionStatus status : listAll(new PageSource<SubmissionStatus>() {
+            @Override
+            public PaginatedResults<SubmissionStatus> getPage(long offset, long limit) throws SynapseException {
+                return synapse.getAllSubmissionStatusesByStatus(evaluationId, state, offset, limit);
+            }
+        }, 0L)) {
+            if (isFreshListing(status.getId(), status, state, ids)) result.add(status);
+        }
+        return result;
+    }
+
+    private List<SubmissionBundle> selectAllSubmissions(final String evaluationId, final SubmissionStatusEnum state) throws SynapseException {
         List<SubmissionBundle> result = new ArrayList<SubmissionBundle>();
         Set<String> ids = new HashSet<String>();
-        for (int offset=0; offset<total; offset+=PAGE_SIZE) {
-            PaginatedResults<SubmissionBundle> submissionPGs = null;
-            submissionPGs = synapse.getAllSubmissionBundlesByStatus(evaluationId,
-                    state, offset, PAGE_SIZE);
-            total = (int)submissionPGs.getTotalNumberOfResults();
-            List<SubmissionBundle> page = submissionPGs.getResults();
-            for (int i=0; i<page.size(); i++) {
-                SubmissionBundle bundle = page.get(i);
-                result.add(bundle);
-                String id = bundle.getSubmission().getId();
-                if (ids.contains(id)) throw new IllegalStateException("List has multiple copies of "+id);
-                ids.add(id);
-                if (!bundle.getSubmissionStatus().getStatus().equals(state))
-                    throw new RuntimeException("Submission "+id+" has state "+bundle.getSubmissionStatus().getStatus()+" when "+state+" was expected.");
+        for (SubmissionBundle bundle : listAll(new PageSource<SubmissionBundle>() {
+            @Override
+            public PaginatedResults<SubmissionBundle> getPage(long offset, long limit) throws SynapseException {
+                return synapse.getAllSubmissionBundlesByStatus(evaluationId, state, offset, limit);
             }
+        }, 0L)) {
+            if (isFreshListing(bundle.getSubmission().getId(), bundle.getSubmissionStatus(), state, ids)) result.add(bundle);
         }
         return result;
     }
 
+    /*
+     * A submission which changes state while we page through the listing may appear twice, or
+     * may appear in a state other than the one we asked for.  We keep just its first appearance
+     * and drop it if it's in the wrong state.  (The next listing will show where it went.)
+     */
+    private static boolean isFreshListing(String id, SubmissionStatus status, SubmissionStatusEnum state, Set<String> idsSeen) {
+        if (!idsSeen.add(id)) {
+            log.info("Submission "+id+" was listed twice.  Skipping the second copy.");
+            return false;
+        }
+        if (!state.equals(status.getStatus())) {
+            log.info("Submission "+id+" has state "+status.getStatus()+" when "+state+" was expected.  Skipping it.");
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Retrieves one page of a paginated listing
+     */
+    private interface PageSource<T> {
+        PaginatedResults<T> getPage(long offset, long limit) throws SynapseException;
+    }
+
+    /*
+     * Retrieve everything in a paginated listing from the given offset.  The first page tells
+     * us how many more pages there are.  These are then retrieved in parallel.
+     */
+    private <T> List<T> listAll(final PageSource<T> source, long startOffset) throws SynapseException {
+        final int pageSize = getIntegerProperty(SUBMISSION_PAGE_SIZE_PROPERTY_NAME, DEFAULT_SUBMISSION_PAGE_SIZE);
+        PaginatedResults<T> firstPage = source.getPage(startOffset, pageSize);
+        List<T> result = new ArrayList<T>(firstPage.getResults());
+        List<Future<PaginatedResults<T>>> pages = new ArrayList<Future<PaginatedResults<T>>>();
+        for (long offset=startOffset+pageSize; offset<firstPage.getTotalNumberOfResults(); offset+=pageSize) {
+            final long pageOffset = offset;
+            pages.add(getPageFetchPool().submit(new Callable<PaginatedResults<T>>() {
+                @Override
+                public PaginatedResults<T> call() throws Exception {
+                    return source.getPage(pageOffset, pageSize);
+                }
+            }));
+        }
+        for (PaginatedResults<T> page : getAll(pages)) result.addAll(page.getResults());
+        return result;
+    }
+
+    /*
+     * Wait for the results of the given tasks.  If any fails, the rest are cancelled.
+     */
+    private static <T> List<T> getAll(List<Future<T>> futures) throws SynapseException {
+        List<T> result = new ArrayList<T>();
+        try {
+            for (Future<T> future : futures) result.add(future.get());
+        } catch (ExecutionException e) {
+            for (Future<T> future : futures) future.cancel(true);
+            if (e.getCause() instanceof SynapseException) throw (SynapseException)e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            for (Future<T> future : futures) future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    private synchronized ExecutorService getPageFetchPool() {
+        if (pageFetchPool==null) {
+            pageFetchPool = Utils.createDaemonThreadPool("submission-page-fetch",
+                    getIntegerProperty(SUBMISSION_PAGE_FETCH_THREAD_COUNT_PROPERTY_NAME, DEFAULT_SUBMISSION_PAGE_FETCH_THREAD_COUNT));
+        }
+        return pageFetchPool;
+    }
+
     private static String formatInterval(final long l) {
         final long hr = TimeUnit.MILLISECONDS.toHours(l);
         final long min = TimeUnit.MILLISECONDS.toMinutes(l - TimeUnit.HOURS.toMillis(hr));
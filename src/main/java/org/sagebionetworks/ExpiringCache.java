@@ -0,0 +1,59 @@
+package org.sagebionetworks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * A thread-safe cache holding at most 'maxSize' entries, each for at most 'ttlMillis'.
+ * Once full, the least recently used entry is dropped to make room for a new one.
+ */
+public class ExpiringCache<K,V> {
+
+    private static class Entry<V> {
+        V value;
+        long expires;
+    }
+
+    private final long ttlMillis;
+    private final Map<K,Entry<V>> entries;
+
+    public ExpiringCache(final int maxSize, long ttlMillis) {
+        this.ttlMillis=ttlMillis;
+        this.entries = new LinkedHashMap<K,Entry<V>>(16, 0.75f, /*accessOrder*/true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K,Entry<V>> eldest) {
+                return size()>maxSize;
+            }
+        };
+    }
+
+    /*
+     * Returns the cached value, or null if there is none or it has expired
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry==null) return null;
+        if (entry.expires<=System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        Entry<V> entry = new Entry<V>();
+        entry.value=value;
+        entry.expires=System.currentTimeMillis()+ttlMillis;
+        entries.put(key, entry);
+    }
+
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+}
@@ -9,11 +9,28 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import static org.sagebionetworks.Constants.DEFAULT_NUM_RETRY_ATTEMPTS;
+import static org.sagebionetworks.Constants.DEFAULT_RETRY_TIME_LIMIT_SECONDS;
+import static org.sagebionetworks.Constants.RETRY_TIME_LIMIT_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getLongProperty;
 
 
+/*
+ * Retries an operation with exponentially increasing, randomly jittered, pauses between attempts.
+ *
+ * Each operation has a budget:  Besides the limit on the number of attempts, no retry is made
+ * which would end after RETRY_TIME_LIMIT_SECONDS from the first attempt, or after the deadline
+ * (if any) set for the current thread by setDeadline().  The deadline lets a pass of work bound
+ * the time spent on all the operations made on its behalf.
+ *
+ * Runners should not be nested:  Synapse calls made through the client from SynapseClientFactory
+ * are already retried, so a runner wrapping such calls should retry only the errors which the
+ * client does not, e.g. conflicting updates.
+ */
 public class ExponentialBackoffRunner {
     private static Logger log = Logger.getLogger(ExponentialBackoffRunner.class.getName());
 
@@ -21,9 +38,17 @@ public class ExponentialBackoffRunner {
     private static long INITIAL_BACKOFF_MILLIS = 500L;
     private static long BACKOFF_MULTIPLIER = 2L;
 
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+
+    private static final AtomicLong ATTEMPT_COUNT = new AtomicLong();
+    private static final AtomicLong RETRY_COUNT = new AtomicLong();
+    private static final AtomicLong GIVE_UP_COUNT = new AtomicLong();
+
     private int numRetryAttempts;
     private List<Class<? extends SynapseServerException>> noRetryTypes  = null;
     private List<Integer> noRetryStatuses;
+    // if not null, only these are retried
+    private List<Class<? extends SynapseException>> retryTypes = null;
 
     public ExponentialBackoffRunner(List<Class<? extends SynapseServerException>> noRetryTypes, Integer[] noRetryStatuses, int numRetryAttempts) {
         this.noRetryTypes=noRetryTypes;
@@ -31,12 +56,65 @@ public class ExponentialBackoffRunner {
         this.numRetryAttempts=numRetryAttempts;
     }
 
+    /*
+     * A runner which retries only the given exception types
+     */
+    public ExponentialBackoffRunner(List<Class<? extends SynapseException>> retryTypes, int numRetryAttempts) {
+        this.retryTypes=retryTypes;
+        this.noRetryTypes=Collections.EMPTY_LIST;
+        this.noRetryStatuses = Collections.EMPTY_LIST;
+        this.numRetryAttempts=numRetryAttempts;
+    }
+
     public ExponentialBackoffRunner() {
         this.noRetryTypes=Collections.EMPTY_LIST;
         this.noRetryStatuses = Collections.EMPTY_LIST;
         this.numRetryAttempts=DEFAULT_NUM_RETRY_ATTEMPTS;
     }
 
+    /*
+     * Set the time (in epoch millis) after which no operation run on this thread is retried.  Null clears it.
+     */
+    public static void setDeadline(Long deadline) {
+        if (deadline==null) DEADLINE.remove(); else DEADLINE.set(deadline);
+    }
+
+    public static Long getDeadline() {
+        return DEADLINE.get();
+    }
+
+    public static long getAttemptCount() {
+        return ATTEMPT_COUNT.get();
+    }
+
+    public static long getRetryCount() {
+        return RETRY_COUNT.get();
+    }
+
+    public static long getGiveUpCount() {
+        return GIVE_UP_COUNT.get();
+    }
+
+    public static String getStatistics() {
+        return getAttemptCount()+" attempts, "+getRetryCount()+" retries, "+getGiveUpCount()+" give-ups";
+    }
+
+    private boolean isRetryable(SynapseException e) {
+        if (retryTypes!=null) return retryTypes.contains(e.getClass());
+        if (e instanceof UnknownSynapseServerException) {
+            return !noRetryStatuses.contains(((UnknownSynapseServerException)e).getStatusCode());
+        }
+        return !noRetryTypes.contains(e.getClass());
+    }
+
+    /*
+     * A pause of between half and all of the given backoff, so that callers
+     * which failed together do not all retry together
+     */
+    private static long jitter(long backoff) {
+        return backoff/2+ThreadLocalRandom.current().nextLong(backoff/2+1);
+    }
+
     private static String exceptionMessage(Throwable e) {
         if (e==null) return null;
         return e.getMessage();
@@ -47,6 +125,7 @@ public class ExponentialBackoffRunner {
      * Note, the total sleep time before giving up is:
      * INITIAL_BACKOFF_MILLIS * (BACKOFF_MULTIPLIER ^ (NUM_ATTEMPTS-1) - 1)  /  (BACKOFF_MULTIPLIER-1)
      * For INITIAL_BACKOFF_MILLIS=500msec, BACKOFF_MULTIPLIER=2, NUM_ATTEMPTS=7 this is 31.5 sec
+     * Jitter reduces each pause by up to half.
      *
      * @param executable
      * @return
@@ -55,21 +134,23 @@ public class ExponentialBackoffRunner {
      */
     public <T,V> T execute(Executable<T,V> executable, V args) throws Throwable {
         long backoff = INITIAL_BACKOFF_MILLIS;
+        long deadline = System.currentTimeMillis()+
+                getLongProperty(RETRY_TIME_LIMIT_SECONDS_PROPERTY_NAME, DEFAULT_RETRY_TIME_LIMIT_SECONDS)*1000L;
+        Long threadDeadline = DEADLINE.get();
+        if (threadDeadline!=null && threadDeadline<deadline) deadline=threadDeadline;
         Throwable lastException=null;
         int i = 0;
         while (true) {
+            ATTEMPT_COUNT.incrementAndGet();
             try {
                 return executable.execute(args);
-            } catch (UnknownSynapseServerException e) {
-                Integer statusCode = e.getStatusCode();
-                if (noRetryStatuses.contains(statusCode)) {
-                        log.severe("Found status code "+statusCode+". Will not retry: "+exceptionMessage(e));
-                        throw e;
-                }
-                lastException=e;
             } catch (SynapseException e) {
-                if (noRetryTypes.contains(e.getClass())) {
-                        log.severe("Will not retry: "+exceptionMessage(e));
+                if (!isRetryable(e)) {
+                        if (e instanceof UnknownSynapseServerException) {
+                            log.severe("Found status code "+((UnknownSynapseServerException)e).getStatusCode()+". Will not retry: "+exceptionMessage(e));
+                        } else {
+                            log.severe("Will not retry: "+exceptionMessage(e));
+                        }
                         throw e;
                 }
                 lastException=e;
@@ -85,14 +166,28 @@ public class ExponentialBackoffRunner {
             } else {
                 if (i>=numRetryAttempts) break;
             }
+            if (Thread.currentThread().isInterrupted()) {
+                // e.g. the task was cancelled, so make no further calls on its behalf
+                log.warning("Interrupted.  Will not retry.");
+                throw lastException;
+            }
+            long pause = jitter(backoff);
+            if (System.currentTimeMillis()+pause>deadline) {
+                log.warning("Out of time for retries.");
+                break;
+            }
             try {
-                Thread.sleep(backoff);
+                Thread.sleep(pause);
             } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warning("Interrupted.  Will not retry.");
                 throw lastException;
             }
+            RETRY_COUNT.incrementAndGet();
             backoff *= BACKOFF_MULTIPLIER;
             args = executable.refreshArgs(args); // implementation could be a no-op, simply returning the passed in value
         }
+        GIVE_UP_COUNT.incrementAndGet();
         log.severe("Exhausted retries. Throwing exception: "+exceptionMessage(lastException));
         throw lastException;
     }
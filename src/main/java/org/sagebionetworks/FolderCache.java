@@ -0,0 +1,151 @@
+package org.sagebionetworks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Remembers the IDs of the folders the Archiver has found or created, keyed by parent ID
+ * and name, and which entities it has shared with which principals, so that uploading logs
+ * to a known folder takes no folder or ACL lookups.  The least recently used entries are
+ * dropped once the cache is full.  If given a directory the cache is saved there, so that
+ * it survives a restart.
+ */
+public class FolderCache {
+    private static Logger log = LoggerFactory.getLogger(FolderCache.class);
+
+    private static final String CACHE_FILE_NAME = "folder_cache.json";
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final String FOLDERS = "folders";
+    private static final String SHARED = "shared";
+
+    private File cacheFile;
+
+    private Map<String,String> folderIds = createLRUMap();
+    private Map<String,Boolean> sharedEntities = createLRUMap();
+
+    private static <V> Map<String,V> createLRUMap() {
+        return new LinkedHashMap<String,V>(16, 0.75f, /*accessOrder*/true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,V> eldest) {
+                return size()>MAX_ENTRIES;
+            }
+        };
+    }
+
+    /*
+     * A cache held only in memory
+     */
+    public FolderCache() {
+        this.cacheFile=null;
+    }
+
+    /*
+     * A cache saved in the given directory
+     */
+    public FolderCache(File dir) {
+        this.cacheFile = new File(dir, CACHE_FILE_NAME);
+        if (!cacheFile.exists()) return;
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8));
+            JSONObject folders = json.getJSONObject(FOLDERS);
+            for (Iterator<String> it = folders.keys(); it.hasNext();) {
+                String key = it.next();
+                folderIds.put(key, folders.getString(key));
+            }
+            JSONObject shared = json.getJSONObject(SHARED);
+            for (Iterator<String> it = shared.keys(); it.hasNext();) {
+                sharedEntities.put(it.next(), true);
+            }
+        } catch (Exception e) {
+            // the cache can always be rebuilt
+            log.warn("Could not read "+cacheFile.getAbsolutePath()+".  Starting with an empty cache.", e);
+            folderIds.clear();
+            sharedEntities.clear();
+        }
+    }
+
+    private static String folderKey(String parentId, String name) {
+        return parentId+"/"+name;
+    }
+
+    private static String sharedKey(String entityId, String principalId) {
+        return entityId+"/"+principalId;
+    }
+
+    public synchronized String getFolderId(String parentId, String name) {
+        return folderIds.get(folderKey(parentId, name));
+    }
+
+    public synchronized void putFolderId(String parentId, String name, String folderId) {
+        if (folderId.equals(folderIds.put(folderKey(parentId, name), folderId))) return;
+        save();
+    }
+
+    public synchronized boolean isShared(String entityId, String principalId) {
+        return sharedEntities.containsKey(sharedKey(entityId, principalId));
+    }
+
+    public synchronized void setShared(String entityId, String principalId) {
+        if (sharedEntities.put(sharedKey(entityId, principalId), true)!=null) return;
+        save();
+    }
+
+    /*
+     * Forget the folder with the given ID, e.g. because an upload to it found it deleted.
+     * Its parent may have been deleted with it, so the parent is forgotten too.  Other
+     * folders are kept.
+     */
+    public synchronized void removeFolder(String folderId) {
+        Set<String> removedIds = new HashSet<String>();
+        removedIds.add(folderId);
+        for (Map.Entry<String,String> entry : folderIds.entrySet()) {
+            if (entry.getValue().equals(folderId)) {
+                removedIds.add(entry.getKey().substring(0, entry.getKey().indexOf('/')));
+            }
+        }
+        boolean changed = folderIds.values().removeAll(removedIds);
+        for (Iterator<String> it = sharedEntities.keySet().iterator(); it.hasNext();) {
+            String key = it.next();
+            if (removedIds.contains(key.substring(0, key.indexOf('/')))) {
+                it.remove();
+                changed=true;
+            }
+        }
+        if (changed) save();
+    }
+
+    private void save() {
+        if (cacheFile==null) return;
+        JSONObject json = new JSONObject();
+        json.put(FOLDERS, new JSONObject(folderIds));
+        JSONObject shared = new JSONObject();
+        for (String key : sharedEntities.keySet()) shared.put(key, true);
+        json.put(SHARED, shared);
+        File tempFile = new File(cacheFile.getParentFile(), CACHE_FILE_NAME+".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                fos.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the cache still works in memory
+            log.warn("Could not save "+cacheFile.getAbsolutePath(), e);
+        }
+    }
+
+}
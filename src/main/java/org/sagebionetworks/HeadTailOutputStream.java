@@ -0,0 +1,146 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Utils.getTempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Passes on to the given stream the first 'headBytes' bytes written, and the last
+ * 'tailBytes'.  Anything in between is dropped, and a marker saying how much was dropped
+ * takes its place.  The head is passed on as it is written; the rest is held in a file of
+ * at most 'tailBytes', written round and round, until finish() is called.  Thus however
+ * much is written, at most 'headBytes'+'tailBytes' are passed on and at most 'tailBytes'
+ * are held on disk.
+ *
+ * The stream passed in is not closed.  Writes should be buffered, as each write to the
+ * held tail is a write to the file.
+ */
+public class HeadTailOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final long headBytes;
+    private final long tailBytes;
+    private long count = 0L; // the number of bytes written
+    private File tailFile = null;
+    private RandomAccessFile tail = null;
+    private long tailEnd = 0L; // where the next byte goes in the tail file
+    private boolean finished = false;
+
+    public HeadTailOutputStream(OutputStream out, long headBytes, long tailBytes) {
+        this.out=out;
+        this.headBytes=Math.max(0L, headBytes);
+        this.tailBytes=Math.max(0L, tailBytes);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("Stream has been finished.");
+        if (count<headBytes) {
+            int n = (int)Math.min(len, headBytes-count);
+            out.write(b, off, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+        if (len==0) return;
+        count += len;
+        if (tailBytes==0) return;
+        // only the last tailBytes bytes can matter
+        if (len>tailBytes) {
+            off += len-tailBytes;
+            len = (int)tailBytes;
+        }
+        if (tail==null) {
+            tailFile = File.createTempFile("logtail", ".tmp", getTempDir());
+            tail = new RandomAccessFile(tailFile, "rw");
+        }
+        int firstPart = (int)Math.min(len, tailBytes-tailEnd);
+        tail.seek(tailEnd);
+        tail.write(b, off, firstPart);
+        if (firstPart<len) {
+            tail.seek(0L);
+            tail.write(b, off+firstPart, len-firstPart);
+        }
+        tailEnd = (tailEnd+len)%tailBytes;
+    }
+
+    /*
+     * The number of bytes written, including any dropped
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /*
+     * true if more was written than can be passed on
+     */
+    public boolean isTruncated() {
+        return count>headBytes+tailBytes;
+    }
+
+    /*
+     * Pass on the held tail, preceded by a marker if some of the output has been dropped.
+     * The stream passed in is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished=true;
+        try {
+            if (isTruncated()) {
+                String marker = "\r\n[... "+(count-headBytes-tailBytes)+" bytes omitted: the log exceeded "+
+                        (headBytes+tailBytes)+" bytes, so only its first "+headBytes+" and last "+tailBytes+" bytes are kept ...]\r\n";
+                out.write(marker.getBytes(StandardCharsets.UTF_8));
+                if (tail!=null) {
+                    // the tail file is full, its oldest byte at tailEnd
+                    copyTail(tailEnd, tailBytes);
+                    copyTail(0L, tailEnd);
+                }
+            } else if (tail!=null) {
+                copyTail(0L, count-headBytes);
+            }
+            out.flush();
+        } finally {
+            deleteTail();
+        }
+    }
+
+    private void copyTail(long from, long to) throws IOException {
+        byte[] buffer = new byte[65536];
+        tail.seek(from);
+        for (long remaining = to-from; remaining>0;) {
+            int n = tail.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            if (n<0) throw new IOException("Unexpected end of "+tailFile.getAbsolutePath());
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    private void deleteTail() throws IOException {
+        if (tail==null) return;
+        tail.close();
+        tail=null;
+        tailFile.delete();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /*
+     * Same as finish().  The stream passed in is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.DEFAULT_HEARTBEAT_INTERVAL_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_PROGRESS_WRITE_THRESHOLD;
+import static org.sagebionetworks.Constants.HEARTBEAT_INTERVAL_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.PROGRESS_WRITE_THRESHOLD_PROPERTY_NAME;
+import static org.sagebionetworks.EvaluationUtils.JOB_LAST_UPDATED_TIME_STAMP;
+import static org.sagebionetworks.EvaluationUtils.LEASE_EXPIRES;
+import static org.sagebionetworks.EvaluationUtils.PROGRESS;
+import static org.sagebionetworks.Utils.getDoubleProperty;
+import static org.sagebionetworks.Utils.getLongProperty;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+import org.sagebionetworks.repo.model.annotation.AnnotationBase;
+import org.sagebionetworks.repo.model.annotation.Annotations;
+import org.sagebionetworks.repo.model.annotation.DoubleAnnotation;
+import org.sagebionetworks.repo.model.annotation.LongAnnotation;
+import org.sagebionetworks.repo.model.annotation.StringAnnotation;
+
+/*
+ * Decides whether a submission status update is worth writing.  Each check on a running job
+ * updates its heartbeat (the 'last updated' time stamp), and usually its progress and lease,
+ * even when nothing else has changed.  An update which changes nothing but these is written
+ * only once the heartbeat interval has passed since the last heartbeat, the progress has moved
+ * by at least the given threshold, or the lease is more than half used.  Any other change
+ * (state, annotations, cancellation) is always written.
+ */
+public class HeartbeatCoalescer {
+
+    /*
+     * The state of a submission status as last written to Synapse
+     */
+    public static class Snapshot {
+        private SubmissionStatusEnum status;
+        private Boolean canCancel;
+        private Boolean cancelRequested;
+        private Map<String,Object> annotationValues = new HashMap<String,Object>();
+    }
+
+    public static Snapshot snapshot(SubmissionStatus submissionStatus) {
+        Snapshot result = new Snapshot();
+        result.status = submissionStatus.getStatus();
+        result.canCancel = submissionStatus.getCanCancel();
+        result.cancelRequested = submissionStatus.getCancelRequested();
+        Annotations annotations = submissionStatus.getAnnotations();
+        if (annotations!=null) {
+            if (annotations.getStringAnnos()!=null) for (StringAnnotation a : annotations.getStringAnnos()) result.annotationValues.put(a.getKey(), a.getValue());
+            if (annotations.getLongAnnos()!=null) for (LongAnnotation a : annotations.getLongAnnos()) result.annotationValues.put(a.getKey(), a.getValue());
+            if (annotations.getDoubleAnnos()!=null) for (DoubleAnnotation a : annotations.getDoubleAnnos()) result.annotationValues.put(a.getKey(), a.getValue());
+        }
+        return result;
+    }
+
+    private static Object getValue(AnnotationBase annotation) {
+        if (annotation instanceof StringAnnotation) return ((StringAnnotation)annotation).getValue();
+        if (annotation instanceof LongAnnotation) return ((LongAnnotation)annotation).getValue();
+        if (annotation instanceof DoubleAnnotation) return ((DoubleAnnotation)annotation).getValue();
+        throw new IllegalArgumentException("Unexpected annotation type "+annotation.getClass());
+    }
+
+    /*
+     * Return true if the given modifications to the given last written state should be written now
+     */
+    public static boolean isWorthWriting(Snapshot lastWritten, SubmissionStatusModifications statusMods, long now) {
+        long heartbeatIntervalMillis = getLongProperty(HEARTBEAT_INTERVAL_SECONDS_PROPERTY_NAME, DEFAULT_HEARTBEAT_INTERVAL_SECONDS)*1000L;
+        if (heartbeatIntervalMillis<=0) return true;
+
+        if (statusMods.getStatus()!=null && statusMods.getStatus()!=lastWritten.status) return true;
+        if (statusMods.getCanCancel()!=null && !statusMods.getCanCancel().equals(lastWritten.canCancel)) return true;
+        if (statusMods.getCancelRequested()!=null && !statusMods.getCancelRequested().equals(lastWritten.cancelRequested)) return true;
+        for (String key : statusMods.getAnnotationNamesToRemove()) {
+            if (lastWritten.annotationValues.containsKey(key)) return true;
+        }
+        for (AnnotationBase annotation : statusMods.getAnnotationsToAdd()) {
+            String key = annotation.getKey();
+            Object oldValue = lastWritten.annotationValues.get(key);
+            Object newValue = getValue(annotation);
+            if (newValue==null ? oldValue==null : newValue.equals(oldValue)) continue;
+            if (oldValue==null) return true;
+            if (key.equals(JOB_LAST_UPDATED_TIME_STAMP)) {
+                if (now-(Long)oldValue>=heartbeatIntervalMillis) return true;
+            } else if (key.equals(PROGRESS)) {
+                double threshold = getDoubleProperty(PROGRESS_WRITE_THRESHOLD_PROPERTY_NAME, DEFAULT_PROGRESS_WRITE_THRESHOLD);
+                if (Math.abs((Double)newValue-(Double)oldValue)>=threshold) return true;
+            } else if (key.equals(LEASE_EXPIRES)) {
+                if ((Long)oldValue-now < ((Long)newValue-now)/2) return true;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
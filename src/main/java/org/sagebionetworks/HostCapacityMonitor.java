@@ -0,0 +1,184 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.CONTAINER_STATISTICS_THREAD_COUNT_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DEFAULT_CONTAINER_STATISTICS_THREAD_COUNT;
+import static org.sagebionetworks.Constants.DEFAULT_HOST_CAPACITY_HEADROOM_PERCENT;
+import static org.sagebionetworks.Constants.DEFAULT_WORKFLOW_CPU_ESTIMATE;
+import static org.sagebionetworks.Constants.DEFAULT_WORKFLOW_DISK_ESTIMATE_MB;
+import static org.sagebionetworks.Constants.DEFAULT_WORKFLOW_MEMORY_ESTIMATE_MB;
+import static org.sagebionetworks.Constants.HOST_CAPACITY_HEADROOM_PERCENT_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.WORKFLOW_CPU_ESTIMATE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.WORKFLOW_DISK_ESTIMATE_MB_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.WORKFLOW_MEMORY_ESTIMATE_MB_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getDoubleProperty;
+import static org.sagebionetworks.Utils.getIntegerProperty;
+import static org.sagebionetworks.Utils.getLongProperty;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dockerjava.api.model.CpuStatsConfig;
+import com.github.dockerjava.api.model.Info;
+import com.github.dockerjava.api.model.Statistics;
+
+/*
+ * Estimates how many more workflow containers the Docker host has room for, from the host's
+ * CPUs and memory, the resources used by the running workflow containers and the free space
+ * on the shared volume.  A fraction of each resource, the 'headroom', is held in reserve.
+ */
+public class HostCapacityMonitor {
+    private static Logger log = LoggerFactory.getLogger(HostCapacityMonitor.class);
+
+    private static final long BYTES_PER_MB = 1024L*1024L;
+
+    private DockerUtils dockerUtils;
+    private File sharedDir;
+    private Info info = null;
+    // samples several containers at once, as each sample can take a while
+    private ExecutorService statisticsExecutor;
+
+    // the last CPU usage seen for each container, from which the next sample's usage is computed
+    private Map<String, CpuSample> lastCpuSamples = new HashMap<String, CpuSample>();
+
+    private static class CpuSample {
+        long containerUsage;
+        long systemUsage;
+
+        CpuSample(long containerUsage, long systemUsage) {
+            this.containerUsage=containerUsage;
+            this.systemUsage=systemUsage;
+        }
+    }
+
+    public HostCapacityMonitor(DockerUtils dockerUtils, File sharedDir) {
+        this.dockerUtils=dockerUtils;
+        this.sharedDir=sharedDir;
+        this.statisticsExecutor = Utils.createDaemonThreadPool("container-statistics",
+                getIntegerProperty(CONTAINER_STATISTICS_THREAD_COUNT_PROPERTY_NAME, DEFAULT_CONTAINER_STATISTICS_THREAD_COUNT));
+    }
+
+    /*
+     * Get the statistics of the given containers, several at a time, so that sampling many
+     * containers takes less time.  A container's statistics are null if they could
+     * not be retrieved.
+     */
+    private Map<String, Statistics> getStatistics(Collection<String> containerIds) {
+        Map<String, Future<Statistics>> futures = new HashMap<String, Future<Statistics>>();
+        for (final String containerId : containerIds) {
+            futures.put(containerId, statisticsExecutor.submit(new Callable<Statistics>() {
+                @Override
+                public Statistics call() {
+                    return dockerUtils.getStatistics(containerId);
+                }
+            }));
+        }
+        Map<String, Statistics> result = new HashMap<String, Statistics>();
+        for (String containerId : futures.keySet()) {
+            Statistics stats = null;
+            try {
+                stats = futures.get(containerId).get();
+            } catch (ExecutionException e) {
+                log.warn("Unable to get statistics for container "+containerId+": "+e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while getting statistics for container "+containerId);
+            }
+            result.put(containerId, stats);
+        }
+        return result;
+    }
+
+    private Info getInfo() {
+        // the host's CPU count and memory don't change while we're running
+        if (info==null) info = dockerUtils.getInfo();
+        return info;
+    }
+
+    /*
+     * The CPUs (in cores) used by the container between the previous sample and this one,
+     * or null if it cannot yet be computed
+     */
+    private Double getCpuUsage(CpuSample previous, CpuStatsConfig cpuStats) {
+        if (previous==null || cpuStats==null || cpuStats.getCpuUsage()==null ||
+                cpuStats.getCpuUsage().getTotalUsage()==null || cpuStats.getSystemCpuUsage()==null) return null;
+        long containerDelta = cpuStats.getCpuUsage().getTotalUsage()-previous.containerUsage;
+        long systemDelta = cpuStats.getSystemCpuUsage()-previous.systemUsage;
+        if (systemDelta<=0 || containerDelta<0) return null;
+        Long onlineCpus = cpuStats.getOnlineCpus();
+        int cpus = onlineCpus==null ? getInfoCpus(getInfo()) : onlineCpus.intValue();
+        return ((double)containerDelta/(double)systemDelta)*cpus;
+    }
+
+    private static int getInfoCpus(Info info) {
+        return info==null || info.getNCPU()==null ? 1 : info.getNCPU();
+    }
+
+    private static CpuSample toCpuSample(CpuStatsConfig cpuStats) {
+        if (cpuStats==null || cpuStats.getCpuUsage()==null ||
+                cpuStats.getCpuUsage().getTotalUsage()==null || cpuStats.getSystemCpuUsage()==null) return null;
+        return new CpuSample(cpuStats.getCpuUsage().getTotalUsage(), cpuStats.getSystemCpuUsage());
+    }
+
+    /*
+     * Return the number of new workflow containers which fit on the host, alongside the
+     * given running ones, while leaving the configured headroom free.
+     */
+    public synchronized int getCapacityForNewWorkflows(Collection<String> runningContainerIds) {
+        Info info = getInfo();
+        double headroom = getIntegerProperty(HOST_CAPACITY_HEADROOM_PERCENT_PROPERTY_NAME, DEFAULT_HOST_CAPACITY_HEADROOM_PERCENT)/100.0;
+        double cpuEstimate = getDoubleProperty(WORKFLOW_CPU_ESTIMATE_PROPERTY_NAME, DEFAULT_WORKFLOW_CPU_ESTIMATE);
+        long memoryEstimate = getLongProperty(WORKFLOW_MEMORY_ESTIMATE_MB_PROPERTY_NAME, DEFAULT_WORKFLOW_MEMORY_ESTIMATE_MB)*BYTES_PER_MB;
+        long diskEstimate = getLongProperty(WORKFLOW_DISK_ESTIMATE_MB_PROPERTY_NAME, DEFAULT_WORKFLOW_DISK_ESTIMATE_MB)*BYTES_PER_MB;
+
+        double cpuUsed = 0;
+        long memoryUsed = 0;
+        Map<String, CpuSample> cpuSamples = new HashMap<String, CpuSample>();
+        Map<String, Statistics> allStats = getStatistics(runningContainerIds);
+        for (String containerId : runningContainerIds) {
+            Statistics stats = allStats.get(containerId);
+            if (stats==null) {
+                // assume the container is using what we expect a workflow to use
+                cpuUsed += cpuEstimate;
+                memoryUsed += memoryEstimate;
+                continue;
+            }
+            Double cpuUsage = getCpuUsage(lastCpuSamples.get(containerId), stats.getCpuStats());
+            if (cpuUsage==null) cpuUsage = getCpuUsage(toCpuSample(stats.getPreCpuStats()), stats.getCpuStats());
+            cpuUsed += cpuUsage==null ? cpuEstimate : cpuUsage;
+            CpuSample sample = toCpuSample(stats.getCpuStats());
+            if (sample!=null) cpuSamples.put(containerId, sample);
+            Long memoryUsage = stats.getMemoryStats()==null ? null : stats.getMemoryStats().getUsage();
+            memoryUsed += memoryUsage==null ? memoryEstimate : memoryUsage;
+        }
+        // forget the containers which are no longer running
+        lastCpuSamples = cpuSamples;
+
+        double cpuAvailable = getInfoCpus(info)*(1-headroom)-cpuUsed;
+        int cpuCapacity = (int)Math.floor(cpuAvailable/cpuEstimate);
+
+        int memoryCapacity = Integer.MAX_VALUE;
+        if (info.getMemTotal()!=null) {
+            double memoryAvailable = info.getMemTotal()*(1-headroom)-memoryUsed;
+            memoryCapacity = (int)Math.floor(memoryAvailable/memoryEstimate);
+        }
+
+        double diskAvailable = sharedDir.getUsableSpace()-sharedDir.getTotalSpace()*headroom;
+        int diskCapacity = (int)Math.floor(diskAvailable/diskEstimate);
+
+        int result = Math.max(0, Math.min(cpuCapacity, Math.min(memoryCapacity, diskCapacity)));
+        log.info("Host capacity for new workflows is "+result+" (CPU: "+cpuCapacity+
+                ", memory: "+memoryCapacity+", disk: "+diskCapacity+").  "+runningContainerIds.size()+
+                " workflows are using "+String.format("%.2f", cpuUsed)+" CPUs and "+(memoryUsed/BYTES_PER_MB)+" MB of memory.");
+        return result;
+    }
+
+}
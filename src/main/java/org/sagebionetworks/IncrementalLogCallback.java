@@ -0,0 +1,63 @@
+package org.sagebionetworks;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+import com.github.dockerjava.api.model.Frame;
+
+/*
+ * Writes only the log frames later than the given cursor, the time of the last frame
+ * previously collected, and tracks the time of the last frame written.  The frames must
+ * have been requested with time stamps.  Docker's 'since' filter has a resolution of one
+ * second, so it returns again the frames in the cursor's second, which are skipped here.
+ */
+public class IncrementalLogCallback extends LoggingResultsCallback {
+    // longer than any RFC 3339 time stamp, e.g. 2020-01-01T00:00:06.123456789Z
+    private static final int MAX_TIME_STAMP_LENGTH = 40;
+
+    private Instant cursor;
+
+    public IncrementalLogCallback(OutputStream os, Instant cursor) {
+        super(os, null);
+        this.cursor=cursor;
+    }
+
+    /*
+     * The time stamp at the start of the frame, or null if there is none.  Only the first
+     * few bytes of the payload are looked at, however long it is.
+     */
+    static Instant getTimeStamp(Frame frame) {
+        byte[] payload = frame.getPayload();
+        if (payload==null) return null;
+        int limit = Math.min(payload.length, MAX_TIME_STAMP_LENGTH);
+        int end = 0;
+        while (end<limit && (payload[end]&0xff)>' ') end++;
+        // too long to be a time stamp
+        if (end==MAX_TIME_STAMP_LENGTH) return null;
+        try {
+            return Instant.parse(new String(payload, 0, end, StandardCharsets.US_ASCII));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void onNext(Frame frame) {
+        Instant timeStamp = getTimeStamp(frame);
+        if (timeStamp!=null) {
+            if (cursor!=null && !timeStamp.isAfter(cursor)) return;
+            cursor = timeStamp;
+        }
+        super.onNext(frame);
+    }
+
+    /*
+     * The time of the last frame collected
+     */
+    public synchronized Instant getCursor() {
+        return cursor;
+    }
+
+}
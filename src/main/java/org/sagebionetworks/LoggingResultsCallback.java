@@ -2,66 +2,187 @@ package org.sagebionetworks;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.github.dockerjava.api.async.ResultCallback;
 import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
 
+/*
+ * Collects the frames of a Docker log, exec or attach stream into an output stream.  The
+ * frames arrive on a thread of the Docker client; the caller waits for them with
+ * awaitCompletion(), which returns as soon as the stream ends, or gives up after a time
+ * limit.  Collection may be limited to a number of bytes, beyond which the stream is closed
+ * and the rest of its output dropped, and it may be cancelled at any time.  Either way what
+ * has been collected is kept, and nothing more is written once the caller has stopped
+ * waiting, so the caller may then close the output stream.
+ */
 public class LoggingResultsCallback implements ResultCallback<Frame> {
-    private boolean isComplete=false;
+    private static Logger log = LoggerFactory.getLogger(LoggingResultsCallback.class);
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] LINE_END = "\r\n".getBytes(StandardCharsets.UTF_8);
+    // each stream type's label, as Frame.toString() renders it
+    private static final Map<StreamType,byte[]> PREFIXES = new EnumMap<StreamType,byte[]>(StreamType.class);
+    private static final byte[] PREFIX_FOR_NULL = "null: ".getBytes(StandardCharsets.UTF_8);
+    static {
+        for (StreamType streamType : StreamType.values()) {
+            PREFIXES.put(streamType, (streamType+": ").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
     private OutputStream os;
-    private Thread parentThread;
-    private Integer maxTailLengthInCharacters;
-    private String tail;
+    private TailBuffer tail;
+    private Long maxBytes;
+    private long byteCount = 0L;
+    private boolean truncated = false;
+    private boolean stopped = false;
+    private Closeable stream;
+    private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
 
-    public LoggingResultsCallback(OutputStream os, Thread parentThread, Integer maxTailLengthInCharacters) {
+    public LoggingResultsCallback(OutputStream os, Integer maxTailLengthInCharacters) {
+        this(os, maxTailLengthInCharacters, null);
+    }
+
+    /*
+     * 'maxBytes' limits the bytes written to 'os', or null for no limit
+     */
+    public LoggingResultsCallback(OutputStream os, Integer maxTailLengthInCharacters, Long maxBytes) {
         this.os=os;
-        this.parentThread=parentThread;
-        this.maxTailLengthInCharacters=maxTailLengthInCharacters;
+        this.tail = maxTailLengthInCharacters==null ? null : new TailBuffer(maxTailLengthInCharacters);
+        this.maxBytes=maxBytes;
     }
 
     public void close() throws IOException {
         // no-op:  output stream will close when function ends
     }
 
-    public void onStart(Closeable closeable) {
-        // no-op:  output stream is already open
+    public synchronized void onStart(Closeable closeable) {
+        this.stream=closeable;
+        // we may have been cancelled before the stream started
+        if (stopped) closeStream();
     }
 
-    public void onNext(Frame object) {
+    /*
+     * Writes the frame as Frame.toString() would render it, followed by a line end, but
+     * copying the payload's bytes rather than decoding and re-encoding them, and without
+     * allocating anything.  The output stream should be buffered, as there are several small
+     * writes per frame.
+     */
+    public synchronized void onNext(Frame object) {
+        if (stopped) return;
         try {
-            String content = object.toString()+"\r\n";
-            IOUtils.write(content, os);
-            if (maxTailLengthInCharacters!=null) {
-                String spliced = (tail==null)?content:(tail+content);
-                int splicedLength = spliced.length();
-                if (splicedLength<=maxTailLengthInCharacters) {
-                    tail = spliced;
-                } else {
-                    tail = spliced.substring(splicedLength-maxTailLengthInCharacters, splicedLength);
-                }
+            byte[] payload = object.getPayload()==null ? EMPTY : object.getPayload();
+            // trim the payload, as Frame.toString() does
+            int start = 0;
+            int end = payload.length;
+            while (start<end && (payload[start]&0xff)<=' ') start++;
+            while (end>start && (payload[end-1]&0xff)<=' ') end--;
+            byte[] prefix = object.getStreamType()==null ? PREFIX_FOR_NULL : PREFIXES.get(object.getStreamType());
+            long frameLength = prefix.length+end-start+LINE_END.length;
+            if (maxBytes!=null && byteCount+frameLength>maxBytes) {
+                log.warn("Output has exceeded "+maxBytes+" bytes.  Will not collect any more data.");
+                truncated=true;
+                stop();
+                return;
             }
+            write(os, prefix, payload, start, end);
+            if (tail!=null) write(tail, prefix, payload, start, end);
+            byteCount += frameLength;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void onError(Throwable throwable) {
+    private static void write(OutputStream os, byte[] prefix, byte[] payload, int start, int end) throws IOException {
+        os.write(prefix);
+        os.write(payload, start, end-start);
+        os.write(LINE_END);
+    }
+
+    public synchronized void onError(Throwable throwable) {
+        if (stopped) return;
         throwable.printStackTrace(new PrintStream(os));
+        stopped=true;
+        completion.completeExceptionally(throwable);
+    }
+
+    public synchronized void onComplete() {
+        stopped=true;
+        completion.complete(null);
     }
 
-    public void onComplete() {
-        this.isComplete=true;
-        this.parentThread.interrupt();
+    private void closeStream() {
+        if (stream==null) return;
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.warn("Failed to close Docker stream", e);
+        }
+    }
+
+    /*
+     * Stop collecting, keeping what has been collected so far
+     */
+    private synchronized void stop() {
+        stopped=true;
+        closeStream();
+        completion.complete(null);
+    }
+
+    public void cancel() {
+        stop();
+    }
+
+    /*
+     * Completes when the stream ends, or collection is stopped
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /*
+     * Wait for the stream to end, for at most 'timeoutMillis'.  If the time runs out, or
+     * the calling thread is interrupted, collection is cancelled and an exception thrown.
+     */
+    public void awaitCompletion(long timeoutMillis) throws IOException {
+        try {
+            completion.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            cancel();
+            throw new IOException("Docker stream did not complete within "+timeoutMillis+" ms.");
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Docker stream.");
+        } catch (ExecutionException e) {
+            throw new IOException("Docker stream failed.", e.getCause());
+        }
     }
 
     public boolean isComplete() {
-        return this.isComplete;
+        return completion.isDone();
+    }
+
+    /*
+     * true if output was dropped for exceeding the byte limit
+     */
+    public synchronized boolean isTruncated() {
+        return truncated;
     }
 
-    public String getTail() {return tail;}
+    public synchronized String getTail() {return tail==null ? null : tail.getTail();}
 
 }
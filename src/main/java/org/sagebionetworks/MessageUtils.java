@@ -24,9 +24,17 @@ public class MessageUtils {
     public  static final String SUBMISSION_PROCESSING_STARTED_SUBJECT = "Submission Processing Started in ";
 
     private SynapseClient synapse;
+    // if not null, messages are queued here rather than sent immediately
+    private NotificationOutbox outbox;
 
     public MessageUtils(SynapseClient synapse) {
         this.synapse=synapse;
+        this.outbox=null;
+    }
+
+    public MessageUtils(SynapseClient synapse, NotificationOutbox outbox) {
+        this.synapse=synapse;
+        this.outbox=outbox;
     }
 
     private static final String LOGS_AVAILABLE_STATEMENT = " Log files produced while your workflow is running will be periodically uploaded here: https://www.synapse.org/#!Synapse:";
@@ -161,20 +169,28 @@ public class MessageUtils {
         return displayName.toString();
     }
 
-    public void sendMessage(final String userId, final String subject, final String body) throws SynapseException {
-        final MessageToUser messageMetadata = new MessageToUser();
+    public static MessageToUser createMessage(String userId, String subject) {
+        MessageToUser messageMetadata = new MessageToUser();
         messageMetadata.setRecipients(Collections.singleton(userId));
         messageMetadata.setSubject(subject);
-        try {
-            (new ExponentialBackoffRunner()).execute(new NoRefreshExecutableAdapter<Void,Void>() {
-                @Override
-                public Void execute(Void args) throws Throwable {
-                    synapse.sendStringMessage(messageMetadata, body);
-                    return null;
-                }}, null);
-        } catch (Throwable t) {
-            throw new RuntimeException(t);
+        return messageMetadata;
+    }
+
+    public void sendMessage(final String userId, final String subject, final String body) throws SynapseException {
+        sendMessage(userId, subject, body, null);
+    }
+
+    /*
+     * If there is an outbox the message is queued there, and dropped if a message with the
+     * same 'key' has been queued already.  'key' may be null.
+     */
+    public void sendMessage(final String userId, final String subject, final String body, final String key) throws SynapseException {
+        if (outbox!=null) {
+            outbox.add(userId, subject, body, key);
+            return;
         }
+        // the Synapse client retries failed calls itself
+        synapse.sendStringMessage(createMessage(userId, subject), body);
     }
 
     public static String getMessageForCompletionStatus(WorkflowUpdateStatus s) {
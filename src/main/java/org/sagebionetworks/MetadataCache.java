@@ -0,0 +1,98 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.DEFAULT_METADATA_CACHE_TTL_SECONDS;
+import static org.sagebionetworks.Constants.METADATA_CACHE_TTL_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getLongProperty;
+
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.evaluation.model.Evaluation;
+import org.sagebionetworks.repo.model.annotation.v2.Annotations;
+import org.sagebionetworks.repo.model.file.FileHandleResults;
+
+/*
+ * A read-through cache of Synapse metadata which rarely changes, such as evaluation queues
+ * and the file handles and annotations of workflow template entities.  Each value is kept
+ * for METADATA_CACHE_TTL_SECONDS, or until it is invalidated because it is known to have
+ * changed.  One cache is shared by all the users of this metadata.
+ */
+public class MetadataCache {
+
+    private static final int MAX_ENTRIES = 1000;
+
+    private static final String EVALUATION = "evaluation/";
+    private static final String FILE_HANDLES = "fileHandles/";
+    private static final String ANNOTATIONS = "annotations/";
+
+    /*
+     * Retrieves a value which is not in the cache
+     */
+    public interface Loader<V> {
+        V load() throws SynapseException;
+    }
+
+    private SynapseClient synapse;
+    private ExpiringCache<String,Object> cache;
+
+    public MetadataCache(SynapseClient synapse) {
+        this.synapse=synapse;
+        this.cache = new ExpiringCache<String,Object>(MAX_ENTRIES,
+                getLongProperty(METADATA_CACHE_TTL_SECONDS_PROPERTY_NAME, DEFAULT_METADATA_CACHE_TTL_SECONDS)*1000L);
+    }
+
+    /*
+     * Return the cached value for the given key, or load and cache it if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(String key, Loader<V> loader) throws SynapseException {
+        V value = (V)cache.get(key);
+        if (value!=null) return value;
+        value = loader.load();
+        if (value!=null) cache.put(key, value);
+        return value;
+    }
+
+    public void invalidate(String key) {
+        cache.remove(key);
+    }
+
+    public Evaluation getEvaluation(final String evaluationId) throws SynapseException {
+        return get(EVALUATION+evaluationId, new Loader<Evaluation>() {
+            @Override
+            public Evaluation load() throws SynapseException {
+                return synapse.getEvaluation(evaluationId);
+            }
+        });
+    }
+
+    public FileHandleResults getEntityFileHandlesForCurrentVersion(final String entityId) throws SynapseException {
+        return get(FILE_HANDLES+entityId, new Loader<FileHandleResults>() {
+            @Override
+            public FileHandleResults load() throws SynapseException {
+                return synapse.getEntityFileHandlesForCurrentVersion(entityId);
+            }
+        });
+    }
+
+    public Annotations getAnnotationsV2(final String entityId) throws SynapseException {
+        return get(ANNOTATIONS+entityId, new Loader<Annotations>() {
+            @Override
+            public Annotations load() throws SynapseException {
+                return synapse.getAnnotationsV2(entityId);
+            }
+        });
+    }
+
+    public void invalidateEvaluation(String evaluationId) {
+        invalidate(EVALUATION+evaluationId);
+    }
+
+    /*
+     * Forget the file handles and annotations of the given entity
+     */
+    public void invalidateEntity(String entityId) {
+        invalidate(FILE_HANDLES+entityId);
+        invalidate(ANNOTATIONS+entityId);
+    }
+
+}
@@ -0,0 +1,310 @@
+package org.sagebionetworks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseBadRequestException;
+import org.sagebionetworks.client.exceptions.SynapseForbiddenException;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Holds notifications until a background thread sends them, so that sending them does not
+ * hold up the processing of submissions.
+ *
+ * Every so often the sender sends all the waiting notifications.  Several notifications for
+ * the same recipient with the same subject are combined into a single digest.  A notification
+ * which cannot be sent is kept and tried again the next time.  Synapse calls are rate limited
+ * by the client (see SynapseClientFactory), so a burst of notifications is spread out.
+ *
+ * If given a directory, each notification is saved there until it is sent, so that it
+ * survives a restart.  A notification is deleted only after it has been sent, so it is
+ * sent at least once, and possibly twice if we stop in between.  A notification may carry
+ * a key.  A notification is dropped if one with the same key is waiting or was recently sent,
+ * so that a problem reported on every pass is only reported once.
+ *
+ * A notification which Synapse rejects as invalid (e.g. for an unknown recipient), or which
+ * still cannot be sent after MAX_SEND_ATTEMPTS tries, is given up on:  it is logged and, if
+ * there is a directory, moved to its FAILED_DIR_NAME subdirectory.
+ */
+public class NotificationOutbox {
+    private static Logger log = LoggerFactory.getLogger(NotificationOutbox.class);
+
+    private static final String FILE_SUFFIX = ".json";
+    // the number of keys of sent notifications to remember
+    private static final int MAX_SENT_KEYS = 10000;
+    private static final String DIGEST_SEPARATOR = "\n\n--------\n\n";
+    private static final int MAX_SEND_ATTEMPTS = 20;
+    private static final String FAILED_DIR_NAME = "failed";
+
+    private static final String SEQUENCE = "sequence";
+    private static final String RECIPIENT_ID = "recipientId";
+    private static final String SUBJECT = "subject";
+    private static final String BODY = "body";
+    private static final String KEY = "key";
+    private static final String ATTEMPTS = "attempts";
+
+    private static class Notification {
+        long sequence;
+        String recipientId;
+        String subject;
+        String body;
+        String key;
+        int attempts;
+    }
+
+    private SynapseClient synapse;
+    private File dir;
+    private long nextSequence = 0L;
+    private List<Notification> pending = new ArrayList<Notification>();
+    private Set<String> pendingKeys = new HashSet<String>();
+    private Map<String,Boolean> sentKeys = new LinkedHashMap<String,Boolean>(16, 0.75f, /*accessOrder*/true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return size()>MAX_SENT_KEYS;
+        }
+    };
+    private ScheduledExecutorService sender = null;
+
+    /*
+     * An outbox held only in memory
+     */
+    public NotificationOutbox(SynapseClient synapse) {
+        this.synapse=synapse;
+        this.dir=null;
+    }
+
+    /*
+     * An outbox saved in the given directory, starting with any notifications left there
+     */
+    public NotificationOutbox(SynapseClient synapse, File dir) throws IOException {
+        this.synapse=synapse;
+        this.dir=dir;
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Could not create "+dir.getAbsolutePath());
+        File[] files = dir.listFiles();
+        if (files==null) throw new IOException("Could not list "+dir.getAbsolutePath());
+        for (File file : files) {
+            if (!file.getName().endsWith(FILE_SUFFIX)) continue;
+            try {
+                JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                Notification notification = new Notification();
+                notification.sequence = json.getLong(SEQUENCE);
+                notification.recipientId = json.getString(RECIPIENT_ID);
+                notification.subject = json.getString(SUBJECT);
+                notification.body = json.getString(BODY);
+                notification.key = json.optString(KEY, null);
+                notification.attempts = json.optInt(ATTEMPTS, 0);
+                pending.add(notification);
+                if (notification.key!=null) pendingKeys.add(notification.key);
+                nextSequence = Math.max(nextSequence, notification.sequence+1);
+            } catch (Exception e) {
+                log.warn("Could not read notification "+file.getAbsolutePath()+".  It will not be sent.", e);
+            }
+        }
+        pending.sort(new Comparator<Notification>() {
+            @Override
+            public int compare(Notification a, Notification b) {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        if (!pending.isEmpty()) log.info("Found "+pending.size()+" notification(s) waiting to be sent.");
+    }
+
+    /*
+     * Start sending the waiting notifications every 'periodSeconds' seconds
+     */
+    public synchronized void start(long periodSeconds) {
+        if (sender!=null) return;
+        sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "notification-sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sender.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send();
+                } catch (RuntimeException e) {
+                    log.error("Failed to send notifications", e);
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Queue a notification.  'key' may be null.
+     */
+    public synchronized void add(String recipientId, String subject, String body, String key) {
+        if (key!=null && (pendingKeys.contains(key) || sentKeys.containsKey(key))) {
+            log.info("Notification '"+subject+"' to "+recipientId+" has already been queued.");
+            return;
+        }
+        Notification notification = new Notification();
+        notification.sequence = nextSequence++;
+        notification.recipientId = recipientId;
+        notification.subject = subject;
+        notification.body = body;
+        notification.key = key;
+        pending.add(notification);
+        if (key!=null) pendingKeys.add(key);
+        save(notification);
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    private File getFile(Notification notification) {
+        return new File(dir, notification.sequence+FILE_SUFFIX);
+    }
+
+    private void save(Notification notification) {
+        if (dir==null) return;
+        JSONObject json = new JSONObject();
+        json.put(SEQUENCE, notification.sequence);
+        json.put(RECIPIENT_ID, notification.recipientId);
+        json.put(SUBJECT, notification.subject);
+        json.put(BODY, notification.body);
+        if (notification.key!=null) json.put(KEY, notification.key);
+        if (notification.attempts>0) json.put(ATTEMPTS, notification.attempts);
+        File file = getFile(notification);
+        File tempFile = new File(dir, notification.sequence+".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                fos.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                fos.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the notification is still sent unless we stop first
+            log.warn("Could not save notification to "+file.getAbsolutePath(), e);
+        }
+    }
+
+    private synchronized void sent(List<Notification> notifications) {
+        for (Notification notification : notifications) {
+            pending.remove(notification);
+            if (notification.key!=null) {
+                pendingKeys.remove(notification.key);
+                sentKeys.put(notification.key, true);
+            }
+            if (dir!=null && !getFile(notification).delete()) {
+                log.warn("Could not delete "+getFile(notification).getAbsolutePath());
+            }
+        }
+    }
+
+    /*
+     * Give up on the given notifications, keeping them in the 'failed' directory
+     */
+    private synchronized void failed(List<Notification> notifications) {
+        for (Notification notification : notifications) {
+            pending.remove(notification);
+            if (notification.key!=null) {
+                pendingKeys.remove(notification.key);
+                // don't queue the same notification again
+                sentKeys.put(notification.key, true);
+            }
+            if (dir==null) continue;
+            File failedDir = new File(dir, FAILED_DIR_NAME);
+            File file = getFile(notification);
+            try {
+                if (!failedDir.exists() && !failedDir.mkdirs()) throw new IOException("Could not create "+failedDir.getAbsolutePath());
+                Files.move(file.toPath(), new File(failedDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                log.warn("Could not move "+file.getAbsolutePath()+" to "+failedDir.getAbsolutePath(), e);
+                file.delete();
+            }
+        }
+    }
+
+    /*
+     * true if Synapse will never accept the message, so there is no point trying again
+     */
+    private static boolean isPermanentFailure(Exception e) {
+        return e instanceof SynapseBadRequestException ||
+                e instanceof SynapseForbiddenException ||
+                e instanceof SynapseNotFoundException;
+    }
+
+    /*
+     * Send all the waiting notifications, a digest per recipient and subject
+     */
+    public void send() {
+        Map<List<String>,List<Notification>> digests = new LinkedHashMap<List<String>,List<Notification>>();
+        synchronized (this) {
+            for (Notification notification : pending) {
+                List<String> recipientAndSubject = Arrays.asList(notification.recipientId, notification.subject);
+                List<Notification> digest = digests.get(recipientAndSubject);
+                if (digest==null) {
+                    digest = new ArrayList<Notification>();
+                    digests.put(recipientAndSubject, digest);
+                }
+                digest.add(notification);
+            }
+        }
+        for (List<String> recipientAndSubject : digests.keySet()) {
+            List<Notification> digest = digests.get(recipientAndSubject);
+            String subject = recipientAndSubject.get(1);
+            StringBuilder body = new StringBuilder();
+            for (Notification notification : digest) {
+                if (body.length()>0) body.append(DIGEST_SEPARATOR);
+                body.append(notification.body);
+            }
+            if (digest.size()>1) subject = subject+" ("+digest.size()+" notifications)";
+            try {
+                synapse.sendStringMessage(MessageUtils.createMessage(recipientAndSubject.get(0), subject), body.toString());
+            } catch (Exception e) {
+                if (isPermanentFailure(e)) {
+                    log.error("Synapse rejected '"+subject+"' to "+recipientAndSubject.get(0)+".  Will not try again.  Message is: "+e.getMessage());
+                    failed(digest);
+                    continue;
+                }
+                List<Notification> exhausted = new ArrayList<Notification>();
+                synchronized (this) {
+                    for (Notification notification : digest) {
+                        if (++notification.attempts>=MAX_SEND_ATTEMPTS) {
+                            exhausted.add(notification);
+                        } else {
+                            save(notification);
+                        }
+                    }
+                }
+                if (exhausted.isEmpty()) {
+                    log.warn("Failed to send '"+subject+"' to "+recipientAndSubject.get(0)+".  Will try again.  Message is: "+e.getMessage());
+                } else {
+                    log.error("Failed to send '"+subject+"' to "+recipientAndSubject.get(0)+" after "+MAX_SEND_ATTEMPTS+
+                            " attempts.  Will not try again.  Message is: "+e.getMessage());
+                    failed(exhausted);
+                }
+                continue;
+            }
+            sent(digest);
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package org.sagebionetworks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A local, crash-safe record of the submissions this Orchestrator is running:  for each
+ * submission its workflow job, its upload folders and when its logs were last uploaded.
+ * The same facts are written to the submissions' annotations in Synapse, but keeping them
+ * locally spares us from reading them back from Synapse.
+ *
+ * Changes are appended to a log file, which is flushed to disk on each change.  From time
+ * to time the whole state is written to a snapshot file and the log is cleared.  Opening the
+ * journal reads the snapshot and replays the log.  Each log entry holds the whole state of a
+ * submission, so replaying an entry twice does no harm.
+ */
+public class StateJournal {
+    private static Logger log = LoggerFactory.getLogger(StateJournal.class);
+
+    private static final String SNAPSHOT_FILE_NAME = "snapshot.json";
+    private static final String LOG_FILE_NAME = "journal.log";
+    // the number of log entries after which we write a new snapshot
+    private static final int MAX_LOG_ENTRIES = 1000;
+
+    private static final String OPERATION = "op";
+    private static final String PUT = "put";
+    private static final String REMOVE = "remove";
+    private static final String ENTRY = "entry";
+    private static final String SUBMISSION_ID = "submissionId";
+
+    public static class Entry {
+        private String submissionId;
+        private String evaluationId;
+        private String workflowId;
+        private String sharedFolderId;
+        private String lockedFolderId;
+        private Long lastLogUpload;
+        private boolean startedMessageSent;
+
+        public Entry(String submissionId) {
+            this.submissionId=submissionId;
+        }
+
+        Entry(Entry that) {
+            this.submissionId=that.submissionId;
+            this.evaluationId=that.evaluationId;
+            this.workflowId=that.workflowId;
+            this.sharedFolderId=that.sharedFolderId;
+            this.lockedFolderId=that.lockedFolderId;
+            this.lastLogUpload=that.lastLogUpload;
+            this.startedMessageSent=that.startedMessageSent;
+        }
+
+        public String getSubmissionId() {
+            return submissionId;
+        }
+        public String getEvaluationId() {
+            return evaluationId;
+        }
+        public void setEvaluationId(String evaluationId) {
+            this.evaluationId = evaluationId;
+        }
+        public String getWorkflowId() {
+            return workflowId;
+        }
+        public void setWorkflowId(String workflowId) {
+            this.workflowId = workflowId;
+        }
+        public String getSharedFolderId() {
+            return sharedFolderId;
+        }
+        public void setSharedFolderId(String sharedFolderId) {
+            this.sharedFolderId = sharedFolderId;
+        }
+        public String getLockedFolderId() {
+            return lockedFolderId;
+        }
+        public void setLockedFolderId(String lockedFolderId) {
+            this.lockedFolderId = lockedFolderId;
+        }
+        public Long getLastLogUpload() {
+            return lastLogUpload;
+        }
+        public void setLastLogUpload(Long lastLogUpload) {
+            this.lastLogUpload = lastLogUpload;
+        }
+        public boolean isStartedMessageSent() {
+            return startedMessageSent;
+        }
+        public void setStartedMessageSent(boolean startedMessageSent) {
+            this.startedMessageSent = startedMessageSent;
+        }
+
+        JSONObject toJSON() {
+            JSONObject result = new JSONObject();
+            result.put(SUBMISSION_ID, submissionId);
+            if (evaluationId!=null) result.put("evaluationId", evaluationId);
+            if (workflowId!=null) result.put("workflowId", workflowId);
+            if (sharedFolderId!=null) result.put("sharedFolderId", sharedFolderId);
+            if (lockedFolderId!=null) result.put("lockedFolderId", lockedFolderId);
+            if (lastLogUpload!=null) result.put("lastLogUpload", lastLogUpload);
+            if (startedMessageSent) result.put("startedMessageSent", true);
+            return result;
+        }
+
+        static Entry fromJSON(JSONObject json) {
+            Entry result = new Entry(json.getString(SUBMISSION_ID));
+            result.evaluationId = json.optString("evaluationId", null);
+            result.workflowId = json.optString("workflowId", null);
+            result.sharedFolderId = json.optString("sharedFolderId", null);
+            result.lockedFolderId = json.optString("lockedFolderId", null);
+            result.lastLogUpload = json.has("lastLogUpload") ? json.getLong("lastLogUpload") : null;
+            result.startedMessageSent = json.optBoolean("startedMessageSent", false);
+            return result;
+        }
+    }
+
+    private File snapshotFile;
+    private File logFile;
+    private FileOutputStream logStream = null;
+    private int logEntries = 0;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public StateJournal(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Unable to create "+dir.getAbsolutePath());
+        this.snapshotFile = new File(dir, SNAPSHOT_FILE_NAME);
+        this.logFile = new File(dir, LOG_FILE_NAME);
+        replay();
+        // start afresh from a snapshot of what we've read
+        writeSnapshot();
+        log.info("Read "+entries.size()+" submission(s) from the state journal in "+dir.getAbsolutePath());
+    }
+
+    private void replay() throws IOException {
+        if (snapshotFile.exists()) {
+            JSONObject snapshot = new JSONObject(new String(Files.readAllBytes(snapshotFile.toPath()), StandardCharsets.UTF_8));
+            for (Iterator<String> it = snapshot.keys(); it.hasNext();) {
+                String submissionId = it.next();
+                entries.put(submissionId, Entry.fromJSON(snapshot.getJSONObject(submissionId)));
+            }
+        }
+        if (logFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(logFile.toPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line=reader.readLine())!=null) {
+                    if (line.trim().isEmpty()) continue;
+                    JSONObject change;
+                    try {
+                        change = new JSONObject(line);
+                    } catch (JSONException e) {
+                        // a change cut short by a crash.  It never took effect.
+                        log.warn("Ignoring incomplete entry in "+logFile.getAbsolutePath()+": "+line);
+                        continue;
+                    }
+                    apply(change);
+                }
+            }
+        }
+    }
+
+    private void apply(JSONObject change) {
+        String operation = change.getString(OPERATION);
+        if (PUT.equals(operation)) {
+            Entry entry = Entry.fromJSON(change.getJSONObject(ENTRY));
+            entries.put(entry.getSubmissionId(), entry);
+        } else if (REMOVE.equals(operation)) {
+            entries.remove(change.getString(SUBMISSION_ID));
+        } else {
+            throw new IllegalStateException("Unexpected operation "+operation);
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        JSONObject snapshot = new JSONObject();
+        for (Entry entry : entries.values()) snapshot.put(entry.getSubmissionId(), entry.toJSON());
+        File tempFile = new File(snapshotFile.getParentFile(), SNAPSHOT_FILE_NAME+".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            fos.write(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+            fos.getChannel().force(true);
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the snapshot now has everything in the log
+        if (logStream!=null) logStream.close();
+        logStream = new FileOutputStream(logFile, /*append*/false);
+        logStream.getChannel().force(true);
+        logEntries = 0;
+    }
+
+    private void append(JSONObject change) throws IOException {
+        apply(change);
+        logStream.write((change.toString()+"\n").getBytes(StandardCharsets.UTF_8));
+        logStream.getChannel().force(false);
+        if (++logEntries>=MAX_LOG_ENTRIES) writeSnapshot();
+    }
+
+    /*
+     * Returns a copy of the entry for the given submission, or null if there is none
+     */
+    public synchronized Entry get(String submissionId) {
+        Entry entry = entries.get(submissionId);
+        return entry==null ? null : new Entry(entry);
+    }
+
+    public synchronized String getSubmissionIdForWorkflow(String workflowId) {
+        for (Entry entry : entries.values()) {
+            if (workflowId.equals(entry.getWorkflowId())) return entry.getSubmissionId();
+        }
+        return null;
+    }
+
+    public synchronized Set<String> getSubmissionIds() {
+        return new HashSet<String>(entries.keySet());
+    }
+
+    public synchronized void put(Entry entry) throws IOException {
+        JSONObject change = new JSONObject();
+        change.put(OPERATION, PUT);
+        change.put(ENTRY, entry.toJSON());
+        append(change);
+    }
+
+    public synchronized void remove(String submissionId) throws IOException {
+        if (!entries.containsKey(submissionId)) return;
+        JSONObject change = new JSONObject();
+        change.put(OPERATION, REMOVE);
+        change.put(SUBMISSION_ID, submissionId);
+        append(change);
+    }
+
+    /*
+     * Remove the entries for all but the given submissions
+     */
+    public synchronized void retainOnly(Collection<String> submissionIds) throws IOException {
+        for (String submissionId : getSubmissionIds()) {
+            if (!submissionIds.contains(submissionId)) remove(submissionId);
+        }
+    }
+
+}
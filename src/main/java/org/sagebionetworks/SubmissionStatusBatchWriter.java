@@ -0,0 +1,131 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.EvaluationUtils.applyModifications;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.evaluation.model.SubmissionStatusBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Collects the submission status updates made during a pass and writes them to Synapse
+ * together, a batch per evaluation queue, rather than one request per submission.
+ *
+ * Synapse rejects a whole batch if any status in it is out of date.  In that case (or if
+ * the batch fails for any other reason) we fall back to updating the statuses in the batch
+ * one at a time, which rereads and reapplies the modifications to any status found to be
+ * out of date.
+ *
+ * A writer is flushed once, at the end of its pass.  An update added after that, e.g. by
+ * an update which overran the pass, is refused rather than left unwritten.
+ */
+public class SubmissionStatusBatchWriter {
+    private static Logger log = LoggerFactory.getLogger(SubmissionStatusBatchWriter.class);
+
+    // the most statuses Synapse accepts in one batch
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /*
+     * Told the outcome of an update, once the batch it is in has been written
+     */
+    public interface Outcome {
+        void written() throws Throwable;
+        void failed(Throwable t);
+    }
+
+    private static class PendingUpdate {
+        SubmissionStatus status;
+        SubmissionStatusModifications statusMods;
+        Outcome outcome;
+    }
+
+    private SynapseClient synapse;
+    private SubmissionUtils submissionUtils;
+    private Map<String,List<PendingUpdate>> pendingUpdates = new LinkedHashMap<String,List<PendingUpdate>>();
+    private boolean flushed = false;
+
+    public SubmissionStatusBatchWriter(SynapseClient synapse, SubmissionUtils submissionUtils) {
+        this.synapse=synapse;
+        this.submissionUtils=submissionUtils;
+    }
+
+    /*
+     * Queue the given update, to be written by flush()
+     *
+     * @throws IllegalStateException if the writer has already been flushed
+     */
+    public synchronized void add(String evaluationId, SubmissionStatus status, SubmissionStatusModifications statusMods, Outcome outcome) {
+        if (flushed) throw new IllegalStateException("Submission status "+status.getId()+
+                " was added after the batch was written.  It has not been written.");
+        PendingUpdate update = new PendingUpdate();
+        update.status=status;
+        update.statusMods=statusMods;
+        update.outcome=outcome;
+        List<PendingUpdate> updates = pendingUpdates.get(evaluationId);
+        if (updates==null) {
+            updates = new ArrayList<PendingUpdate>();
+            pendingUpdates.put(evaluationId, updates);
+        }
+        updates.add(update);
+    }
+
+    /*
+     * Write all the queued updates, telling each its outcome.  No more may be added.
+     */
+    public void flush() {
+        Map<String,List<PendingUpdate>> toWrite;
+        synchronized (this) {
+            if (flushed) return;
+            flushed = true;
+            toWrite = pendingUpdates;
+            pendingUpdates = new LinkedHashMap<String,List<PendingUpdate>>();
+        }
+        for (String evaluationId : toWrite.keySet()) {
+            List<PendingUpdate> updates = toWrite.get(evaluationId);
+            for (int start=0; start<updates.size(); start+=MAX_BATCH_SIZE) {
+                writeBatch(evaluationId, updates.subList(start, Math.min(start+MAX_BATCH_SIZE, updates.size())));
+            }
+        }
+    }
+
+    private void writeBatch(String evaluationId, List<PendingUpdate> updates) {
+        List<SubmissionStatus> statuses = new ArrayList<SubmissionStatus>();
+        for (PendingUpdate update : updates) {
+            applyModifications(update.status, update.statusMods);
+            statuses.add(update.status);
+        }
+        SubmissionStatusBatch batch = new SubmissionStatusBatch();
+        batch.setStatuses(statuses);
+        batch.setIsFirstBatch(true);
+        batch.setIsLastBatch(true);
+        boolean batchWritten = false;
+        try {
+            synapse.updateSubmissionStatusBatch(evaluationId, batch);
+            batchWritten = true;
+        } catch (SynapseException|RuntimeException e) {
+            log.warn("Failed to write a batch of "+updates.size()+" submission statuses for evaluation "+evaluationId+
+                    ".  Will write them one at a time.  Message is: "+e.getMessage());
+        }
+        for (PendingUpdate update : updates) {
+            try {
+                if (!batchWritten) submissionUtils.updateSubmissionStatus(update.status, update.statusMods);
+            } catch (Throwable t) {
+                update.outcome.failed(t);
+                continue;
+            }
+            try {
+                update.outcome.written();
+            } catch (Throwable t) {
+                update.outcome.failed(t);
+            }
+        }
+    }
+
+}
@@ -4,11 +4,6 @@ import org.apache.commons.lang.StringUtils;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
 import org.sagebionetworks.client.exceptions.SynapseException;
-import org.sagebionetworks.client.exceptions.SynapseLockedException;
-import org.sagebionetworks.client.exceptions.SynapseServerException;
-import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
-import org.sagebionetworks.client.exceptions.SynapseTableUnavailableException;
-import org.sagebionetworks.client.exceptions.SynapseTooManyRequestsException;
 import org.sagebionetworks.evaluation.model.Submission;
 import org.sagebionetworks.evaluation.model.SubmissionContributor;
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
@@ -24,18 +19,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 import static org.sagebionetworks.Constants.DEFAULT_NUM_RETRY_ATTEMPTS;
-import static org.sagebionetworks.Constants.NO_RETRY_EXCEPTIONS;
-import static org.sagebionetworks.Constants.NO_RETRY_STATUSES;
+import static org.sagebionetworks.Constants.DEFAULT_SUBMITTER_CACHE_SIZE;
+import static org.sagebionetworks.Constants.DEFAULT_SUBMITTER_CACHE_TTL_SECONDS;
+import static org.sagebionetworks.Constants.SUBMITTER_CACHE_SIZE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SUBMITTER_CACHE_TTL_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.EvaluationUtils.ADMIN_ANNOTS_ARE_PRIVATE;
 import static org.sagebionetworks.EvaluationUtils.FAILURE_REASON;
 import static org.sagebionetworks.EvaluationUtils.JOB_LAST_UPDATED_TIME_STAMP;
+import static org.sagebionetworks.EvaluationUtils.LEASE_EXPIRES;
+import static org.sagebionetworks.EvaluationUtils.LEASE_OWNER;
 import static org.sagebionetworks.EvaluationUtils.PUBLIC_ANNOTATION_SETTING;
 import static org.sagebionetworks.EvaluationUtils.applyModifications;
+import static org.sagebionetworks.Utils.getIntegerProperty;
+import static org.sagebionetworks.Utils.getLongProperty;
 
 public class SubmissionUtils {
 
@@ -55,28 +60,81 @@ public class SubmissionUtils {
 
     private SynapseClient synapse;
 
+    private MessageUtils messageUtils;
+
     public SubmissionUtils(SynapseClient synapse) {
         this.synapse=synapse;
+        this.messageUtils=new MessageUtils(synapse);
+    }
+
+    /*
+     * Send notifications through the given MessageUtils, e.g. one with an outbox
+     */
+    public void setMessageUtils(MessageUtils messageUtils) {
+        this.messageUtils=messageUtils;
     }
 
-    private static final ExponentialBackoffRunner SUBMISSION_STATUS_UPDATE_RUNNER;
-    static {
-        List<Class<? extends SynapseServerException>> noRetryExceptions = new ArrayList<Class<? extends SynapseServerException>>(NO_RETRY_EXCEPTIONS);
-        // this is the one exception we DO want to retry on!
-        boolean foundit = noRetryExceptions.remove(SynapseConflictingUpdateException.class);
-        // these are being retried on the lower level so we do NOT want to retry on them here too
-        noRetryExceptions.add(SynapseServiceUnavailable.class);
-        noRetryExceptions.add(SynapseTooManyRequestsException.class);
-        noRetryExceptions.add(SynapseLockedException.class);
-        noRetryExceptions.add(SynapseTableUnavailableException.class);
+    // The Synapse client retries all other errors itself, so here we retry only conflicting updates, with a refreshed status
+    private static final ExponentialBackoffRunner SUBMISSION_STATUS_UPDATE_RUNNER = new ExponentialBackoffRunner(
+            Collections.<Class<? extends SynapseException>>singletonList(SynapseConflictingUpdateException.class), DEFAULT_NUM_RETRY_ATTEMPTS);
 
-        SUBMISSION_STATUS_UPDATE_RUNNER = new ExponentialBackoffRunner(noRetryExceptions, NO_RETRY_STATUSES, DEFAULT_NUM_RETRY_ATTEMPTS);
+    /*
+     * A submission is leased by another Orchestrator instance if that instance has claimed it
+     * and its claim has not expired.
+     */
+    public static boolean isLeasedByAnother(SubmissionStatus status, String instanceId, long now) {
+        String owner = EvaluationUtils.getStringAnnotation(status, LEASE_OWNER);
+        if (owner==null || owner.equals(instanceId)) return false;
+        Long expires = EvaluationUtils.getLongAnnotation(status, LEASE_EXPIRES);
+        return expires!=null && expires>now;
+    }
+
+    public static boolean isLeasedBy(SubmissionStatus status, String instanceId) {
+        return instanceId.equals(EvaluationUtils.getStringAnnotation(status, LEASE_OWNER));
+    }
+
+    /*
+     * Add the modifications which give (or renew) the lease on a submission to the given instance
+     */
+    public static void setLease(SubmissionStatusModifications statusMods, String instanceId, long leaseMillis) {
+        EvaluationUtils.setAnnotation(statusMods, LEASE_OWNER, instanceId, ADMIN_ANNOTS_ARE_PRIVATE);
+        EvaluationUtils.setAnnotation(statusMods, LEASE_EXPIRES, System.currentTimeMillis()+leaseMillis, ADMIN_ANNOTS_ARE_PRIVATE);
+    }
+
+    /*
+     * Claim the given submission for the given Orchestrator instance.  The claim relies on Synapse's
+     * etag check:  If another instance updates the submission first, we reread it and only retry if
+     * it is still unclaimed and still in the same state.  Returns the updated status, or null if
+     * another instance holds the submission.
+     */
+    public SubmissionStatus claimSubmission(SubmissionStatus submissionStatus, final String instanceId, final long leaseMillis) throws SynapseException {
+        final SubmissionStatusEnum expectedState = submissionStatus.getStatus();
+        SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+        setLease(statusMods, instanceId, leaseMillis);
+        SubmissionStatus result = updateSubmissionStatus(submissionStatus, statusMods, new Predicate<SubmissionStatus>() {
+            @Override
+            public boolean test(SubmissionStatus status) {
+                return status.getStatus()==expectedState && !isLeasedByAnother(status, instanceId, System.currentTimeMillis());
+            }
+        });
+        if (result==null) log.info("Submission "+submissionStatus.getId()+" has been claimed by another Orchestrator instance.");
+        return result;
     }
 
     public SubmissionStatus updateSubmissionStatus(SubmissionStatus submissionStatus, SubmissionStatusModifications statusMods) throws SynapseException {
+        return updateSubmissionStatus(submissionStatus, statusMods, null);
+    }
+
+    /*
+     * If 'precondition' is not null, it is checked before each attempt, including those made with a
+     * freshly read status after a conflicting update.  If it fails nothing is updated and null is returned.
+     */
+    public SubmissionStatus updateSubmissionStatus(SubmissionStatus submissionStatus, final SubmissionStatusModifications statusMods,
+            final Predicate<SubmissionStatus> precondition) throws SynapseException {
         try {
             return SUBMISSION_STATUS_UPDATE_RUNNER.execute(new Executable<SubmissionStatus,SubmissionStatus>(){
                 public SubmissionStatus execute(SubmissionStatus status) throws SynapseException {
+                    if (precondition!=null && !precondition.test(status)) return null;
                     applyModifications(status, statusMods);
                     return synapse.updateSubmissionStatus(status);
                 }
@@ -112,7 +170,7 @@ public class SubmissionUtils {
         }
         EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), false);
         updateSubmissionStatus(ss, statusMods);
-        (new MessageUtils(synapse)).sendMessage(messageRecipientId, messageSubject,  messageBody);
+        messageUtils.sendMessage(messageRecipientId, messageSubject,  messageBody, messageSubject+"/"+ss.getId());
     }
 
     // docker.synapse.org/syn123/foo/bar@sha256:...  ->  foo/bar
@@ -151,7 +209,41 @@ public class SubmissionUtils {
         return submission.getTeamId()==null ? submission.getUserId(): submission.getTeamId();
     }
 
-    private Map<String,String> idToNameCache = new HashMap<String,String>();
+    // the most IDs to look up in one bulk request
+    private static final int BULK_LOOKUP_SIZE = 100;
+
+    // accessed by the concurrent workflow job updates
+    private ExpiringCache<String,String> idToNameCache = new ExpiringCache<String,String>(
+            getIntegerProperty(SUBMITTER_CACHE_SIZE_PROPERTY_NAME, DEFAULT_SUBMITTER_CACHE_SIZE),
+            getLongProperty(SUBMITTER_CACHE_TTL_SECONDS_PROPERTY_NAME, DEFAULT_SUBMITTER_CACHE_TTL_SECONDS)*1000L);
+
+    /*
+     * Look up, in bulk, the names of the submitters of the given submissions which are not
+     * already cached, so that getSubmitter() need not look them up one at a time.
+     */
+    public void prefetchSubmitters(Collection<Submission> submissions) throws SynapseException {
+        Set<Long> userIds = new LinkedHashSet<Long>();
+        Set<Long> teamIds = new LinkedHashSet<Long>();
+        for (Submission submission : submissions) {
+            String id = getSubmittingUserOrTeamId(submission);
+            if (idToNameCache.get(id)!=null) continue;
+            if (submission.getTeamId()==null) userIds.add(Long.parseLong(id)); else teamIds.add(Long.parseLong(id));
+        }
+        List<Long> userIdList = new ArrayList<Long>(userIds);
+        for (int start=0; start<userIdList.size(); start+=BULK_LOOKUP_SIZE) {
+            List<Long> ids = userIdList.subList(start, Math.min(start+BULK_LOOKUP_SIZE, userIdList.size()));
+            for (UserProfile userProfile : synapse.listUserProfiles(ids)) {
+                idToNameCache.put(userProfile.getOwnerId(), MessageUtils.getDisplayNameWithUserName(userProfile));
+            }
+        }
+        List<Long> teamIdList = new ArrayList<Long>(teamIds);
+        for (int start=0; start<teamIdList.size(); start+=BULK_LOOKUP_SIZE) {
+            List<Long> ids = teamIdList.subList(start, Math.min(start+BULK_LOOKUP_SIZE, teamIdList.size()));
+            for (Team team : synapse.listTeams(ids)) {
+                idToNameCache.put(team.getId(), team.getName());
+            }
+        }
+    }
 
     public Submitter getSubmitter(Submission sub) throws SynapseException {
         String submittingUserOrTeamId;
@@ -1,17 +1,32 @@
 package org.sagebionetworks;
 
 import static org.sagebionetworks.Constants.DEFAULT_NUM_RETRY_ATTEMPTS;
+import static org.sagebionetworks.Constants.DEFAULT_SYNAPSE_MESSAGE_CALLS_PER_SECOND;
+import static org.sagebionetworks.Constants.DEFAULT_SYNAPSE_IO_THREAD_COUNT;
+import static org.sagebionetworks.Constants.DEFAULT_SYNAPSE_READ_CALLS_PER_SECOND;
+import static org.sagebionetworks.Constants.DEFAULT_SYNAPSE_UPLOAD_CALLS_PER_SECOND;
+import static org.sagebionetworks.Constants.DEFAULT_SYNAPSE_WRITE_CALLS_PER_SECOND;
 import static org.sagebionetworks.Constants.NO_RETRY_EXCEPTIONS;
 import static org.sagebionetworks.Constants.NO_RETRY_STATUSES;
+import static org.sagebionetworks.Constants.SYNAPSE_IO_THREAD_COUNT_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SYNAPSE_MESSAGE_CALLS_PER_SECOND_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SYNAPSE_READ_CALLS_PER_SECOND_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SYNAPSE_UPLOAD_CALLS_PER_SECOND_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SYNAPSE_WRITE_CALLS_PER_SECOND_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getDoubleProperty;
+import static org.sagebionetworks.Utils.getIntegerProperty;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.EnumMap;
+import java.util.Map;
 
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.SynapseClientImpl;
 import org.sagebionetworks.client.SynapseProfileProxy;
+import org.sagebionetworks.client.exceptions.SynapseTooManyRequestsException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +35,46 @@ public class SynapseClientFactory {
 
     private static Logger log = LoggerFactory.getLogger(SynapseClientFactory.class);
 
+    /*
+     * Calls are rate limited by class, each class having its own limit.  LOCAL calls, e.g.
+     * setting the authorization token, don't go to Synapse so are neither limited nor retried.
+     */
+    public enum CallClass {READ, WRITE, UPLOAD, MESSAGE, LOCAL}
+
+    // shared by all proxies, so that the limits apply to all the traffic from this process
+    private static Map<CallClass,TokenBucket> rateLimiters = null;
+
+    private static synchronized TokenBucket getRateLimiter(CallClass callClass) {
+        if (rateLimiters==null) {
+            rateLimiters = new EnumMap<CallClass,TokenBucket>(CallClass.class);
+            rateLimiters.put(CallClass.READ, new TokenBucket(getDoubleProperty(
+                    SYNAPSE_READ_CALLS_PER_SECOND_PROPERTY_NAME, DEFAULT_SYNAPSE_READ_CALLS_PER_SECOND)));
+            rateLimiters.put(CallClass.WRITE, new TokenBucket(getDoubleProperty(
+                    SYNAPSE_WRITE_CALLS_PER_SECOND_PROPERTY_NAME, DEFAULT_SYNAPSE_WRITE_CALLS_PER_SECOND)));
+            rateLimiters.put(CallClass.UPLOAD, new TokenBucket(getDoubleProperty(
+                    SYNAPSE_UPLOAD_CALLS_PER_SECOND_PROPERTY_NAME, DEFAULT_SYNAPSE_UPLOAD_CALLS_PER_SECOND)));
+            rateLimiters.put(CallClass.MESSAGE, new TokenBucket(getDoubleProperty(
+                    SYNAPSE_MESSAGE_CALLS_PER_SECOND_PROPERTY_NAME, DEFAULT_SYNAPSE_MESSAGE_CALLS_PER_SECOND)));
+        }
+        return rateLimiters.get(callClass);
+    }
+
+    /*
+     * Classify a client method by its name
+     */
+    public static CallClass getCallClass(Method method) {
+        // every call to Synapse can fail, so a method which declares no exception is local
+        if (method.getExceptionTypes().length==0) return CallClass.LOCAL;
+        String name = method.getName();
+        if (name.contains("Message")) return CallClass.MESSAGE;
+        if (name.startsWith("upload") || name.startsWith("multipart") ||
+                (name.startsWith("create") && name.endsWith("FileHandle"))) return CallClass.UPLOAD;
+        if (name.startsWith("get") || name.startsWith("list") || name.startsWith("query") ||
+                name.startsWith("is") || name.startsWith("can") || name.startsWith("download") ||
+                name.startsWith("lookup")) return CallClass.READ;
+        return CallClass.WRITE;
+    }
+
     private static SynapseClient createSynapseClientIntern() {
         SynapseClientImpl scIntern = new SynapseClientImpl();
         scIntern.setAuthEndpoint("https://repo-prod.prod.sagebase.org/auth/v1");
@@ -40,14 +95,28 @@ public class SynapseClientFactory {
         InvocationHandler handler = new InvocationHandler() {
             public Object invoke(final Object proxy, final Method method, final Object[] outerArgs)
                     throws Throwable {
+                CallClass callClass = getCallClass(method);
+                if (callClass==CallClass.LOCAL) {
+                    try {
+                        return method.invoke(underlying, outerArgs);
+                    } catch (InvocationTargetException e) {
+                        if (e.getCause()==null) throw e; else throw e.getCause();
+                    }
+                }
+                final TokenBucket rateLimiter = getRateLimiter(callClass);
                 return exponentialBackoffRunner.execute(new Executable<Object,Object[]>() {
                     public Object execute(Object[] args) throws Throwable {
+                        rateLimiter.acquire();
                         try {
                             Object result = method.invoke(underlying, args);
                             return result;
                         } catch (IllegalAccessException  e) {
                             throw new RuntimeException(e);
                         } catch (InvocationTargetException e) {
+                            if (e.getCause() instanceof SynapseTooManyRequestsException) {
+                                log.warn("Rate limited by Synapse on "+method.getName()+".  Slowing down.");
+                                rateLimiter.throttled();
+                            }
                             if (e.getCause()==null) throw e; else throw e.getCause();
                         }
                     }
@@ -68,4 +137,12 @@ public class SynapseClientFactory {
         return createRetryingProxy(synapseClientIntern, SynapseClient.class);
     }
 
+    /*
+     * Make calls through the given client on a dedicated pool of I/O threads
+     */
+    public static AsyncSynapseClient createAsyncSynapseClient(SynapseClient synapse) {
+        return new AsyncSynapseClient(synapse, Utils.createDaemonThreadPool("synapse-io",
+                getIntegerProperty(SYNAPSE_IO_THREAD_COUNT_PROPERTY_NAME, DEFAULT_SYNAPSE_IO_THREAD_COUNT)));
+    }
+
 }
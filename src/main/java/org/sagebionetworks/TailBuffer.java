@@ -0,0 +1,86 @@
+package org.sagebionetworks;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Keeps the last 'maxChars' characters of the UTF-8 text written to it.  The bytes are
+ * held in a fixed ring, so writing allocates nothing however much is written; the text is
+ * decoded only when asked for.  A Java char takes at most three bytes in UTF-8, so a ring
+ * of three bytes per character always holds enough.  When the ring has wrapped, the tail
+ * starts at a character boundary rather than part way through a character.
+ */
+public class TailBuffer extends OutputStream {
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    private final int maxChars;
+    private final byte[] ring;
+    private int end = 0; // where the next byte goes
+    private long count = 0L; // the number of bytes ever written
+
+    public TailBuffer(int maxChars) {
+        this.maxChars=Math.max(0, maxChars);
+        this.ring=new byte[this.maxChars*MAX_BYTES_PER_CHAR];
+    }
+
+    @Override
+    public void write(int b) {
+        count++;
+        if (ring.length==0) return;
+        ring[end] = (byte)b;
+        end = (end+1)%ring.length;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+        if (ring.length==0) return;
+        // only the last ring.length bytes can matter
+        if (len>ring.length) {
+            off += len-ring.length;
+            len = ring.length;
+        }
+        int firstPart = Math.min(len, ring.length-end);
+        System.arraycopy(b, off, ring, end, firstPart);
+        System.arraycopy(b, off+firstPart, ring, 0, len-firstPart);
+        end = (end+len)%ring.length;
+    }
+
+    /*
+     * The number of bytes written, including those no longer held
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /*
+     * The last 'maxChars' characters written, or null if nothing has been written
+     */
+    public String getTail() {
+        if (count==0) return null;
+        boolean wrapped = count>ring.length;
+        int length = wrapped ? ring.length : (int)count;
+        byte[] bytes = new byte[length];
+        int start = wrapped ? end : 0;
+        int firstPart = Math.min(length, ring.length-start);
+        System.arraycopy(ring, start, bytes, 0, firstPart);
+        System.arraycopy(ring, 0, bytes, firstPart, length-firstPart);
+        int offset = 0;
+        if (wrapped) {
+            // skip the remains of a character whose first bytes have been overwritten
+            while (offset<length && (bytes[offset]&0xC0)==0x80) offset++;
+        }
+        String decoded = new String(bytes, offset, length-offset, StandardCharsets.UTF_8);
+        if (decoded.length()<=maxChars) return decoded;
+        int from = decoded.length()-maxChars;
+        // don't split a surrogate pair
+        if (Character.isLowSurrogate(decoded.charAt(from))) from++;
+        return decoded.substring(from);
+    }
+
+    @Override
+    public String toString() {
+        return getTail();
+    }
+
+}
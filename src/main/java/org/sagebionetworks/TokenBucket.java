@@ -0,0 +1,86 @@
+package org.sagebionetworks;
+
+/*
+ * Limits the rate of calls to the given number per second, allowing a burst of up to one
+ * second's worth of calls after a quiet period.  Callers wait their turn in the order they
+ * arrive.
+ *
+ * When the server says we are calling too often, the rate is halved (but not below
+ * MIN_RATE_FRACTION of the configured rate) and waiting callers are held back.  The rate
+ * then climbs back to the configured rate over RECOVERY_MILLIS, so that we settle just
+ * under the server's limit rather than repeatedly overshooting it.
+ */
+public class TokenBucket {
+
+    private static final double MIN_RATE_FRACTION = 0.1;
+    private static final long RECOVERY_MILLIS = 60000L;
+
+    private final double configuredRate;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+
+    /*
+     * ratePerSecond<=0 means no limit
+     */
+    public TokenBucket(double ratePerSecond) {
+        this.configuredRate=ratePerSecond;
+        this.rate=ratePerSecond;
+        this.tokens=capacity();
+        this.lastRefill=System.currentTimeMillis();
+    }
+
+    private double capacity() {
+        return Math.max(1d, rate);
+    }
+
+    private void refill(long now) {
+        long elapsed = now-lastRefill;
+        if (elapsed<=0) return;
+        if (rate<configuredRate) {
+            rate = Math.min(configuredRate, rate+configuredRate*elapsed/RECOVERY_MILLIS);
+        }
+        tokens = Math.min(capacity(), tokens+rate*elapsed/1000d);
+        lastRefill=now;
+    }
+
+    /*
+     * Take a token, returning the number of milliseconds to wait before using it
+     */
+    private synchronized long reserve() {
+        if (configuredRate<=0) return 0L;
+        refill(System.currentTimeMillis());
+        tokens -= 1d;
+        if (tokens>=0) return 0L;
+        return (long)Math.ceil(-tokens*1000d/rate);
+    }
+
+    /*
+     * Wait until the next call may be made
+     */
+    public void acquire() {
+        long wait = reserve();
+        if (wait<=0) return;
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            // let the caller proceed, and notice the interruption itself
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Called when the server has rejected a call for exceeding its rate limit
+     */
+    public synchronized void throttled() {
+        if (configuredRate<=0) return;
+        refill(System.currentTimeMillis());
+        rate = Math.max(configuredRate*MIN_RATE_FRACTION, rate/2d);
+        tokens = Math.min(tokens, 0d);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+}
@@ -14,12 +14,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import com.github.dockerjava.api.model.Container;
@@ -46,7 +51,7 @@ public class Utils {
     public static final long ONE_DAY_AS_MILLISEC = 24*3600*1000L;
 
     public static final String SEP = "."; // a string that's not contained in any token
-    private static final String WORKFLOW_CONTAINER_PREFIX = "workflow_job";
+    public static final String WORKFLOW_CONTAINER_PREFIX = "workflow_job";
     private static final String ARCHIVE_PREFIX = "archive";
 
     public static final String DATE_FORMAT = "yyyy-MM-dd.HH:mm:ss";
@@ -132,6 +137,61 @@ public class Utils {
         return null;
     }
 
+    public static int getIntegerProperty(String key, int defaultValue) {
+        String s = getProperty(key, false);
+        if (StringUtils.isEmpty(s)) return defaultValue;
+        return Integer.parseInt(s.trim());
+    }
+
+    public static long getLongProperty(String key, long defaultValue) {
+        String s = getProperty(key, false);
+        if (StringUtils.isEmpty(s)) return defaultValue;
+        return Long.parseLong(s.trim());
+    }
+
+    public static double getDoubleProperty(String key, double defaultValue) {
+        String s = getProperty(key, false);
+        if (StringUtils.isEmpty(s)) return defaultValue;
+        return Double.parseDouble(s.trim());
+    }
+
+    public static boolean getBooleanProperty(String key, boolean defaultValue) {
+        String s = getProperty(key, false);
+        if (StringUtils.isEmpty(s)) return defaultValue;
+        return Boolean.parseBoolean(s.trim());
+    }
+
+    /*
+     * A fixed size pool of daemon threads, so that a pool left running
+     * does not keep the JVM from shutting down.
+     */
+    public static ExecutorService createDaemonThreadPool(final String namePrefix, int size) {
+        return Executors.newFixedThreadPool(size, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix+"-"+threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+     * Return the last 'maxChars' characters of the given file, reading only the end of the file
+     */
+    public static String readTail(File file, int maxChars) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // a character takes at most four bytes in UTF-8
+            long start = Math.max(0L, raf.length()-4L*maxChars);
+            byte[] bytes = new byte[(int)(raf.length()-start)];
+            raf.seek(start);
+            raf.readFully(bytes);
+            String tail = new String(bytes, StandardCharsets.UTF_8);
+            return tail.length()<=maxChars ? tail : tail.substring(tail.length()-maxChars);
+        }
+    }
+
     public static void deleteFolderContent(File folder) {
         File[] files = folder.listFiles();
         if (files==null) return;
@@ -0,0 +1,11 @@
+package org.sagebionetworks;
+
+/*
+ * Receives notice from a WorkflowManager that a workflow job has stopped running,
+ * so that the job can be updated without waiting for the next full pass.
+ */
+public interface WorkflowEventListener {
+
+    void workflowJobStopped(String workflowId);
+
+}
@@ -1,6 +1,9 @@
 package org.sagebionetworks;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -41,9 +44,19 @@ public interface WorkflowManager {
     /*
      * This would be provided by GET /workflows/{workflow_id} WES
      *
+     * Writes full log to the given stream and optionally returns just the tail (if 'maxTailLengthInCharacters' is not null).
+     * The stream is left open, so that the caller may, e.g., write the log straight into an archive.
+     */
+    String getWorkflowLog(WorkflowJob job, OutputStream os, Integer maxTailLengthInCharacters) throws IOException;
+
+    /*
      * Writes full log to a file and optionally returns just the tail (if 'maxTailLengthInCharacters' is not null)
      */
-    String getWorkflowLog(WorkflowJob job, Path outPath, Integer maxTailLengthInCharacters) throws IOException;
+    default String getWorkflowLog(WorkflowJob job, Path outPath, Integer maxTailLengthInCharacters) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outPath.toFile()))) {
+            return getWorkflowLog(job, os, maxTailLengthInCharacters);
+        }
+    }
 
     /*
      * This has no analogy in WES.  The idea is to have a state for a workflow in which it is
@@ -57,4 +70,18 @@ public interface WorkflowManager {
      */
     void deleteWorkFlowJob(WorkflowJob job);
 
+    /*
+     * Ask to be notified when a workflow job stops running.  Returns false if this
+     * workflow system cannot provide such notice, in which case the caller must poll.
+     * Calling again while subscribed has no effect, so this may be used to renew a
+     * subscription which has been lost.
+     */
+    boolean subscribeToWorkflowEvents(WorkflowEventListener listener);
+
+    /*
+     * The number of new workflow jobs the underlying system has room for, given the
+     * jobs already running, or null if it does not tell.
+     */
+    Integer getCapacityForNewWorkflows();
+
 }
@@ -1,8 +1,13 @@
 package org.sagebionetworks;
 import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.CONTAINER_CACHE_REFRESH_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DEFAULT_CONTAINER_CACHE_REFRESH_SECONDS;
 import static org.sagebionetworks.Constants.DOCKER_CERT_PATH_HOST_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.DUMP_PROGRESS_SHELL_COMMAND;
+import static org.sagebionetworks.Constants.HOST_CAPACITY_ADMISSION_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.INCREMENTAL_LOG_COLLECTION_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.LOG_DIR_NAME;
 import static org.sagebionetworks.Constants.NUMBER_OF_PROGRESS_CHARACTERS;
 import static org.sagebionetworks.Constants.RUN_WORKFLOW_CONTAINER_IN_PRIVILEGED_MODE_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.SHARED_VOLUME_NAME;
@@ -10,18 +15,23 @@ import static org.sagebionetworks.Constants.TOIL_CLI_OPTIONS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.UNIX_SOCKET_PREFIX;
 import static org.sagebionetworks.Constants.WORKFLOW_ENGINE_DOCKER_IMAGES_PROPERTY_NAME;
 import static org.sagebionetworks.DockerUtils.PROCESS_TERMINATED_ERROR_CODE;
+import static org.sagebionetworks.Utils.WORKFLOW_CONTAINER_PREFIX;
 import static org.sagebionetworks.Utils.WORKFLOW_FILTER;
 import static org.sagebionetworks.Utils.archiveContainerName;
 import static org.sagebionetworks.Utils.createTempFile;
 import static org.sagebionetworks.Utils.dockerComposeName;
 import static org.sagebionetworks.Utils.findRunningWorkflowJobs;
+import static org.sagebionetworks.Utils.getBooleanProperty;
+import static org.sagebionetworks.Utils.getLongProperty;
 import static org.sagebionetworks.Utils.getProperty;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -29,8 +39,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import com.github.dockerjava.api.async.ResultCallback;
 import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
 import com.github.dockerjava.api.model.Container;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.EventType;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -42,6 +55,14 @@ public class WorkflowManagerDocker implements WorkflowManager {
 
     private DockerUtils dockerUtils;
     private WorkflowURLDownloader workflowURLDownloader;
+    private ContainerStateCache containerStateCache;
+    private ResultCallback<Event> eventSubscription;
+    private HostCapacityMonitor hostCapacityMonitor;
+
+    // the Docker events which tell us that a container has stopped running
+    private static final List<String> CONTAINER_STOPPED_EVENTS = Arrays.asList("die", "oom", "kill");
+    // all the Docker events which tell us that a container has changed
+    private static final List<String> CONTAINER_CHANGED_EVENTS = Arrays.asList("die", "oom", "kill", "create", "start", "destroy", "rename");
 
     static {
         System.setProperty("https.protocols", "TLSv1,TLSv1.1,TLSv1.2"); // needed for some https resources
@@ -50,6 +71,8 @@ public class WorkflowManagerDocker implements WorkflowManager {
     public WorkflowManagerDocker(DockerUtils dockerUtils, WorkflowURLDownloader downloader) {
         this.dockerUtils=dockerUtils;
         this.workflowURLDownloader = downloader;
+        // until we are notified of changes by Docker events we must refresh the container list each time it's requested
+        this.containerStateCache = new ContainerStateCache(dockerUtils, WORKFLOW_FILTER, WORKFLOW_CONTAINER_PREFIX, 0L);
     }
 
     private ContainerRelativeFile createDirInHostMountedSharedDir() {
@@ -193,6 +216,7 @@ public class WorkflowManagerDocker implements WorkflowManager {
                     privileged);
 
             dockerUtils.startContainer(containerId);
+            containerStateCache.invalidate(containerId);
         } catch (DockerPullException e) {
             if (containerId!=null) dockerUtils.removeContainer(containerId, true);
 
@@ -209,7 +233,7 @@ public class WorkflowManagerDocker implements WorkflowManager {
      */
     @Override
     public List<WorkflowJob> listWorkflowJobs(Boolean running) {
-        return findRunningWorkflowJobs(dockerUtils.listContainers(WORKFLOW_FILTER, running));
+        return findRunningWorkflowJobs(containerStateCache.listContainers(running));
     }
 
     /*
@@ -220,7 +244,7 @@ public class WorkflowManagerDocker implements WorkflowManager {
         WorkflowJobDocker j = (WorkflowJobDocker)job;
         Container container = j.getContainer();
         WorkflowStatus result = new WorkflowStatus();
-        ContainerState containerState = dockerUtils.getContainerState(container.getId());
+        ContainerState containerState = containerStateCache.getContainerState(container.getId());
         result.setRunning(containerState.getRunning());
 
         ExitStatus exitStatus = null;
@@ -246,9 +270,31 @@ public class WorkflowManagerDocker implements WorkflowManager {
      * Writes full log to a file and optionally returns just the tail (if 'maxTailLengthInCharacters' is not null)
      */
     @Override
-    public String getWorkflowLog(WorkflowJob job, Path outPath, Integer maxTailLengthInCharacters) throws IOException {
+    public String getWorkflowLog(WorkflowJob job, OutputStream os, Integer maxTailLengthInCharacters) throws IOException {
         WorkflowJobDocker j = (WorkflowJobDocker)job;
-        return dockerUtils.getLogs(j.getContainer().getId(), outPath, maxTailLengthInCharacters);
+        if (!getBooleanProperty(INCREMENTAL_LOG_COLLECTION_PROPERTY_NAME, false)) {
+            return dockerUtils.getLogs(j.getContainer().getId(), os, maxTailLengthInCharacters);
+        }
+        // collect just the output produced since we last looked, adding it to the job's log on the shared volume
+        File logFile = getLogFile(j);
+        dockerUtils.appendNewLogs(j.getContainer().getId(), logFile, getLogCursorFile(j));
+        Files.copy(logFile.toPath(), os);
+        if (maxTailLengthInCharacters==null) return null;
+        return Utils.readTail(logFile, maxTailLengthInCharacters);
+    }
+
+    private static File getLogDir() {
+        File dir = new File(System.getProperty(AGENT_SHARED_DIR_PROPERTY_NAME), LOG_DIR_NAME);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static File getLogFile(WorkflowJobDocker job) {
+        return new File(getLogDir(), job.getContainerName()+".log");
+    }
+
+    private static File getLogCursorFile(WorkflowJobDocker job) {
+        return new File(getLogDir(), job.getContainerName()+".cursor");
     }
 
     /*
@@ -262,6 +308,7 @@ public class WorkflowManagerDocker implements WorkflowManager {
         ContainerState containerState = dockerUtils.getContainerState(j.getContainer().getId());
         if (containerState.getRunning()) {
             dockerUtils.stopContainerWithRetry(j.getContainer().getId());
+            containerStateCache.invalidate(j.getContainer().getId());
         }
     }
 
@@ -280,6 +327,77 @@ public class WorkflowManagerDocker implements WorkflowManager {
         } else {
             dockerUtils.removeContainer(j.getContainer().getId(), true);
         }
+        containerStateCache.invalidate(j.getContainer().getId());
+        getLogFile(j).delete();
+        getLogCursorFile(j).delete();
+    }
+
+    @Override
+    public synchronized boolean subscribeToWorkflowEvents(final WorkflowEventListener listener) {
+        if (eventSubscription!=null) return true;
+        eventSubscription = dockerUtils.subscribeToEvents(CONTAINER_CHANGED_EVENTS, new ResultCallback<Event>() {
+            public void onStart(Closeable closeable) {
+                log.info("Subscribed to Docker container events.");
+            }
+
+            public void onNext(Event event) {
+                if (event.getType()!=EventType.CONTAINER) return;
+                if (event.getActor()==null || event.getActor().getAttributes()==null) return;
+                String containerName = event.getActor().getAttributes().get("name");
+                if (containerName!=null && WORKFLOW_FILTER.match(containerName)) {
+                    log.info("Received '"+event.getAction()+"' event for "+containerName);
+                    containerStateCache.invalidate(event.getActor().getId());
+                    if (CONTAINER_STOPPED_EVENTS.contains(event.getAction())) {
+                        listener.workflowJobStopped(containerName);
+                    }
+                }
+            }
+
+            public void onError(Throwable throwable) {
+                log.warn("Docker event subscription failed.  Will resubscribe.", throwable);
+                subscriptionEnded(this);
+            }
+
+            public void onComplete() {
+                log.warn("Docker event subscription ended.  Will resubscribe.");
+                subscriptionEnded(this);
+            }
+
+            public void close() throws IOException {
+                // no-op:  the connection is closed by the Docker client
+            }
+        });
+        // now that we will hear about changes we need only refresh the container list occasionally
+        containerStateCache.setRefreshPeriodMillis(getLongProperty(CONTAINER_CACHE_REFRESH_SECONDS_PROPERTY_NAME,
+                DEFAULT_CONTAINER_CACHE_REFRESH_SECONDS)*1000L);
+        return true;
+    }
+
+    private synchronized void subscriptionEnded(ResultCallback<Event> subscription) {
+        if (eventSubscription!=subscription) return;
+        eventSubscription=null;
+        // we may have missed changes, so go back to refreshing each time
+        containerStateCache.setRefreshPeriodMillis(0L);
+        containerStateCache.invalidate(null);
+    }
+
+    /*
+     * If HOST_CAPACITY_ADMISSION is set, estimate how many more workflow containers the
+     * Docker host has room for.  Otherwise return null.
+     */
+    @Override
+    public Integer getCapacityForNewWorkflows() {
+        if (!getBooleanProperty(HOST_CAPACITY_ADMISSION_PROPERTY_NAME, false)) return null;
+        List<String> runningContainerIds = new ArrayList<String>();
+        for (Container container : containerStateCache.listContainers(/*running*/true).values()) {
+            runningContainerIds.add(container.getId());
+        }
+        synchronized (this) {
+            if (hostCapacityMonitor==null) {
+                hostCapacityMonitor = new HostCapacityMonitor(dockerUtils, new File(System.getProperty(AGENT_SHARED_DIR_PROPERTY_NAME)));
+            }
+        }
+        return hostCapacityMonitor.getCapacityForNewWorkflows(runningContainerIds);
     }
 
 }
@@ -12,7 +12,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -230,7 +230,7 @@ public class WorkflowManagerWES implements WorkflowManager {
     }
 
     @Override
-    public String getWorkflowLog(WorkflowJob job, Path outPath, Integer maxTailLengthInCharacters) throws IOException {
+    public String getWorkflowLog(WorkflowJob job, OutputStream os, Integer maxTailLengthInCharacters) throws IOException {
         String url = WES_ENDPOINT+"/runs/"+job.getWorkflowId();
         HttpGet request = new HttpGet(url);
         HttpResponse response = getHttpClient().execute(request);
@@ -257,9 +257,8 @@ public class WorkflowManagerWES implements WorkflowManager {
         sb.append("STDERR:\n");
         sb.append(stdErr);
         String content = sb.toString();
-        try ( OutputStream os = new FileOutputStream(outPath.toFile()) ) {
-            IOUtils.write(content, os);
-        }
+        IOUtils.write(content, os, StandardCharsets.UTF_8);
+        os.flush();
 
         if (maxTailLengthInCharacters==null || maxTailLengthInCharacters<=0) {
             return null;
@@ -294,4 +293,20 @@ public class WorkflowManagerWES implements WorkflowManager {
         cancelWorkflowJob(job);
     }
 
+    /*
+     * WES has no means of pushing notifications, so the caller must poll.
+     */
+    @Override
+    public boolean subscribeToWorkflowEvents(WorkflowEventListener listener) {
+        return false;
+    }
+
+    /*
+     * WES does not report its capacity.
+     */
+    @Override
+    public Integer getCapacityForNewWorkflows() {
+        return null;
+    }
+
 }
@@ -1,25 +1,47 @@
 package org.sagebionetworks;
 
 import static org.sagebionetworks.Constants.ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.BATCH_SUBMISSION_STATUS_UPDATES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DEFAULT_LOG_QUOTA_BYTES;
+import static org.sagebionetworks.Constants.DEFAULT_LOG_QUOTA_HEAD_BYTES;
 import static org.sagebionetworks.Constants.DEFAULT_MAX_CONCURRENT_WORKFLOWS;
+import static org.sagebionetworks.Constants.DEFAULT_NOTIFICATION_DIGEST_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_RECONCILIATION_PERIOD_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_SUBMISSION_LEASE_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_UPDATE_PASS_TIMEOUT_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_WORKER_THREAD_COUNT;
 import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.EVENT_DRIVEN_UPDATES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.LOG_QUOTA_BYTES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.LOG_QUOTA_HEAD_BYTES_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.MAX_LOG_ANNOTATION_CHARS;
+import static org.sagebionetworks.Constants.NOTIFICATION_DIGEST_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.NOTIFICATION_OUTBOX_DIR_NAME;
+import static org.sagebionetworks.Constants.NOTIFICATION_OUTBOX_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.NOTIFICATION_OUTBOX_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.NOTIFICATION_PRINCIPAL_ID;
+import static org.sagebionetworks.Constants.ORCHESTRATOR_INSTANCE_ID_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.RECONCILIATION_PERIOD_SECONDS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.ROOT_TEMPLATE_ANNOTATION_NAME;
 import static org.sagebionetworks.Constants.SUBMISSION_COMPLETED;
 import static org.sagebionetworks.Constants.SUBMISSION_FAILED;
+import static org.sagebionetworks.Constants.STATE_JOURNAL_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SUBMISSION_LEASE_SECONDS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.SUBMISSION_STARTED;
 import static org.sagebionetworks.Constants.SUBMISSION_STOPPED_BY_USER;
 import static org.sagebionetworks.Constants.SUBMISSION_TIMED_OUT;
 import static org.sagebionetworks.Constants.SYNAPSE_PAT_PROPERTY;
 import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
+import static org.sagebionetworks.Constants.UPDATE_PASS_TIMEOUT_SECONDS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.WES_ENDPOINT_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.WORKER_THREAD_COUNT_PROPERTY_NAME;
 import static org.sagebionetworks.EvaluationUtils.ADMIN_ANNOTS_ARE_PRIVATE;
 import static org.sagebionetworks.EvaluationUtils.FAILURE_REASON;
 import static org.sagebionetworks.EvaluationUtils.JOB_LAST_UPDATED_TIME_STAMP;
 import static org.sagebionetworks.EvaluationUtils.JOB_STARTED_TIME_STAMP;
 import static org.sagebionetworks.EvaluationUtils.LAST_LOG_UPLOAD;
+import static org.sagebionetworks.EvaluationUtils.LEASE_OWNER;
 import static org.sagebionetworks.EvaluationUtils.LOG_FILE_SIZE_EXCEEDED;
 import static org.sagebionetworks.EvaluationUtils.PROGRESS;
 import static org.sagebionetworks.EvaluationUtils.PUBLIC_ANNOTATION_SETTING;
@@ -40,6 +62,9 @@ import static org.sagebionetworks.MessageUtils.createPipelineFailureMessage;
 import static org.sagebionetworks.MessageUtils.createSubmissionStartedMessage;
 import static org.sagebionetworks.MessageUtils.createWorkflowCompleteMessage;
 import static org.sagebionetworks.MessageUtils.createWorkflowFailedMessage;
+import static org.sagebionetworks.Utils.getBooleanProperty;
+import static org.sagebionetworks.Utils.getIntegerProperty;
+import static org.sagebionetworks.Utils.getLongProperty;
 import static org.sagebionetworks.Utils.getProperty;
 import static org.sagebionetworks.Utils.notificationEnabled;
 import static org.sagebionetworks.WorkflowUpdateStatus.DONE;
@@ -49,14 +74,28 @@ import static org.sagebionetworks.WorkflowUpdateStatus.STOPPED_TIME_OUT;
 import static org.sagebionetworks.WorkflowUpdateStatus.STOPPED_UPON_REQUEST;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
@@ -66,6 +105,7 @@ import org.json.JSONObject;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
 import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
 import org.sagebionetworks.evaluation.model.Evaluation;
 import org.sagebionetworks.evaluation.model.Submission;
 import org.sagebionetworks.evaluation.model.SubmissionBundle;
@@ -79,6 +119,7 @@ import org.sagebionetworks.repo.model.auth.LoginRequest;
 import org.sagebionetworks.repo.model.file.ExternalFileHandle;
 import org.sagebionetworks.repo.model.file.FileHandle;
 import org.sagebionetworks.repo.model.file.FileHandleResults;
+import org.sagebionetworks.schema.adapter.JSONObjectAdapterException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -90,6 +131,9 @@ public class WorkflowOrchestrator  {
     private static final long UPLOAD_PERIOD_MILLIS = 30*60*1000L; // 30 min in millis
 
     private SynapseClient synapse;
+    private AsyncSynapseClient asyncSynapse;
+    // the workflow templates' file handles and annotations
+    private MetadataCache metadataCache;
     private EvaluationUtils evaluationUtils;
     private SubmissionUtils submissionUtils;
     private MessageUtils messageUtils;
@@ -97,6 +141,20 @@ public class WorkflowOrchestrator  {
     private ShutdownHook shutdownHook;
     private long sleepTimeMillis;
     private WorkflowManager workflowManager;
+    private AdmissionScheduler admissionScheduler = new AdmissionScheduler();
+    private ExecutorService workerPool;
+    private boolean eventDrivenUpdates;
+    // null unless several Orchestrators share the evaluation queues
+    private String instanceId;
+    // null unless configured to keep a local journal of the running submissions
+    private StateJournal stateJournal;
+    private BlockingQueue<String> stoppedWorkflowJobs = new LinkedBlockingQueue<String>();
+    private WorkflowEventListener workflowEventListener = new WorkflowEventListener() {
+        @Override
+        public void workflowJobStopped(String workflowId) {
+            stoppedWorkflowJobs.add(workflowId);
+        }
+    };
 
     private void login() throws SynapseException {
         String pat = getProperty(SYNAPSE_PAT_PROPERTY);
@@ -105,12 +163,13 @@ public class WorkflowOrchestrator  {
 
     public static void main( String[] args ) throws Throwable {
         SynapseClient synapse = SynapseClientFactory.createSynapseClient();
-        EvaluationUtils evaluationUtils = new EvaluationUtils(synapse);
+        MetadataCache metadataCache = new MetadataCache(synapse);
+        EvaluationUtils evaluationUtils = new EvaluationUtils(synapse, metadataCache);
         DockerUtils dockerUtils = configuredForDocker() ? new DockerUtils() : null;
         SubmissionUtils submissionUtils = new SubmissionUtils(synapse);
         long sleepTimeMillis = 10*1000L;
         WorkflowOrchestrator agent = new WorkflowOrchestrator(
-                synapse, evaluationUtils,
+                synapse, metadataCache, evaluationUtils,
                 dockerUtils, submissionUtils, sleepTimeMillis);
         agent.execute();
         log.info("At end of 'main'");
@@ -128,25 +187,61 @@ public class WorkflowOrchestrator  {
             EvaluationUtils evaluationUtils,
             DockerUtils dockerUtils,
             SubmissionUtils submissionUtils,
-            long sleepTimeMillis) throws SynapseException {
+            long sleepTimeMillis) throws SynapseException, IOException {
+        this(synapse, new MetadataCache(synapse), evaluationUtils, dockerUtils, submissionUtils, sleepTimeMillis);
+    }
+
+    /*
+     * 'metadataCache' should be the one used by 'evaluationUtils', so that the metadata is
+     * cached once
+     */
+    public WorkflowOrchestrator(SynapseClient synapse,
+            MetadataCache metadataCache,
+            EvaluationUtils evaluationUtils,
+            DockerUtils dockerUtils,
+            SubmissionUtils submissionUtils,
+            long sleepTimeMillis) throws SynapseException, IOException {
         this.sleepTimeMillis=sleepTimeMillis;
         this.shutdownHook = new ShutdownHook(Thread.currentThread());
         this.synapse=synapse;
+        this.asyncSynapse=SynapseClientFactory.createAsyncSynapseClient(synapse);
+        this.metadataCache=metadataCache;
         this.evaluationUtils=evaluationUtils;
         this.submissionUtils=submissionUtils;
-        this.messageUtils=new MessageUtils(synapse);
+        this.workerPool=Utils.createDaemonThreadPool("workflow-worker",
+                getIntegerProperty(WORKER_THREAD_COUNT_PROPERTY_NAME, DEFAULT_WORKER_THREAD_COUNT));
         login();
         if (configuredForDocker()) {
             if (configuredForWES()) throw new IllegalStateException("Cannot configure both Docker Engine and WES Endpoint.");
             // precheck
             dockerUtils.getInfo();
-            this.workflowManager = new WorkflowManagerDocker(dockerUtils, new WorkflowURLDownloader());
+            this.workflowManager = new WorkflowManagerDocker(dockerUtils, new CachingWorkflowURLDownloader());
         } else if (configuredForWES()) {
-            this.workflowManager = new WorkflowManagerWES(new WorkflowURLDownloader());
+            this.workflowManager = new WorkflowManagerWES(new CachingWorkflowURLDownloader());
         } else {
             throw new IllegalStateException("Must configure either Docker Engine or WES Endpoint.");
         }
-        this.archiver = new Archiver(synapse, workflowManager);
+        String stateJournalDir = StringUtils.trimToNull(getProperty(STATE_JOURNAL_DIR_PROPERTY_NAME, false));
+        if (stateJournalDir!=null) this.stateJournal = new StateJournal(new File(stateJournalDir));
+        // keep the folder cache with the journal, if there is one, so that it too survives a restart
+        FolderCache folderCache = stateJournalDir==null ? new FolderCache() : new FolderCache(new File(stateJournalDir));
+        if (getBooleanProperty(NOTIFICATION_OUTBOX_PROPERTY_NAME, false)) {
+            // likewise the notifications waiting to be sent, which must not be lost on a restart
+            String outboxDir = StringUtils.trimToNull(getProperty(NOTIFICATION_OUTBOX_DIR_PROPERTY_NAME, false));
+            if (outboxDir==null && stateJournalDir!=null) outboxDir = new File(stateJournalDir, NOTIFICATION_OUTBOX_DIR_NAME).getAbsolutePath();
+            if (outboxDir==null) throw new IllegalStateException(NOTIFICATION_OUTBOX_PROPERTY_NAME+" requires either "+
+                    NOTIFICATION_OUTBOX_DIR_PROPERTY_NAME+" or "+STATE_JOURNAL_DIR_PROPERTY_NAME+" to be set.");
+            NotificationOutbox outbox = new NotificationOutbox(synapse, new File(outboxDir));
+            outbox.start(getLongProperty(NOTIFICATION_DIGEST_SECONDS_PROPERTY_NAME, DEFAULT_NOTIFICATION_DIGEST_SECONDS));
+            this.messageUtils=new MessageUtils(synapse, outbox);
+        } else {
+            this.messageUtils=new MessageUtils(synapse);
+        }
+        submissionUtils.setMessageUtils(messageUtils);
+        this.archiver = new Archiver(synapse, workflowManager, folderCache);
+        this.eventDrivenUpdates = getBooleanProperty(EVENT_DRIVEN_UPDATES_PROPERTY_NAME, false);
+        this.instanceId = StringUtils.trimToNull(getProperty(ORCHESTRATOR_INSTANCE_ID_PROPERTY_NAME, false));
+        if (instanceId!=null) log.info("Sharing the evaluation queues with other Orchestrators, as "+instanceId);
 
         log.info("Precheck completed successfully.");
 
@@ -174,7 +269,7 @@ public class WorkflowOrchestrator  {
         Map<String,WorkflowURLEntrypointAndSynapseRef> result = new HashMap<String,WorkflowURLEntrypointAndSynapseRef>();
         for (String evaluationId : evaluationToSynIDMap.keySet()) {
             String entityId = evaluationToSynIDMap.get(evaluationId);
-            FileHandleResults fhr = synapse.getEntityFileHandlesForCurrentVersion(entityId);
+            FileHandleResults fhr = metadataCache.getEntityFileHandlesForCurrentVersion(entityId);
             ExternalFileHandle efh = null;
             for (FileHandle fh : fhr.getList()) {
                 if (fh instanceof ExternalFileHandle) {
@@ -186,7 +281,7 @@ public class WorkflowOrchestrator  {
             String urlString = efh.getExternalURL();
             URL url = new URL(urlString);
             // get annotation for the CWL entry point.  Does the file exist?
-            Annotations annotations = synapse.getAnnotationsV2(entityId);
+            Annotations annotations = metadataCache.getAnnotationsV2(entityId);
             Map<String, AnnotationsValue> annotationsMap = annotations.getAnnotations();
             if ( annotationsMap == null || annotationsMap.isEmpty() ) {
                 throw new IllegalStateException("Expected annotation called "+
@@ -206,7 +301,31 @@ public class WorkflowOrchestrator  {
         return result;
     }
 
-    private String myOwnPrincipalId = null;
+    /*
+     * Reread the workflow templates, which are cached so this is cheap.  If this fails
+     * we carry on with the templates we have.
+     */
+    private Map<String,WorkflowURLEntrypointAndSynapseRef> refreshWorkflowURLAndEntrypoint(
+            Map<String,WorkflowURLEntrypointAndSynapseRef> current) {
+        try {
+            return getWorkflowURLAndEntrypoint();
+        } catch (Exception e) {
+            log.warn("Failed to refresh the workflow templates.  Will continue with those last read.  Message is: "+e.getMessage());
+            // a template may be being edited, so read them afresh next time rather than when the cache expires
+            invalidateWorkflowTemplates();
+            return current;
+        }
+    }
+
+    private void invalidateWorkflowTemplates() {
+        try {
+            for (String entityId : getTemplateSynapseIds().values()) metadataCache.invalidateEntity(entityId);
+        } catch (JSONException e) {
+            log.warn("Failed to read the workflow template IDs.  Message is: "+e.getMessage());
+        }
+    }
+
+    private volatile String myOwnPrincipalId = null;
 
     private String getNotificationPrincipalId() throws SynapseException {
         String id = getProperty(NOTIFICATION_PRINCIPAL_ID, false);
@@ -219,95 +338,284 @@ public class WorkflowOrchestrator  {
 
     public void execute() throws Throwable {
         Map<String,WorkflowURLEntrypointAndSynapseRef> evaluationIdToTemplateMap = getWorkflowURLAndEntrypoint();
+        long nextFullUpdate = 0L;
         while (!shutdownHook.shouldShutDown()) { // this allows a system shut down to shut down the agent
             log.info("Top level loop: checking progress or starting new job.");
             login();
 
+            // When event driven we only check on all the jobs periodically, to catch anything the
+            // events missed.  In between we update just the jobs we've been told have stopped.
+            boolean eventDriven = eventDrivenUpdates && workflowManager.subscribeToWorkflowEvents(workflowEventListener);
+            Set<String> stoppedWorkflowIds = new HashSet<String>();
+            stoppedWorkflowJobs.drainTo(stoppedWorkflowIds);
+            if (!eventDriven || System.currentTimeMillis()>=nextFullUpdate) {
+                updateWorkflowJobs(getEvaluationIds());
+                nextFullUpdate = System.currentTimeMillis()+getReconciliationPeriodMillis();
+            } else if (!stoppedWorkflowIds.isEmpty()) {
+                updateWorkflowJobs(getEvaluationIds(), stoppedWorkflowIds);
+            }
+
+            // update first, so that the admission of new submissions sees the jobs which have just finished
             String acceptNewSubmissionsString = getProperty(ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME, false);
             if (StringUtils.isEmpty(acceptNewSubmissionsString) || Boolean.getBoolean(acceptNewSubmissionsString)) {
-                for (String evaluationId : getEvaluationIds()) {
-                    WorkflowURLEntrypointAndSynapseRef workflow = evaluationIdToTemplateMap.get(evaluationId);
-                    createNewWorkflowJobs(evaluationId, workflow);
-                }
+                // pick up any change to the templates
+                evaluationIdToTemplateMap = refreshWorkflowURLAndEntrypoint(evaluationIdToTemplateMap);
+                createNewWorkflowJobs(getEvaluationIds(), evaluationIdToTemplateMap);
             }
-            updateWorkflowJobs(getEvaluationIds());
+            log.info("Retries so far: "+ExponentialBackoffRunner.getStatistics());
 
             try {
-                Thread.sleep(sleepTimeMillis);
+                if (eventDriven) {
+                    // wake up early if a job stops
+                    String workflowId = stoppedWorkflowJobs.poll(sleepTimeMillis, TimeUnit.MILLISECONDS);
+                    if (workflowId!=null) stoppedWorkflowJobs.add(workflowId);
+                } else {
+                    Thread.sleep(sleepTimeMillis);
+                }
             } catch (InterruptedException e) {
                 // continue
             }
         } // end while()
     } // end execute()
 
+    private static long getReconciliationPeriodMillis() {
+        return getLongProperty(RECONCILIATION_PERIOD_SECONDS_PROPERTY_NAME, DEFAULT_RECONCILIATION_PERIOD_SECONDS)*1000L;
+    }
+
+    private static long getSubmissionLeaseMillis() {
+        return getLongProperty(SUBMISSION_LEASE_SECONDS_PROPERTY_NAME, DEFAULT_SUBMISSION_LEASE_SECONDS)*1000L;
+    }
+
+    /*
+     * null means no limit
+     */
+    private static Long getLogQuotaBytes() {
+        long quota = getLongProperty(LOG_QUOTA_BYTES_PROPERTY_NAME, DEFAULT_LOG_QUOTA_BYTES);
+        return quota<=0 ? null : quota;
+    }
+
     private static int getMaxConcurrentWorkflows() {
         String maxString = getProperty(MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME, false);
         if (StringUtils.isEmpty(maxString)) return DEFAULT_MAX_CONCURRENT_WORKFLOWS;
         return Integer.parseInt(maxString);
     }
 
-    public void createNewWorkflowJobs(String evaluationId, WorkflowURLEntrypointAndSynapseRef workflow) throws Throwable {
+    private int getAvailableWorkflowSlots() {
         int currentWorkflowCount = workflowManager.listWorkflowJobs(/*running*/true).size();
-        int maxConcurrentWorkflows = getMaxConcurrentWorkflows();
+        int result = getMaxConcurrentWorkflows()-currentWorkflowCount;
+        // the workflow system may have room for fewer
+        Integer capacity = workflowManager.getCapacityForNewWorkflows();
+        if (capacity!=null && capacity<result) {
+            log.info("The host has capacity for "+capacity+" new workflows.");
+            result = capacity;
+        }
+        return result;
+    }
+
+    /*
+     * Run the given tasks on the worker pool and wait for all of them to finish.
+     * If any task fails, the first failure is thrown once all have finished.
+     */
+    private void runInParallel(List<Callable<Void>> tasks) throws Throwable {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (Callable<Void> task : tasks) futures.add(workerPool.submit(task));
+        Throwable firstFailure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (firstFailure==null) firstFailure = e.getCause();
+            } catch (InterruptedException e) {
+                for (Future<Void> f : futures) f.cancel(true);
+                throw e;
+            }
+        }
+        if (firstFailure!=null) throw firstFailure;
+    }
+
+    /*
+     * Look up the names of the given submissions' submitters together, ahead of the parallel
+     * work which needs them.  If this fails, they are simply looked up one at a time later.
+     */
+    private void prefetchSubmitters(List<Submission> submissions) {
+        try {
+            submissionUtils.prefetchSubmitters(submissions);
+        } catch (SynapseException|RuntimeException e) {
+            log.warn("Failed to look up submitters in bulk.  Message is: "+e.getMessage());
+        }
+    }
+
+    private void sendSubmissionFailureNotification(String submissionId, Throwable t) throws SynapseException, IOException {
+        log.error("Submission failed", t);
+        String errorMessage = createPipelineFailureMessage(submissionId, null, ExceptionUtils.getStackTrace(t));
+        // send this notification to an admin, not to the submitter
+        messageUtils.sendMessage(getNotificationPrincipalId(), SUBMISSION_PIPELINE_FAILURE_SUBJECT,
+                errorMessage, SUBMISSION_PIPELINE_FAILURE_SUBJECT+"/"+submissionId+"/"+t.getMessage());
+    }
+
+    /*
+     * Start new jobs for all the given evaluations.  The evaluation queues are read in parallel,
+     * the AdmissionScheduler decides which of the waiting submissions to start, and the admitted
+     * submissions are then started in parallel.  If anything fails, the first failure is thrown
+     * once the rest of the work is done.
+     */
+    public void createNewWorkflowJobs(List<String> evaluationIds, final Map<String,WorkflowURLEntrypointAndSynapseRef> evaluationIdToTemplateMap) throws Throwable {
+        int availableSlots = getAvailableWorkflowSlots();
+
+        final Map<String,List<SubmissionBundle>> candidates = new ConcurrentHashMap<String,List<SubmissionBundle>>();
+        List<Callable<Void>> selections = new ArrayList<Callable<Void>>();
+        for (final String evaluationId : evaluationIds) {
+            selections.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    candidates.put(evaluationId, selectNewSubmissions(evaluationId));
+                    return null;
+                }
+            });
+        }
+        Throwable selectionFailure = null;
+        try {
+            runInParallel(selections);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Throwable t) {
+            // start what we can from the other queues
+            selectionFailure = t;
+        }
+
+        List<AdmissionScheduler.Decision> admitted = new ArrayList<AdmissionScheduler.Decision>();
+        for (AdmissionScheduler.Decision decision : admissionScheduler.schedule(candidates, availableSlots)) {
+            if (decision.isAdmitted()) admitted.add(decision);
+        }
+        List<Submission> admittedSubmissions = new ArrayList<Submission>();
+        for (AdmissionScheduler.Decision decision : admitted) admittedSubmissions.add(decision.getSubmissionBundle().getSubmission());
+        prefetchSubmitters(admittedSubmissions);
+
+        List<Callable<Void>> starts = new ArrayList<Callable<Void>>();
+        for (AdmissionScheduler.Decision decision : admitted) {
+            final SubmissionBundle sb = decision.getSubmissionBundle();
+            final WorkflowURLEntrypointAndSynapseRef workflow = evaluationIdToTemplateMap.get(decision.getEvaluationId());
+            starts.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        startWorkflowJob(sb, workflow);
+                    } catch (Exception|Error e) {
+                        throw e;
+                    } catch (Throwable t) {
+                        throw new RuntimeException(t);
+                    }
+                    return null;
+                }
+            });
+        }
+        runInParallel(starts);
+        if (selectionFailure!=null) throw selectionFailure;
+    }
+
+    public void createNewWorkflowJobs(String evaluationId, WorkflowURLEntrypointAndSynapseRef workflow) throws Throwable {
+        createNewWorkflowJobs(Collections.singletonList(evaluationId), Collections.singletonMap(evaluationId, workflow));
+    }
+
+    /*
+     * Return the submissions waiting to be started in the given evaluation,
+     * first closing out any which their submitters have asked to cancel.
+     */
+    private List<SubmissionBundle> selectNewSubmissions(String evaluationId) throws SynapseException, IOException, JSONObjectAdapterException {
+        List<SubmissionBundle> result = new ArrayList<SubmissionBundle>();
         List<SubmissionBundle> receivedSubmissions=null;
         try {
             receivedSubmissions =
                     evaluationUtils.selectSubmissions(evaluationId, getInitialSubmissionState() );
+        } catch (SynapseNotFoundException e) {
+            // the evaluation queue has gone, so don't keep it
+            evaluationUtils.invalidateEvaluation(evaluationId);
+            throw e;
         } catch (IllegalStateException e ) {
             log.warn("Got IllegalStateException when calling selectSubmissions().  Will retry.  Message is: "+e.getMessage());
         }
+        if (receivedSubmissions==null) return result;
+        long now = System.currentTimeMillis();
         for (SubmissionBundle sb : receivedSubmissions) {
-            String submissionId=sb.getSubmission().getId();
             SubmissionStatus submissionStatus = sb.getSubmissionStatus();
+            // leave alone the submissions another Orchestrator is starting
+            if (instanceId!=null && SubmissionUtils.isLeasedByAnother(submissionStatus, instanceId, now)) continue;
+            if (!BooleanUtils.isTrue(submissionStatus.getCancelRequested())) {
+                result.add(sb);
+                continue;
+            }
             try {
-                if (BooleanUtils.isTrue(submissionStatus.getCancelRequested())) {
-                    SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
-                    setStatus(statusMods, SubmissionStatusEnum.INVALID, WorkflowUpdateStatus.STOPPED_UPON_REQUEST);
-                    try {
-                        submissionUtils.updateSubmissionStatus(submissionStatus, statusMods);
-                    } catch (SynapseConflictingUpdateException e) {
-                        // do nothing
-                    }
-                    continue;
+                SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+                setStatus(statusMods, SubmissionStatusEnum.INVALID, WorkflowUpdateStatus.STOPPED_UPON_REQUEST);
+                try {
+                    submissionUtils.updateSubmissionStatus(submissionStatus, statusMods);
+                } catch (SynapseConflictingUpdateException e) {
+                    // do nothing
                 }
+            } catch (SynapseException|RuntimeException e) {
+                sendSubmissionFailureNotification(sb.getSubmission().getId(), e);
+                throw e;
+            }
+        }
+        return result;
+    }
 
-                if (currentWorkflowCount>=maxConcurrentWorkflows) {
-                    log.info("We have met or exceeded the maximum concurrent workflow count, "+maxConcurrentWorkflows+", so we will not start "+submissionId+" at this time.");
-                    continue;
+    private void startWorkflowJob(SubmissionBundle sb, WorkflowURLEntrypointAndSynapseRef workflow) throws Throwable {
+        String submissionId=sb.getSubmission().getId();
+        SubmissionStatus submissionStatus = sb.getSubmissionStatus();
+        try {
+            if (instanceId!=null) {
+                // make sure no other Orchestrator starts this submission
+                submissionStatus = submissionUtils.claimSubmission(submissionStatus, instanceId, getSubmissionLeaseMillis());
+                if (submissionStatus==null) {
+                    admissionScheduler.submissionFinished(sb.getSubmission());
+                    return;
                 }
+            }
+            SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+            initializeSubmissionAnnotations(statusMods);
+            if (instanceId!=null) SubmissionUtils.setLease(statusMods, instanceId, getSubmissionLeaseMillis());
+            String workflowId = null;
 
-                SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
-                initializeSubmissionAnnotations(statusMods);
-                String workflowId = null;
-
-                String submittingUserOrTeamId = SubmissionUtils.getSubmittingUserOrTeamId(sb.getSubmission());
-                Folder sharedFolder=archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, true);
-                Folder lockedFolder=archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, false);
-                WorkflowParameters workflowParameters = new WorkflowParameters(
-                        sb.getSubmission().getId(), workflow.getSynapseId(), lockedFolder.getId(), sharedFolder.getId());
-                byte[] synapseConfigFileContent;
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                    Utils.writeSynapseConfigFile(baos);
-                    synapseConfigFileContent = baos.toByteArray();
-                }
-                WorkflowJob newJob = workflowManager.createWorkflowJob(workflow.getWorkflowUrl().toString(), workflow.getEntryPoint(), workflowParameters, synapseConfigFileContent);
-                workflowId = newJob.getWorkflowId();
-                EvaluationUtils.setAnnotation(statusMods, WORKFLOW_JOB_ID, workflowId, PUBLIC_ANNOTATION_SETTING);
+            String submittingUserOrTeamId = SubmissionUtils.getSubmittingUserOrTeamId(sb.getSubmission());
+            Folder sharedFolder=archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, true);
+            Folder lockedFolder=archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, false);
+            WorkflowParameters workflowParameters = new WorkflowParameters(
+                    sb.getSubmission().getId(), workflow.getSynapseId(), lockedFolder.getId(), sharedFolder.getId());
+            byte[] synapseConfigFileContent;
+            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                Utils.writeSynapseConfigFile(baos);
+                synapseConfigFileContent = baos.toByteArray();
+            }
+            WorkflowJob newJob;
+            try {
+                newJob = workflowManager.createWorkflowJob(workflow.getWorkflowUrl().toString(), workflow.getEntryPoint(), workflowParameters, synapseConfigFileContent);
+            } catch (IOException|RuntimeException e) {
+                // the template's URL or entry point may have changed since it was cached
+                metadataCache.invalidateEntity(workflow.getSynapseId());
+                throw e;
+            }
+            workflowId = newJob.getWorkflowId();
+            EvaluationUtils.setAnnotation(statusMods, WORKFLOW_JOB_ID, workflowId, PUBLIC_ANNOTATION_SETTING);
 
-                try {
-                    submissionUtils.updateSubmissionStatus(submissionStatus, statusMods);
-                } catch (Exception e) {
-                    throw new IllegalStateException("Started job "+workflowId+", but could not update submission "+submissionId, e);
-                }
-                currentWorkflowCount++;
-            } catch (final Throwable t) {
-                log.error("Submission failed", t);
-                String errorMessage = createPipelineFailureMessage(submissionId, null, ExceptionUtils.getStackTrace(t));
-                // send this notification to an admin, not to the submitter
-                messageUtils.sendMessage(getNotificationPrincipalId(), SUBMISSION_PIPELINE_FAILURE_SUBJECT,
-                        errorMessage);
-                throw t;
+            try {
+                submissionUtils.updateSubmissionStatus(submissionStatus, statusMods);
+            } catch (Exception e) {
+                throw new IllegalStateException("Started job "+workflowId+", but could not update submission "+submissionId, e);
             }
+            if (stateJournal!=null) {
+                StateJournal.Entry entry = new StateJournal.Entry(submissionId);
+                entry.setEvaluationId(sb.getSubmission().getEvaluationId());
+                entry.setWorkflowId(workflowId);
+                entry.setSharedFolderId(sharedFolder.getId());
+                entry.setLockedFolderId(lockedFolder.getId());
+                stateJournal.put(entry);
+            }
+        } catch (final Throwable t) {
+            // the submission was counted as running when it was admitted, but it is not
+            admissionScheduler.submissionFinished(sb.getSubmission());
+            sendSubmissionFailureNotification(submissionId, t);
+            throw t;
         }
     }
 
@@ -341,7 +649,48 @@ public class WorkflowOrchestrator  {
         return result;
     }
 
+    /*
+     * When several Orchestrators share the evaluation queues, each reconciles just its own submissions:
+     * those it has claimed, and those claimed by no one (e.g. started before sharing was set up)
+     * whose workflow jobs it is running.
+     */
+    private List<SubmissionBundle> getSubmissionsForThisInstance(List<SubmissionBundle> runningSubmissions, List<WorkflowJob> jobs) {
+        Set<String> workflowIds = workflowIdsForJobs(jobs).keySet();
+        List<SubmissionBundle> result = new ArrayList<SubmissionBundle>();
+        for (SubmissionBundle sb : runningSubmissions) {
+            SubmissionStatus status = sb.getSubmissionStatus();
+            if (SubmissionUtils.isLeasedBy(status, instanceId)) {
+                result.add(sb);
+            } else if (EvaluationUtils.getStringAnnotation(status, LEASE_OWNER)==null &&
+                    workflowIds.contains(EvaluationUtils.getStringAnnotation(status, WORKFLOW_JOB_ID))) {
+                result.add(sb);
+            }
+        }
+        return result;
+    }
+
     public void updateWorkflowJobs(List<String> evaluationIds) throws Throwable {
+        updateWorkflowJobs(evaluationIds, null);
+    }
+
+    /*
+     * Reconcile the running submissions with the workflow jobs, then check and update the jobs.
+     * If 'workflowIdsToUpdate' is not null then only the jobs having the given IDs are updated
+     * and, if the state journal knows their submissions, only those submissions are retrieved.
+     */
+    public void updateWorkflowJobs(List<String> evaluationIds, Set<String> workflowIdsToUpdate) throws Throwable {
+        if (workflowIdsToUpdate!=null && stateJournal!=null) {
+            Map<String, SubmissionBundle> workflowIdToSubmissionMap = getJournaledSubmissions(workflowIdsToUpdate);
+            if (workflowIdToSubmissionMap!=null) {
+                List<WorkflowJob> jobs = new ArrayList<WorkflowJob>();
+                for (WorkflowJob job : workflowManager.listWorkflowJobs(null)) {
+                    if (workflowIdToSubmissionMap.containsKey(job.getWorkflowId())) jobs.add(job);
+                }
+                updateWorkflowJobs(jobs, workflowIdToSubmissionMap);
+                return;
+            }
+        }
+
         // list the running jobs according to Synapse
         List<SubmissionBundle> runningSubmissions=new ArrayList<SubmissionBundle>();
         for (String evaluationId : evaluationIds) {
@@ -353,10 +702,14 @@ public class WorkflowOrchestrator  {
             }
         }
 
+        admissionScheduler.setRunningSubmissions(runningSubmissions);
+
         // list the current jobs according to the workflow system
         List<WorkflowJob> jobs = workflowManager.listWorkflowJobs(null);
+        if (instanceId!=null) runningSubmissions = getSubmissionsForThisInstance(runningSubmissions, jobs);
         // the two lists should be the same ...
         Map<String, SubmissionBundle> workflowIdToSubmissionMap = workflowIdsForSubmissions(runningSubmissions);
+        if (stateJournal!=null) updateStateJournal(runningSubmissions);
         {
             Map<String, WorkflowJob> workflowIdToJobMap = workflowIdsForJobs(jobs);
             Set<WorkflowJob> jobsWithoutSubmissions = new HashSet<WorkflowJob>();
@@ -400,84 +753,343 @@ public class WorkflowOrchestrator  {
             }
         }
 
+        if (workflowIdsToUpdate!=null) {
+            for (Iterator<WorkflowJob> iterator=jobs.iterator(); iterator.hasNext();) {
+                if (!workflowIdsToUpdate.contains(iterator.next().getWorkflowId())) iterator.remove();
+            }
+        }
+
+        updateWorkflowJobs(jobs, workflowIdToSubmissionMap);
+    }
+
+    /*
+     * Retrieve from Synapse just the submissions for the given workflow jobs, found using the state journal.
+     * Returns null if the journal does not agree with Synapse about any of them, in which case the caller
+     * must list all the running submissions instead.
+     */
+    private Map<String, SubmissionBundle> getJournaledSubmissions(Set<String> workflowIds) throws SynapseException {
+        // look up all the submissions at once
+        Map<String,CompletableFuture<SubmissionStatus>> statuses = new HashMap<String,CompletableFuture<SubmissionStatus>>();
+        Map<String,CompletableFuture<Submission>> submissions = new HashMap<String,CompletableFuture<Submission>>();
+        for (String workflowId : workflowIds) {
+            String submissionId = stateJournal.getSubmissionIdForWorkflow(workflowId);
+            if (submissionId==null) return null;
+            statuses.put(workflowId, asyncSynapse.getSubmissionStatus(submissionId));
+            submissions.put(workflowId, asyncSynapse.getSubmission(submissionId));
+        }
+        Map<String, SubmissionBundle> result = new HashMap<String, SubmissionBundle>();
+        for (String workflowId : workflowIds) {
+            SubmissionStatus submissionStatus = AsyncSynapseClient.get(statuses.get(workflowId));
+            if (submissionStatus.getStatus()!=getInProgressSubmissionState() ||
+                    !workflowId.equals(EvaluationUtils.getStringAnnotation(submissionStatus, WORKFLOW_JOB_ID))) return null;
+            SubmissionBundle submissionBundle = new SubmissionBundle();
+            submissionBundle.setSubmission(AsyncSynapseClient.get(submissions.get(workflowId)));
+            submissionBundle.setSubmissionStatus(submissionStatus);
+            result.put(workflowId, submissionBundle);
+        }
+        return result;
+    }
+
+    /*
+     * Bring the state journal into line with the running submissions, as listed in Synapse
+     */
+    private void updateStateJournal(List<SubmissionBundle> runningSubmissions) throws IOException {
+        Set<String> submissionIds = new HashSet<String>();
+        for (SubmissionBundle sb : runningSubmissions) {
+            String submissionId = sb.getSubmission().getId();
+            submissionIds.add(submissionId);
+            SubmissionStatus submissionStatus = sb.getSubmissionStatus();
+            String workflowId = EvaluationUtils.getStringAnnotation(submissionStatus, WORKFLOW_JOB_ID);
+            StateJournal.Entry entry = stateJournal.get(submissionId);
+            if (entry!=null && workflowId.equals(entry.getWorkflowId())) continue;
+            // e.g. a submission started before the journal was set up
+            entry = new StateJournal.Entry(submissionId);
+            entry.setEvaluationId(sb.getSubmission().getEvaluationId());
+            entry.setWorkflowId(workflowId);
+            entry.setLastLogUpload(EvaluationUtils.getLongAnnotation(submissionStatus, LAST_LOG_UPLOAD));
+            entry.setStartedMessageSent(Boolean.parseBoolean(
+                    EvaluationUtils.getStringAnnotation(submissionStatus, SUBMISSION_PROCESSING_STARTED_SENT)));
+            stateJournal.put(entry);
+        }
+        stateJournal.retainOnly(submissionIds);
+    }
+
+    /*
+     * Check and update the given jobs, whose submissions are given by 'workflowIdToSubmissionMap'
+     */
+    private void updateWorkflowJobs(List<WorkflowJob> jobs, Map<String, SubmissionBundle> workflowIdToSubmissionMap) throws InterruptedException {
         String shareImmediatelyString = getProperty("SHARE_RESULTS_IMMEDIATELY", false);
-        boolean shareImmediately = StringUtils.isEmpty(shareImmediatelyString) ? true : new Boolean(shareImmediatelyString);
+        final boolean shareImmediately = StringUtils.isEmpty(shareImmediatelyString) ? true : new Boolean(shareImmediatelyString);
 
-        // Now go through the list of running jobs, checking and updating each
+        List<Submission> submissions = new ArrayList<Submission>();
         for (WorkflowJob job : jobs) {
+            SubmissionBundle submissionBundle = workflowIdToSubmissionMap.get(job.getWorkflowId());
+            if (submissionBundle!=null) submissions.add(submissionBundle.getSubmission());
+        }
+        prefetchSubmitters(submissions);
+
+        // when batching, the submission statuses are written together at the end of the pass
+        final SubmissionStatusBatchWriter batchWriter = getBooleanProperty(BATCH_SUBMISSION_STATUS_UPDATES_PROPERTY_NAME, false) ?
+                new SubmissionStatusBatchWriter(synapse, submissionUtils) : null;
+
+        // Now go through the list of running jobs, checking and updating each.  The jobs are independent
+        // of one another so we update them in parallel, and the failure of one does not hold up the rest.
+        // Retries made on behalf of an update stop at the end of the pass, when the update would be cancelled anyway.
+        long updatePassTimeoutMillis = getUpdatePassTimeoutMillis();
+        final long passDeadline = System.currentTimeMillis()+updatePassTimeoutMillis;
+        List<UpdateTask> updates = new ArrayList<UpdateTask>();
+        for (final WorkflowJob job : jobs) {
             final SubmissionBundle submissionBundle = workflowIdToSubmissionMap.get(job.getWorkflowId());
-            final Submission submission = submissionBundle.getSubmission();
-            final SubmissionStatus submissionStatus = submissionBundle.getSubmissionStatus();
-            final SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+            UpdateTask update = new UpdateTask() {
+                @Override
+                protected void update() throws Exception {
+                    ExponentialBackoffRunner.setDeadline(passDeadline);
+                    try {
+                        updateWorkflowJob(job, submissionBundle, shareImmediately, batchWriter);
+                    } finally {
+                        ExponentialBackoffRunner.setDeadline(null);
+                    }
+                }
+            };
+            update.future = workerPool.submit(update);
+            updates.add(update);
+        }
+        awaitUpdates(updates, updatePassTimeoutMillis);
+        if (batchWriter!=null) {
+            // the batched writes, too, are retried no later than the end of the pass
+            ExponentialBackoffRunner.setDeadline(passDeadline);
+            try {
+                batchWriter.flush();
+            } finally {
+                ExponentialBackoffRunner.setDeadline(null);
+            }
+        }
+    }
 
-            String submissionFolderIdAnnotation = EvaluationUtils.getStringAnnotation(submissionStatus, SUBMISSION_ARTIFACTS_FOLDER);
-            String sharedSubmissionFolderId = shareImmediately ? submissionFolderIdAnnotation : null;
+    private static long getUpdatePassTimeoutMillis() {
+        return getLongProperty(UPDATE_PASS_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_UPDATE_PASS_TIMEOUT_SECONDS)*1000L;
+    }
 
+    /*
+     * A job update which, once cancelled, can still be waited for.  Future.get() returns as
+     * soon as a task is cancelled, but the task may run on until it notices the interrupt.
+     */
+    private static abstract class UpdateTask implements Callable<Void> {
+        Future<?> future;
+        private boolean started = false;
+        private boolean cancelled = false;
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        protected abstract void update() throws Exception;
+
+        @Override
+        public Void call() throws Exception {
+            synchronized (this) {
+                if (cancelled) return null;
+                started = true;
+            }
             try {
-                Double progress = null;
-                WorkflowUpdateStatus containerCompletionStatus = null;
-                {
-                    WorkflowStatus initialWorkflowStatus = workflowManager.getWorkflowStatus(job);
-                    progress = initialWorkflowStatus.getProgress();
-                    containerCompletionStatus = updateJob(job, initialWorkflowStatus, submissionBundle, statusMods);
-
-                    // we will apply the statusMods to the submissionStatus at the time we update in Synapse,
-                    // but we do so here just so that we have access to the submisson's history and the recent updates
-                    // in a single object
-                    applyModifications(submissionStatus, statusMods);
+                update();
+            } finally {
+                finished.countDown();
+            }
+            return null;
+        }
+
+        /*
+         * Cancel the update.  If it has started, wait for at most 'timeoutMillis' for it to finish.
+         * @return true if the update is not running
+         */
+        boolean cancelAndAwait(long timeoutMillis) throws InterruptedException {
+            future.cancel(true);
+            synchronized (this) {
+                cancelled = true;
+                if (!started) return true;
+            }
+            return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * Wait for the given job updates to complete.  Any update still running at the
+     * end of the pass is cancelled.  Its job is simply picked up again in the next pass.
+     * The cancelled updates are waited for too, so that nothing they do overlaps what
+     * follows the pass, e.g. the writing of the batched submission statuses.
+     */
+    private void awaitUpdates(List<UpdateTask> updates, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+timeoutMillis;
+        List<UpdateTask> cancelled = new ArrayList<UpdateTask>();
+        try {
+            for (UpdateTask update : updates) {
+                try {
+                    update.future.get(Math.max(0L, deadline-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    update.future.cancel(true);
+                    cancelled.add(update);
+                    log.warn("Workflow job update did not complete within "+timeoutMillis+" ms.  It has been cancelled and will be retried.");
+                } catch (ExecutionException e) {
+                    log.error("Workflow job update failed", e.getCause());
                 }
-                switch(containerCompletionStatus) {
-                case IN_PROGRESS:
-                    statusMods.setStatus(getInProgressSubmissionState());
-                    break;
-                case DONE:
-                    statusMods.setStatus(getFinalSubmissionState());
-                    EvaluationUtils.removeAnnotation(statusMods, FAILURE_REASON);
-                    if (notificationEnabled(SUBMISSION_COMPLETED)) {
-                        Submitter submitter = submissionUtils.getSubmitter(submission);
-                        String messageBody = createWorkflowCompleteMessage(submitter.getName(), submission.getId(), sharedSubmissionFolderId);
-                        messageUtils.sendMessage(submitter.getId(), WORKFLOW_COMPLETE_SUBJECT,  messageBody);
-                    }
-                    break;
-                case REJECTED:
-                    statusMods.setStatus(SubmissionStatusEnum.REJECTED);
-                    break;
-                case ERROR_ENCOUNTERED_DURING_EXECUTION:
-                case STOPPED_UPON_REQUEST:
-                case STOPPED_TIME_OUT:
-                    statusMods.setStatus(SubmissionStatusEnum.INVALID);
-                    if (containerCompletionStatus==ERROR_ENCOUNTERED_DURING_EXECUTION && notificationEnabled(SUBMISSION_FAILED) ||
-                        containerCompletionStatus==STOPPED_UPON_REQUEST && notificationEnabled(SUBMISSION_STOPPED_BY_USER) ||
-                        containerCompletionStatus==STOPPED_TIME_OUT && notificationEnabled(SUBMISSION_TIMED_OUT)) {
-                        Submitter submitter = submissionUtils.getSubmitter(submission);
-                        String messageBody = createWorkflowFailedMessage(submitter.getName(), submission.getId(),
-                                EvaluationUtils.getStringAnnotation(submissionStatus, FAILURE_REASON),
-                                null, sharedSubmissionFolderId);
-                        messageUtils.sendMessage(submitter.getId(), WORKFLOW_FAILURE_SUBJECT,  messageBody);
-                    }
-                    break;
-                default:
-                    throw new IllegalStateException(containerCompletionStatus.toString());
+            }
+            for (UpdateTask update : cancelled) {
+                if (!update.cancelAndAwait(timeoutMillis)) {
+                    log.error("A cancelled workflow job update is still running after a further "+timeoutMillis+" ms.");
                 }
-                EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), PUBLIC_ANNOTATION_SETTING);
-                if (progress!=null) {
-                    EvaluationUtils.setAnnotation(statusMods, PROGRESS, progress, false);
+            }
+        } catch (InterruptedException e) {
+            for (UpdateTask update : updates) update.future.cancel(true);
+            throw e;
+        }
+    }
+
+    /*
+     * Check the status of the given job and update its submission accordingly.
+     * A failure is reported to the administrator but does not propagate, so that
+     * the other jobs in the pass are unaffected.  If 'batchWriter' is not null the
+     * submission status is queued there rather than written immediately.
+     */
+    private void updateWorkflowJob(final WorkflowJob job, SubmissionBundle submissionBundle, boolean shareImmediately,
+            SubmissionStatusBatchWriter batchWriter) throws SynapseException, IOException {
+        final Submission submission = submissionBundle.getSubmission();
+        final SubmissionStatus submissionStatus = submissionBundle.getSubmissionStatus();
+        final SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+        final HeartbeatCoalescer.Snapshot lastWritten = HeartbeatCoalescer.snapshot(submissionStatus);
+
+        String submissionFolderIdAnnotation = EvaluationUtils.getStringAnnotation(submissionStatus, SUBMISSION_ARTIFACTS_FOLDER);
+        String sharedSubmissionFolderId = shareImmediately ? submissionFolderIdAnnotation : null;
+
+        try {
+            Double progress = null;
+            WorkflowUpdateStatus containerCompletionStatus = null;
+            {
+                WorkflowStatus initialWorkflowStatus = workflowManager.getWorkflowStatus(job);
+                progress = initialWorkflowStatus.getProgress();
+                containerCompletionStatus = updateJob(job, initialWorkflowStatus, submissionBundle, statusMods);
+
+                // we will apply the statusMods to the submissionStatus at the time we update in Synapse,
+                // but we do so here just so that we have access to the submisson's history and the recent updates
+                // in a single object
+                applyModifications(submissionStatus, statusMods);
+            }
+            switch(containerCompletionStatus) {
+            case IN_PROGRESS:
+                statusMods.setStatus(getInProgressSubmissionState());
+                break;
+            case DONE:
+                statusMods.setStatus(getFinalSubmissionState());
+                EvaluationUtils.removeAnnotation(statusMods, FAILURE_REASON);
+                if (notificationEnabled(SUBMISSION_COMPLETED)) {
+                    Submitter submitter = submissionUtils.getSubmitter(submission);
+                    String messageBody = createWorkflowCompleteMessage(submitter.getName(), submission.getId(), sharedSubmissionFolderId);
+                    messageUtils.sendMessage(submitter.getId(), WORKFLOW_COMPLETE_SUBJECT,  messageBody, WORKFLOW_COMPLETE_SUBJECT+"/"+submission.getId());
+                }
+                break;
+            case REJECTED:
+                statusMods.setStatus(SubmissionStatusEnum.REJECTED);
+                break;
+            case ERROR_ENCOUNTERED_DURING_EXECUTION:
+            case STOPPED_UPON_REQUEST:
+            case STOPPED_TIME_OUT:
+                statusMods.setStatus(SubmissionStatusEnum.INVALID);
+                if (containerCompletionStatus==ERROR_ENCOUNTERED_DURING_EXECUTION && notificationEnabled(SUBMISSION_FAILED) ||
+                    containerCompletionStatus==STOPPED_UPON_REQUEST && notificationEnabled(SUBMISSION_STOPPED_BY_USER) ||
+                    containerCompletionStatus==STOPPED_TIME_OUT && notificationEnabled(SUBMISSION_TIMED_OUT)) {
+                    Submitter submitter = submissionUtils.getSubmitter(submission);
+                    String messageBody = createWorkflowFailedMessage(submitter.getName(), submission.getId(),
+                            EvaluationUtils.getStringAnnotation(submissionStatus, FAILURE_REASON),
+                            null, sharedSubmissionFolderId);
+                    messageUtils.sendMessage(submitter.getId(), WORKFLOW_FAILURE_SUBJECT,  messageBody, WORKFLOW_FAILURE_SUBJECT+"/"+submission.getId());
                 }
+                break;
+            default:
+                throw new IllegalStateException(containerCompletionStatus.toString());
+            }
+            EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), PUBLIC_ANNOTATION_SETTING);
+            // renew our claim on the submission
+            if (instanceId!=null) SubmissionUtils.setLease(statusMods, instanceId, getSubmissionLeaseMillis());
+            if (progress!=null) {
+                EvaluationUtils.setAnnotation(statusMods, PROGRESS, progress, false);
+            }
+            if (!HeartbeatCoalescer.isWorthWriting(lastWritten, statusMods, System.currentTimeMillis())) {
+                log.debug("Skipping heartbeat for submission "+submission.getId());
+                return;
+            }
+            final boolean finished = containerCompletionStatus!=IN_PROGRESS;
+            if (batchWriter==null) {
                 submissionUtils.updateSubmissionStatus(submissionStatus, statusMods);
-            } catch (final Throwable t) {
-                log.error("Pipeline failed", t);
-                final String submissionId = submission==null?null:submission.getId();
-                final String workflowDescription = job==null?null:job.toString();
-                final String errorMessage = createPipelineFailureMessage(submissionId, workflowDescription, ExceptionUtils.getStackTrace(t));
-                // send this notification to an admin, not to the submitter
-                messageUtils.sendMessage(getNotificationPrincipalId(), SUBMISSION_PIPELINE_FAILURE_SUBJECT,
-                        errorMessage);
-
-                throw t;
+                submissionStatusUpdated(job, submission, finished);
+            } else {
+                batchWriter.add(submission.getEvaluationId(), submissionStatus, statusMods, new SubmissionStatusBatchWriter.Outcome() {
+                    @Override
+                    public void written() throws Throwable {
+                        submissionStatusUpdated(job, submission, finished);
+                    }
+                    @Override
+                    public void failed(Throwable t) {
+                        try {
+                            reportPipelineFailure(job, submission, t);
+                        } catch (SynapseException|IOException e) {
+                            log.error("Failed to report pipeline failure", e);
+                        }
+                    }
+                });
             }
+        } catch (final Throwable t) {
+            reportPipelineFailure(job, submission, t);
         }
     }
 
+    /*
+     * Called once the submission's status has been written.  A finished job is deleted
+     * only now, so that if the final status could not be written the job is still there,
+     * and found to be finished, in the next pass.
+     */
+    private void submissionStatusUpdated(WorkflowJob job, Submission submission, boolean finished) throws IOException {
+        if (finished) {
+            workflowManager.deleteWorkFlowJob(job);
+            admissionScheduler.submissionFinished(submission);
+            if (stateJournal!=null) stateJournal.remove(submission.getId());
+        }
+    }
+
+    private void reportPipelineFailure(WorkflowJob job, Submission submission, Throwable t) throws SynapseException, IOException {
+        log.error("Pipeline failed", t);
+        final String submissionId = submission==null?null:submission.getId();
+        final String workflowDescription = job==null?null:job.toString();
+        final String errorMessage = createPipelineFailureMessage(submissionId, workflowDescription, ExceptionUtils.getStackTrace(t));
+        // send this notification to an admin, not to the submitter
+        messageUtils.sendMessage(getNotificationPrincipalId(), SUBMISSION_PIPELINE_FAILURE_SUBJECT,
+                errorMessage, SUBMISSION_PIPELINE_FAILURE_SUBJECT+"/"+submissionId+"/"+t.getMessage());
+    }
+
+    /*
+     * The folder for the submission's results, as recorded in the state journal if we have
+     * one, otherwise found (or created) in Synapse and then recorded in the journal
+     */
+    private Folder getSubmissionUploadFolder(String submissionId, String submittingUserOrTeamId, boolean sharedWithSubmitter) throws SynapseException, IOException {
+        StateJournal.Entry entry = stateJournal==null ? null : stateJournal.get(submissionId);
+        String folderId = entry==null ? null : (sharedWithSubmitter ? entry.getSharedFolderId() : entry.getLockedFolderId());
+        if (folderId!=null) {
+            Folder folder = new Folder();
+            folder.setId(folderId);
+            return folder;
+        }
+        Folder folder = archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, sharedWithSubmitter);
+        if (entry!=null) {
+            if (sharedWithSubmitter) entry.setSharedFolderId(folder.getId()); else entry.setLockedFolderId(folder.getId());
+            stateJournal.put(entry);
+        }
+        return folder;
+    }
+
+    private void forgetSubmissionUploadFolders(String submissionId) throws IOException {
+        StateJournal.Entry entry = stateJournal==null ? null : stateJournal.get(submissionId);
+        if (entry==null) return;
+        entry.setSharedFolderId(null);
+        entry.setLockedFolderId(null);
+        stateJournal.put(entry);
+    }
+
     /*
      * The possible states and the corresponding actions:
      *
@@ -542,28 +1154,60 @@ public class WorkflowOrchestrator  {
         }
 
         Long lastLogUploadTimeStamp = EvaluationUtils.getLongAnnotation(submissionStatus, LAST_LOG_UPLOAD);
+        // the journal knows of uploads which could not be recorded in Synapse
+        StateJournal.Entry journalEntry = stateJournal==null ? null : stateJournal.get(submission.getId());
+        if (journalEntry!=null && journalEntry.getLastLogUpload()!=null &&
+                (lastLogUploadTimeStamp==null || journalEntry.getLastLogUpload()>lastLogUploadTimeStamp)) {
+            lastLogUploadTimeStamp = journalEntry.getLastLogUpload();
+        }
 
         boolean timeToUploadLogs = lastLogUploadTimeStamp==null ||
                 lastLogUploadTimeStamp+UPLOAD_PERIOD_MILLIS<System.currentTimeMillis();
 
+        // once a log has exceeded its quota, we upload its head and tail just once more, when the container finishes
+        boolean logFileSizeExceeded = EvaluationUtils.getStringAnnotation(submissionStatus, LOG_FILE_SIZE_EXCEEDED)!=null;
+
         String logTail = null;
         String submissionFolderId = null;
         // we upload logs periodically and when container finally finishes, unless we've exceeded the maximum log size
-        if ((true/*TODO not if log file size exceeded*/) && (timeToUploadLogs || !isRunning)) {
+        if ((!logFileSizeExceeded || !isRunning) && (timeToUploadLogs || !isRunning)) {
             String submittingUserOrTeamId = SubmissionUtils.getSubmittingUserOrTeamId(submission);
             Submitter submitter = submissionUtils.getSubmitter(submission);
 
-            Folder submissionFolder =  archiver.getOrCreateSubmissionUploadFolder(submission.getId(), submittingUserOrTeamId);
+            String shareImmediatelyString = getProperty("SHARE_RESULTS_IMMEDIATELY", false);
+            boolean shareImmediately = StringUtils.isEmpty(shareImmediatelyString) ? true : new Boolean(shareImmediatelyString);
+            Folder submissionFolder =  getSubmissionUploadFolder(submission.getId(), submittingUserOrTeamId, shareImmediately);
 
-            logTail = archiver.uploadLogs(
-                    job,
-                    submission.getId(),
-                    submittingUserOrTeamId,
-                    LOGS_SUFFIX,
-                    MAX_LOG_ANNOTATION_CHARS,
-                    submissionFolder);
+            Archiver.LogUpload logUpload;
+            try {
+                logUpload = archiver.uploadLogs(
+                        job,
+                        submission.getId(),
+                        submittingUserOrTeamId,
+                        LOGS_SUFFIX,
+                        MAX_LOG_ANNOTATION_CHARS,
+                        submissionFolder,
+                        getLogQuotaBytes(),
+                        getLongProperty(LOG_QUOTA_HEAD_BYTES_PROPERTY_NAME, DEFAULT_LOG_QUOTA_HEAD_BYTES));
+            } catch (SynapseNotFoundException e) {
+                // the folder may have been deleted, so find or create it afresh next time
+                forgetSubmissionUploadFolders(submission.getId());
+                throw e;
+            }
+            if (logUpload!=null) {
+                logTail = logUpload.getTail();
+                if (logUpload.isTruncated() && !logFileSizeExceeded) {
+                    updatedWhenLogFileSizeExceeded = System.currentTimeMillis();
+                }
+            }
 
             submissionFolderId = submissionFolder==null?null:submissionFolder.getId();
+            // re-read the entry, in which the folder may just have been recorded
+            if (journalEntry!=null) journalEntry = stateJournal.get(submission.getId());
+            if (journalEntry!=null) {
+                journalEntry.setLastLogUpload(System.currentTimeMillis());
+                stateJournal.put(journalEntry);
+            }
 
             if (ERROR_ENCOUNTERED_DURING_EXECUTION.toString().equals(failureReason)) {
                 failureReason = logTail;
@@ -572,9 +1216,8 @@ public class WorkflowOrchestrator  {
             String hasSubmissionStartedMessageBeenSentString = EvaluationUtils.getStringAnnotation(submissionStatus, SUBMISSION_PROCESSING_STARTED_SENT);
 
             boolean hasSubmissionStartedMessageBeenSent = hasSubmissionStartedMessageBeenSentString!=null && new Boolean(hasSubmissionStartedMessageBeenSentString);
+            if (journalEntry!=null && journalEntry.isStartedMessageSent()) hasSubmissionStartedMessageBeenSent = true;
             if (isRunning && !hasSubmissionStartedMessageBeenSent && notificationEnabled(SUBMISSION_STARTED)) {
-                String shareImmediatelyString = getProperty("SHARE_RESULTS_IMMEDIATELY", false);
-                boolean shareImmediately = StringUtils.isEmpty(shareImmediatelyString) ? true : new Boolean(shareImmediatelyString);
                 String sharedSubmissionFolderId = shareImmediately ? submissionFolderId : null;
                 String messageBody = createSubmissionStartedMessage(submitter.getName(), submission.getId(), sharedSubmissionFolderId);
                 Evaluation evaluation = evaluationUtils.getEvaluation(submission.getEvaluationId());
@@ -588,15 +1231,15 @@ public class WorkflowOrchestrator  {
                     subject.append(evaluation.getId());
                     subject.append(")");
                 }
-                messageUtils.sendMessage(submittingUserOrTeamId, subject.toString(), messageBody);
+                messageUtils.sendMessage(submittingUserOrTeamId, subject.toString(), messageBody, SUBMISSION_PROCESSING_STARTED_SUBJECT+"/"+submission.getId());
                 updatedHasSubmissionStartedMessageBeenSent=true;
+                if (journalEntry!=null) {
+                    journalEntry.setStartedMessageSent(true);
+                    stateJournal.put(journalEntry);
+                }
             }
         } // end uploading logs
 
-        if (!isRunning) {
-            workflowManager.deleteWorkFlowJob(job);
-        }
-
         EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), PUBLIC_ANNOTATION_SETTING);
         if (submissionFolderId!=null) {
             EvaluationUtils.setAnnotation(statusMods, LAST_LOG_UPLOAD, System.currentTimeMillis(), ADMIN_ANNOTS_ARE_PRIVATE);
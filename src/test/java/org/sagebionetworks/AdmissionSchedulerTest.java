@@ -0,0 +1,137 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.sagebionetworks.Constants.EVALUATION_WEIGHTS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER_PROPERTY_NAME;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.sagebionetworks.evaluation.model.Submission;
+import org.sagebionetworks.evaluation.model.SubmissionBundle;
+
+public class AdmissionSchedulerTest {
+
+    private static final String EVALUATION_A = "111";
+    private static final String EVALUATION_B = "222";
+
+    private AdmissionScheduler scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        scheduler = new AdmissionScheduler();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty(MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME);
+        System.clearProperty(MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER_PROPERTY_NAME);
+        System.clearProperty(EVALUATION_WEIGHTS_PROPERTY_NAME);
+    }
+
+    private static SubmissionBundle createSubmission(String id, String evaluationId, String userId, long createdOn) {
+        Submission submission = new Submission();
+        submission.setId(id);
+        submission.setEvaluationId(evaluationId);
+        submission.setUserId(userId);
+        submission.setCreatedOn(new Date(createdOn));
+        SubmissionBundle result = new SubmissionBundle();
+        result.setSubmission(submission);
+        return result;
+    }
+
+    private static List<String> admittedIds(List<AdmissionScheduler.Decision> decisions) {
+        List<String> result = new ArrayList<String>();
+        for (AdmissionScheduler.Decision decision : decisions) {
+            if (decision.isAdmitted()) result.add(decision.getSubmissionId());
+        }
+        return result;
+    }
+
+    @Test
+    public void testOldestFirstWithinQueue() {
+        Map<String,List<SubmissionBundle>> candidates = new HashMap<String,List<SubmissionBundle>>();
+        candidates.put(EVALUATION_A, Arrays.asList(
+                createSubmission("3", EVALUATION_A, "u1", 300L),
+                createSubmission("1", EVALUATION_A, "u2", 100L),
+                createSubmission("2", EVALUATION_A, "u3", 200L)));
+
+        // method under test
+        List<AdmissionScheduler.Decision> decisions = scheduler.schedule(candidates, 2);
+
+        assertEquals(Arrays.asList("1", "2"), admittedIds(decisions));
+        assertEquals(3, decisions.size());
+        AdmissionScheduler.Decision deferred = decisions.get(2);
+        assertEquals("3", deferred.getSubmissionId());
+        assertFalse(deferred.isAdmitted());
+        assertEquals(decisions, scheduler.getLastDecisions());
+    }
+
+    @Test
+    public void testFairShareAcrossQueues() {
+        // one team has flooded queue A
+        List<SubmissionBundle> queueA = new ArrayList<SubmissionBundle>();
+        for (int i=0; i<10; i++) queueA.add(createSubmission(""+i, EVALUATION_A, "team", i));
+        Map<String,List<SubmissionBundle>> candidates = new HashMap<String,List<SubmissionBundle>>();
+        candidates.put(EVALUATION_A, queueA);
+        candidates.put(EVALUATION_B, Arrays.asList(
+                createSubmission("100", EVALUATION_B, "u1", 1000L),
+                createSubmission("101", EVALUATION_B, "u2", 1001L)));
+
+        // method under test
+        List<String> admitted = admittedIds(scheduler.schedule(candidates, 4));
+
+        assertEquals(Arrays.asList("0", "100", "1", "101"), admitted);
+    }
+
+    @Test
+    public void testWeightsAndRunningJobs() {
+        System.setProperty(EVALUATION_WEIGHTS_PROPERTY_NAME, "{\""+EVALUATION_A+"\":3}");
+        // queue A has two jobs running, queue B one
+        scheduler.setRunningSubmissions(Arrays.asList(
+                createSubmission("50", EVALUATION_A, "u9", 0L),
+                createSubmission("51", EVALUATION_A, "u9", 0L),
+                createSubmission("52", EVALUATION_B, "u9", 0L)));
+        Map<String,List<SubmissionBundle>> candidates = new HashMap<String,List<SubmissionBundle>>();
+        candidates.put(EVALUATION_A, Arrays.asList(createSubmission("1", EVALUATION_A, "u1", 100L)));
+        candidates.put(EVALUATION_B, Arrays.asList(createSubmission("2", EVALUATION_B, "u2", 200L)));
+
+        // method under test
+        List<String> admitted = admittedIds(scheduler.schedule(candidates, 1));
+
+        // with weight 3, queue A's share, 2/3, is less than queue B's
+        assertEquals(Collections.singletonList("1"), admitted);
+    }
+
+    @Test
+    public void testPerSubmitterAndPerEvaluationLimits() {
+        System.setProperty(MAX_CONCURRENT_WORKFLOWS_PER_SUBMITTER_PROPERTY_NAME, "1");
+        System.setProperty(MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME, "2");
+        Map<String,List<SubmissionBundle>> candidates = new HashMap<String,List<SubmissionBundle>>();
+        candidates.put(EVALUATION_A, Arrays.asList(
+                createSubmission("1", EVALUATION_A, "u1", 100L),
+                createSubmission("2", EVALUATION_A, "u1", 200L),
+                createSubmission("3", EVALUATION_A, "u2", 300L),
+                createSubmission("4", EVALUATION_A, "u3", 400L)));
+
+        // method under test
+        List<AdmissionScheduler.Decision> decisions = scheduler.schedule(candidates, 10);
+
+        assertEquals(Arrays.asList("1", "3"), admittedIds(decisions));
+        for (AdmissionScheduler.Decision decision : decisions) {
+            if (decision.getSubmissionId().equals("2")) assertTrue(decision.getReason().contains("submitter u1"));
+            if (decision.getSubmissionId().equals("4")) assertTrue(decision.getReason().contains("evaluation "+EVALUATION_A));
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.repo.model.ACCESS_TYPE;
+import org.sagebionetworks.repo.model.AccessControlList;
+import org.sagebionetworks.repo.model.FileEntity;
+import org.sagebionetworks.repo.model.Folder;
+import org.sagebionetworks.repo.model.file.CloudProviderFileHandleInterface;
+
+@ExtendWith(MockitoExtension.class)
+public class ArchiverTest {
+
+    @Mock
+    private SynapseClient mockSynapse;
+
+    @Mock
+    private WorkflowManager mockWorkflowManager;
+
+    @Mock
+    private WorkflowJob mockWorkflowJob;
+
+    private Archiver archiver;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        System.setProperty("WORKFLOW_OUTPUT_ROOT_ENTITY_ID", "syn100");
+        archiver = new Archiver(mockSynapse, mockWorkflowManager, new FolderCache());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        System.clearProperty("WORKFLOW_OUTPUT_ROOT_ENTITY_ID");
+    }
+
+    @Test
+    public void testGetOrCreateSubmissionUploadFolderIsCached() throws Exception {
+        when(mockSynapse.createEntity(any(Folder.class))).thenAnswer(i -> {
+            Folder folder = i.getArgument(0);
+            folder.setId(folder.getParentId().equals("syn100") ? "syn101" : "syn102");
+            return folder;
+        });
+        when(mockSynapse.getACL("syn101")).thenReturn(new AccessControlList());
+
+        Folder folder = archiver.getOrCreateSubmissionUploadFolder("3350000", "273950", true);
+        // call under test
+        Folder cachedFolder = archiver.getOrCreateSubmissionUploadFolder("3350000", "273950", true);
+
+        assertEquals("syn102", folder.getId());
+        assertEquals("syn102", cachedFolder.getId());
+        verify(mockSynapse, times(2)).createEntity(any(Folder.class));
+        verify(mockSynapse, times(1)).getACL("syn101");
+        verifyNoMoreInteractions(mockSynapse);
+    }
+
+    @Test
+    public void testShareEntityIsCachedPerPrincipal() throws Exception {
+        when(mockSynapse.getACL("syn101")).thenReturn(new AccessControlList());
+        Map<String,Set<ACCESS_TYPE>> submitter = Collections.singletonMap("273950", Collections.singleton(ACCESS_TYPE.READ));
+        Map<String,Set<ACCESS_TYPE>> submitterAndUnlocker = new HashMap<String,Set<ACCESS_TYPE>>(submitter);
+        submitterAndUnlocker.put("273951", Collections.singleton(ACCESS_TYPE.READ));
+
+        archiver.shareEntity("syn101", submitter);
+        // call under test
+        archiver.shareEntity("syn101", submitterAndUnlocker);
+        archiver.shareEntity("syn101", submitterAndUnlocker);
+
+        // the second principal is not taken to be shared just because the first one is
+        verify(mockSynapse, times(2)).getACL("syn101");
+    }
+
+    @Test
+    public void testUploadLogsStreamsIntoArchive() throws Throwable {
+        final String content = "STDOUT: line 1\r\nSTDERR: line 2\r\n";
+        when(mockWorkflowManager.getWorkflowLog(eq(mockWorkflowJob), any(OutputStream.class), eq(10))).thenAnswer(i -> {
+            OutputStream os = i.getArgument(1);
+            os.write(content.getBytes(StandardCharsets.UTF_8));
+            return "tail";
+        });
+        final String[] uploaded = new String[2];
+        final File[] zipFile = new File[1];
+        CloudProviderFileHandleInterface fileHandle = mock(CloudProviderFileHandleInterface.class);
+        when(fileHandle.getId()).thenReturn("101");
+        when(mockSynapse.multipartUpload(any(File.class), isNull(), anyBoolean(), anyBoolean())).thenAnswer(i -> {
+            zipFile[0] = i.getArgument(0);
+            try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile[0]))) {
+                ZipEntry entry = zis.getNextEntry();
+                uploaded[0] = entry.getName();
+                uploaded[1] = IOUtils.toString(zis, StandardCharsets.UTF_8);
+                assertNull(zis.getNextEntry());
+            }
+            return fileHandle;
+        });
+        when(mockSynapse.createEntity(any(FileEntity.class))).thenAnswer(i -> {
+            FileEntity fileEntity = i.getArgument(0);
+            fileEntity.setId("syn103");
+            return fileEntity;
+        });
+        Folder folder = new Folder();
+        folder.setId("syn102");
+
+        // method under test
+        Archiver.LogUpload logUpload = archiver.uploadLogs(mockWorkflowJob, "3350000", "273950", "_logs", 10, folder, null, 0L);
+
+        assertEquals("tail", logUpload.getTail());
+        assertEquals(content.length(), logUpload.getSize());
+        assertFalse(logUpload.isTruncated());
+        assertEquals("3350000_logs.zip", zipFile[0].getName());
+        assertEquals("3350000_logs.txt", uploaded[0]);
+        assertEquals(content, uploaded[1]);
+        assertFalse(zipFile[0].exists());
+    }
+
+    @Test
+    public void testUploadLogsNoContent() throws Throwable {
+        Folder folder = new Folder();
+        folder.setId("syn102");
+
+        // method under test
+        assertNull(archiver.uploadLogs(mockWorkflowJob, "3350000", "273950", "_logs", 10, folder, null, 0L));
+
+        verify(mockSynapse, never()).multipartUpload(any(File.class), any(), any(), any());
+    }
+
+    @Test
+    public void testUploadLogsExceedingQuota() throws Throwable {
+        when(mockWorkflowManager.getWorkflowLog(eq(mockWorkflowJob), any(OutputStream.class), isNull())).thenAnswer(i -> {
+            OutputStream os = i.getArgument(1);
+            for (int j=0; j<1000; j++) os.write(("line "+j+"\r\n").getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        final String[] uploaded = new String[1];
+        CloudProviderFileHandleInterface fileHandle = mock(CloudProviderFileHandleInterface.class);
+        when(fileHandle.getId()).thenReturn("101");
+        when(mockSynapse.multipartUpload(any(File.class), isNull(), anyBoolean(), anyBoolean())).thenAnswer(i -> {
+            try (ZipInputStream zis = new ZipInputStream(new FileInputStream((File)i.getArgument(0)))) {
+                zis.getNextEntry();
+                uploaded[0] = IOUtils.toString(zis, StandardCharsets.UTF_8);
+            }
+            return fileHandle;
+        });
+        when(mockSynapse.createEntity(any(FileEntity.class))).thenAnswer(i -> i.getArgument(0));
+        Folder folder = new Folder();
+        folder.setId("syn102");
+
+        // method under test
+        Archiver.LogUpload logUpload = archiver.uploadLogs(mockWorkflowJob, "3350000", "273950", "_logs", null, folder, 100L, 10L);
+
+        assertTrue(logUpload.isTruncated());
+        assertTrue(uploaded[0].startsWith("line 0\r\nli\r\n[... "), uploaded[0]);
+        assertTrue(uploaded[0].endsWith("line 998\r\nline 999\r\n"), uploaded[0]);
+    }
+
+}
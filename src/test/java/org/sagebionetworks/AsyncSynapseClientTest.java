@@ -0,0 +1,73 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+
+@ExtendWith(MockitoExtension.class)
+public class AsyncSynapseClientTest {
+
+    @Mock
+    private SynapseClient mockSynapse;
+
+    private ExecutorService executor;
+
+    private AsyncSynapseClient asyncSynapse;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        executor = Utils.createDaemonThreadPool("test-io", 2);
+        asyncSynapse = new AsyncSynapseClient(mockSynapse, executor);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        ExponentialBackoffRunner.setDeadline(null);
+    }
+
+    @Test
+    public void testCall() throws Exception {
+        SubmissionStatus status = new SubmissionStatus();
+        when(mockSynapse.getSubmissionStatus("111")).thenReturn(status);
+        when(mockSynapse.getSubmissionStatus("222")).thenThrow(new SynapseNotFoundException("not found"));
+
+        // method under test
+        CompletableFuture<SubmissionStatus> found = asyncSynapse.getSubmissionStatus("111");
+        CompletableFuture<SubmissionStatus> notFound = asyncSynapse.getSubmissionStatus("222");
+
+        assertEquals(status, AsyncSynapseClient.get(found));
+        // the original exception is thrown
+        assertThrows(SynapseNotFoundException.class, () -> AsyncSynapseClient.get(notFound));
+    }
+
+    @Test
+    public void testDeadlineIsPassedOn() throws Exception {
+        ExponentialBackoffRunner.setDeadline(12345L);
+
+        // method under test
+        CompletableFuture<Long> deadline = asyncSynapse.call(new AsyncSynapseClient.SynapseCall<Long>() {
+            @Override
+            public Long call(SynapseClient synapse) throws SynapseException {
+                return ExponentialBackoffRunner.getDeadline();
+            }
+        });
+
+        assertEquals((Long)12345L, AsyncSynapseClient.get(deadline));
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sagebionetworks.Constants.WORKFLOW_TEMPLATE_CACHE_SECONDS_PROPERTY_NAME;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.google.common.io.Files;
+
+@ExtendWith(MockitoExtension.class)
+public class CachingWorkflowURLDownloaderTest {
+
+    @Mock
+    private URLInterface mockURLInterface;
+
+    @Mock
+    private URLInterface mockURLInterfaceForDescriptor;
+
+    @Mock
+    private URLInterface mockURLInterfaceForDescriptor2;
+
+    @Mock
+    private URLFactory mockURLFactory;
+
+    private CachingWorkflowURLDownloader downloader;
+
+    private File cacheRoot;
+
+    private String workflowUrlString = "https://dockstore.org/api/api/ga4gh/v2/tools/%23workflow%2Fgithub.com%2FBarski-lab%2Fga4gh_challenge/versions/v0.0.4/CWL";
+    private String entryPoint = "biowardrobe_chipseq_se.cwl";
+
+    private String returnJsonData = "[{\"file_type\":\"PRIMARY_DESCRIPTOR\",\"path\":\"biowardrobe_chipseq_se.cwl\"}" +
+            ",{\"file_type\":\"SECONDARY_DESCRIPTOR\",\"path\":\"subworkflows/bam-bedgraph-bigwig.cwl\"}]";
+
+    private String returnJsonDataDescriptor = "{\"file_type\":\"PRIMARY_DESCRIPTOR\",\"path\":\"biowardrobe_chipseq_se.cwl\",\"content\":\"primary\"}";
+    private String returnJsonDataDescriptor2 = "{\"file_type\":\"SECONDARY_DESCRIPTOR\",\"path\":\"subworkflows/bam-bedgraph-bigwig.cwl\",\"content\":\"secondary\"}";
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        cacheRoot = Files.createTempDir();
+        downloader = new CachingWorkflowURLDownloader(mockURLFactory, cacheRoot);
+    }
+
+    private void mockTemplate() throws Exception {
+        when(mockURLFactory.createURL(workflowUrlString)).thenReturn(mockURLInterface);
+        when(mockURLFactory.createURL(workflowUrlString + "/files")).thenReturn(mockURLInterface);
+        when(mockURLInterface.openStream()).thenAnswer(i -> new ByteArrayInputStream(returnJsonData.getBytes()));
+        when(mockURLInterface.getPath()).thenReturn(workflowUrlString);
+        when(mockURLInterface.toString()).thenReturn(workflowUrlString);
+        when(mockURLFactory.createURL(workflowUrlString + "/descriptor/biowardrobe_chipseq_se.cwl")).thenReturn(mockURLInterfaceForDescriptor);
+        when(mockURLInterfaceForDescriptor.openStream()).thenAnswer(i -> IOUtils.toInputStream(returnJsonDataDescriptor, StandardCharsets.UTF_8));
+        when(mockURLFactory.createURL(workflowUrlString + "/descriptor/subworkflows/bam-bedgraph-bigwig.cwl")).thenReturn(mockURLInterfaceForDescriptor2);
+        when(mockURLInterfaceForDescriptor2.openStream()).thenAnswer(i -> IOUtils.toInputStream(returnJsonDataDescriptor2, StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty(WORKFLOW_TEMPLATE_CACHE_SECONDS_PROPERTY_NAME);
+    }
+
+    @Test
+    public void testDownloadIsReused() throws Exception {
+        mockTemplate();
+        File folder1 = Files.createTempDir();
+        File folder2 = Files.createTempDir();
+
+        // Call under test
+        downloader.downloadWorkflowFromURL(workflowUrlString, entryPoint, folder1);
+        downloader.downloadWorkflowFromURL(workflowUrlString, entryPoint, folder2);
+
+        verify(mockURLFactory, times(1)).createURL(workflowUrlString);
+        for (File folder : new File[] {folder1, folder2}) {
+            assertTrue(new File(folder, entryPoint).exists());
+            assertTrue(new File(folder, "subworkflows/bam-bedgraph-bigwig.cwl").exists());
+        }
+
+        // each job gets its own copy
+        try (OutputStream os = new FileOutputStream(new File(folder1, entryPoint))) {
+            IOUtils.write("changed", os, StandardCharsets.UTF_8);
+        }
+        assertEquals("primary", new String(java.nio.file.Files.readAllBytes(new File(folder2, entryPoint).toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testExpiredDownloadIsRefreshed() throws Exception {
+        mockTemplate();
+        System.setProperty(WORKFLOW_TEMPLATE_CACHE_SECONDS_PROPERTY_NAME, "0");
+
+        // Call under test
+        downloader.downloadWorkflowFromURL(workflowUrlString, entryPoint, Files.createTempDir());
+        downloader.downloadWorkflowFromURL(workflowUrlString, entryPoint, Files.createTempDir());
+
+        verify(mockURLFactory, times(2)).createURL(workflowUrlString);
+    }
+
+    @Test
+    public void testReplacedContentIsDeleted() throws Exception {
+        mockTemplate();
+        System.setProperty(WORKFLOW_TEMPLATE_CACHE_SECONDS_PROPERTY_NAME, "0");
+        downloader.downloadWorkflowFromURL(workflowUrlString, entryPoint, Files.createTempDir());
+        assertEquals(1, cacheRoot.listFiles().length);
+        // the template changes
+        when(mockURLInterfaceForDescriptor.openStream()).thenAnswer(i -> IOUtils.toInputStream(
+                returnJsonDataDescriptor.replace("primary", "changed"), StandardCharsets.UTF_8));
+        File folder = Files.createTempDir();
+
+        // Call under test
+        downloader.downloadWorkflowFromURL(workflowUrlString, entryPoint, folder);
+
+        assertEquals("changed", new String(java.nio.file.Files.readAllBytes(new File(folder, entryPoint).toPath()), StandardCharsets.UTF_8));
+        // only the new content is kept
+        File[] cached = cacheRoot.listFiles();
+        assertEquals(1, cached.length);
+        assertEquals(CachingWorkflowURLDownloader.hashDirectoryContent(folder), cached[0].getName());
+    }
+
+    @Test
+    public void testHashDirectoryContent() throws Exception {
+        File folder1 = Files.createTempDir();
+        File folder2 = Files.createTempDir();
+        for (File folder : new File[] {folder1, folder2}) {
+            try (OutputStream os = new FileOutputStream(new File(folder, "a.cwl"))) {
+                IOUtils.write("content", os, StandardCharsets.UTF_8);
+            }
+        }
+
+        // Call under test
+        assertEquals(CachingWorkflowURLDownloader.hashDirectoryContent(folder1),
+                CachingWorkflowURLDownloader.hashDirectoryContent(folder2));
+
+        try (OutputStream os = new FileOutputStream(new File(folder2, "b.cwl"))) {
+            IOUtils.write("content", os, StandardCharsets.UTF_8);
+        }
+        assertNotEquals(CachingWorkflowURLDownloader.hashDirectoryContent(folder1),
+                CachingWorkflowURLDownloader.hashDirectoryContent(folder2));
+    }
+}
@@ -0,0 +1,112 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sagebionetworks.Utils.WORKFLOW_CONTAINER_PREFIX;
+import static org.sagebionetworks.Utils.WORKFLOW_FILTER;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
+import com.github.dockerjava.api.model.Container;
+
+@ExtendWith(MockitoExtension.class)
+public class ContainerStateCacheTest {
+
+    @Mock
+    private DockerUtils mockDockerUtils;
+
+    @Mock
+    private Container mockContainer;
+
+    @Mock
+    private ContainerState mockContainerState;
+
+    private static final String CONTAINER_ID = "101";
+    private static final String CONTAINER_NAME = "workflow_job.101";
+
+    private ContainerStateCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        cache = new ContainerStateCache(mockDockerUtils, WORKFLOW_FILTER, WORKFLOW_CONTAINER_PREFIX, 60000L);
+        when(mockContainer.getId()).thenReturn(CONTAINER_ID);
+        when(mockDockerUtils.listContainers(WORKFLOW_FILTER, null, WORKFLOW_CONTAINER_PREFIX)).
+            thenReturn(Collections.singletonMap(CONTAINER_NAME, mockContainer));
+    }
+
+    @Test
+    public void testListContainers() {
+        when(mockContainer.getState()).thenReturn("running");
+
+        // method under test
+        Map<String, Container> running = cache.listContainers(true);
+        Map<String, Container> stopped = cache.listContainers(false);
+        Map<String, Container> all = cache.listContainers(null);
+
+        assertEquals(Collections.singletonMap(CONTAINER_NAME, mockContainer), running);
+        assertEquals(Collections.emptyMap(), stopped);
+        assertEquals(Collections.singletonMap(CONTAINER_NAME, mockContainer), all);
+        // the engine is only asked once within the refresh period
+        verify(mockDockerUtils, times(1)).listContainers(WORKFLOW_FILTER, null, WORKFLOW_CONTAINER_PREFIX);
+
+        cache.invalidate(CONTAINER_ID);
+        cache.listContainers(true);
+        verify(mockDockerUtils, times(2)).listContainers(WORKFLOW_FILTER, null, WORKFLOW_CONTAINER_PREFIX);
+    }
+
+    @Test
+    public void testGetContainerState() {
+        when(mockContainer.getState()).thenReturn("running", "running", "exited");
+        when(mockDockerUtils.getContainerState(CONTAINER_ID)).thenReturn(mockContainerState);
+        cache.setRefreshPeriodMillis(0L);
+        cache.listContainers(null);
+
+        // method under test
+        assertSame(mockContainerState, cache.getContainerState(CONTAINER_ID));
+        assertSame(mockContainerState, cache.getContainerState(CONTAINER_ID));
+        verify(mockDockerUtils, times(1)).getContainerState(CONTAINER_ID);
+
+        // if the listed state doesn't change we don't inspect again
+        cache.listContainers(null);
+        cache.getContainerState(CONTAINER_ID);
+        verify(mockDockerUtils, times(1)).getContainerState(CONTAINER_ID);
+
+        // but if it does, we do
+        cache.listContainers(null);
+        cache.getContainerState(CONTAINER_ID);
+        verify(mockDockerUtils, times(2)).getContainerState(CONTAINER_ID);
+    }
+
+    @Test
+    public void testInvalidateDuringInspection() throws Exception {
+        cache.listContainers(null);
+        final Thread[] invalidation = new Thread[1];
+        when(mockDockerUtils.getContainerState(CONTAINER_ID)).thenAnswer(i -> {
+            // the container changes while it is being inspected
+            invalidation[0] = new Thread(() -> cache.invalidate(CONTAINER_ID));
+            invalidation[0].start();
+            Thread.sleep(100L);
+            return mockContainerState;
+        });
+
+        // method under test
+        cache.getContainerState(CONTAINER_ID);
+        invalidation[0].join();
+        cache.getContainerState(CONTAINER_ID);
+
+        // the state read before the invalidation is not kept
+        verify(mockDockerUtils, times(2)).getContainerState(CONTAINER_ID);
+    }
+
+}
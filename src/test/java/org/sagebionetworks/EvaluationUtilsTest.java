@@ -3,7 +3,16 @@ package org.sagebionetworks;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.sagebionetworks.Constants.EXECUTION_STAGE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.INCREMENTAL_SUBMISSION_DISCOVERY_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SUBMISSION_PAGE_SIZE_PROPERTY_NAME;
 import static org.sagebionetworks.EvaluationUtils.TIME_REMAINING;
 import static org.sagebionetworks.EvaluationUtils.applyModifications;
 import static org.sagebionetworks.EvaluationUtils.getLongAnnotation;
@@ -13,11 +22,18 @@ import static org.sagebionetworks.EvaluationUtils.removeAnnotation;
 import static org.sagebionetworks.EvaluationUtils.setAnnotation;
 import static org.sagebionetworks.EvaluationUtils.setStatus;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.evaluation.model.Submission;
+import org.sagebionetworks.evaluation.model.SubmissionBundle;
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
 import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+import org.sagebionetworks.reflection.model.PaginatedResults;
 import org.sagebionetworks.repo.model.annotation.Annotations;
 import org.sagebionetworks.repo.model.annotation.LongAnnotation;
 import org.sagebionetworks.repo.model.annotation.StringAnnotation;
@@ -230,4 +246,161 @@ public class EvaluationUtilsTest {
         Long result = getTimeRemaining(status);
         assertEquals(expectedTime, result);
     }
+
+    private static <T> PaginatedResults<T> createPage(List<T> results) {
+        PaginatedResults<T> page = new PaginatedResults<T>();
+        page.setResults(results);
+        page.setTotalNumberOfResults(results.size());
+        return page;
+    }
+
+    private static SubmissionStatus createStatus(String id) {
+        SubmissionStatus status = new SubmissionStatus();
+        status.setId(id);
+        status.setStatus(SubmissionStatusEnum.RECEIVED);
+        return status;
+    }
+
+    @Test
+    public void testIncrementalSelectSubmissions() throws Exception {
+        System.setProperty(INCREMENTAL_SUBMISSION_DISCOVERY_PROPERTY_NAME, "true");
+        try {
+            SynapseClient mockSynapse = mock(SynapseClient.class);
+            EvaluationUtils evaluationUtils = new EvaluationUtils(mockSynapse);
+            String evaluationId = "9614112";
+            Submission submission1 = new Submission();
+            submission1.setId("111");
+            SubmissionBundle bundle1 = new SubmissionBundle();
+            bundle1.setSubmission(submission1);
+            bundle1.setSubmissionStatus(createStatus("111"));
+            Submission submission2 = new Submission();
+            submission2.setId("222");
+            when(mockSynapse.getAllSubmissionBundlesByStatus(eq(evaluationId), eq(SubmissionStatusEnum.RECEIVED), anyLong(), anyLong())).
+                thenReturn(createPage(Collections.singletonList(bundle1)));
+            when(mockSynapse.getAllSubmissionStatusesByStatus(eq(evaluationId), eq(SubmissionStatusEnum.RECEIVED), anyLong(), anyLong())).
+                thenReturn(createPage(Arrays.asList(createStatus("111"), createStatus("222"))));
+            when(mockSynapse.getSubmission("222")).thenReturn(submission2);
+
+            // the first call lists the full bundles
+            assertEquals(Collections.singletonList(bundle1), evaluationUtils.selectSubmissions(evaluationId, SubmissionStatusEnum.RECEIVED));
+
+            // call under test:  later calls list the statuses and retrieve just the new submissions
+            List<SubmissionBundle> result = evaluationUtils.selectSubmissions(evaluationId, SubmissionStatusEnum.RECEIVED);
+            evaluationUtils.selectSubmissions(evaluationId, SubmissionStatusEnum.RECEIVED);
+
+            assertEquals(2, result.size());
+            assertEquals(submission1, result.get(0).getSubmission());
+            assertEquals(submission2, result.get(1).getSubmission());
+            assertEquals("222", result.get(1).getSubmissionStatus().getId());
+            verify(mockSynapse, times(1)).getAllSubmissionBundlesByStatus(eq(evaluationId), eq(SubmissionStatusEnum.RECEIVED), anyLong(), anyLong());
+            verify(mockSynapse, never()).getSubmission("111");
+            verify(mockSynapse, times(1)).getSubmission("222");
+        } finally {
+            System.clearProperty(INCREMENTAL_SUBMISSION_DISCOVERY_PROPERTY_NAME);
+        }
+    }
+
+    private static SubmissionBundle createBundle(String id, SubmissionStatusEnum state) {
+        Submission submission = new Submission();
+        submission.setId(id);
+        SubmissionStatus status = createStatus(id);
+        status.setStatus(state);
+        SubmissionBundle bundle = new SubmissionBundle();
+        bundle.setSubmission(submission);
+        bundle.setSubmissionStatus(status);
+        return bundle;
+    }
+
+    private static PaginatedResults<SubmissionBundle> createPage(long total, SubmissionBundle... bundles) {
+        PaginatedResults<SubmissionBundle> page = createPage(Arrays.asList(bundles));
+        page.setTotalNumberOfResults(total);
+        return page;
+    }
+
+    @Test
+    public void testSelectSubmissionsAcrossPages() throws Exception {
+        System.setProperty(SUBMISSION_PAGE_SIZE_PROPERTY_NAME, "2");
+        try {
+            SynapseClient mockSynapse = mock(SynapseClient.class);
+            EvaluationUtils evaluationUtils = new EvaluationUtils(mockSynapse);
+            String evaluationId = "9614112";
+            SubmissionStatusEnum state = SubmissionStatusEnum.RECEIVED;
+            SubmissionBundle b1 = createBundle("1", state);
+            SubmissionBundle b2 = createBundle("2", state);
+            SubmissionBundle b3 = createBundle("3", state);
+            SubmissionBundle b4 = createBundle("4", SubmissionStatusEnum.EVALUATION_IN_PROGRESS);
+            // the listing shifts as we page through it, so that "2" appears twice
+            when(mockSynapse.getAllSubmissionBundlesByStatus(evaluationId, state, 0L, 2L)).thenReturn(createPage(5, b1, b2));
+            when(mockSynapse.getAllSubmissionBundlesByStatus(evaluationId, state, 2L, 2L)).thenReturn(createPage(5, b2, b3));
+            when(mockSynapse.getAllSubmissionBundlesByStatus(evaluationId, state, 4L, 2L)).thenReturn(createPage(5, b4));
+
+            // call under test
+            List<SubmissionBundle> result = evaluationUtils.selectSubmissions(evaluationId, state);
+
+            assertEquals(Arrays.asList(b1, b2, b3), result);
+            verify(mockSynapse, times(3)).getAllSubmissionBundlesByStatus(eq(evaluationId), eq(state), anyLong(), eq(2L));
+        } finally {
+            System.clearProperty(SUBMISSION_PAGE_SIZE_PROPERTY_NAME);
+        }
+    }
+
+    private static PaginatedResults<SubmissionStatus> createStatusPage(long total, String... ids) {
+        List<SubmissionStatus> statuses = new ArrayList<SubmissionStatus>();
+        for (String id : ids) statuses.add(createStatus(id));
+        PaginatedResults<SubmissionStatus> page = createPage(statuses);
+        page.setTotalNumberOfResults(total);
+        return page;
+    }
+
+    @Test
+    public void testIncrementalSelectSubmissionsPastWatermark() throws Exception {
+        System.setProperty(INCREMENTAL_SUBMISSION_DISCOVERY_PROPERTY_NAME, "true");
+        System.setProperty(SUBMISSION_PAGE_SIZE_PROPERTY_NAME, "2");
+        try {
+            SynapseClient mockSynapse = mock(SynapseClient.class);
+            EvaluationUtils evaluationUtils = new EvaluationUtils(mockSynapse);
+            String evaluationId = "9614112";
+            SubmissionStatusEnum state = SubmissionStatusEnum.RECEIVED;
+            SubmissionBundle b1 = createBundle("1", state);
+            SubmissionBundle b2 = createBundle("2", state);
+            SubmissionBundle b3 = createBundle("3", state);
+            when(mockSynapse.getAllSubmissionBundlesByStatus(evaluationId, state, 0L, 2L)).thenReturn(createPage(3, b1, b2));
+            when(mockSynapse.getAllSubmissionBundlesByStatus(evaluationId, state, 2L, 2L)).thenReturn(createPage(3, b3));
+            SubmissionBundle b4 = createBundle("4", state);
+            SubmissionBundle b5 = createBundle("5", state);
+            when(mockSynapse.getSubmission("4")).thenReturn(b4.getSubmission());
+            when(mockSynapse.getSubmission("5")).thenReturn(b5.getSubmission());
+            // "4" and "5" are added to the end of the queue
+            when(mockSynapse.getAllSubmissionStatusesByStatus(evaluationId, state, 2L, 2L)).thenReturn(createStatusPage(5, "3", "4"));
+            when(mockSynapse.getAllSubmissionStatusesByStatus(evaluationId, state, 4L, 2L)).thenReturn(createStatusPage(5, "5"));
+
+            // the first call lists the full bundles
+            assertEquals(Arrays.asList(b1, b2, b3), evaluationUtils.selectSubmissions(evaluationId, state));
+
+            // call under test:  just the listing past the last submission seen is read
+            List<SubmissionBundle> result = evaluationUtils.selectSubmissions(evaluationId, state);
+
+            assertEquals(5, result.size());
+            assertEquals(b4.getSubmission(), result.get(3).getSubmission());
+            assertEquals(b5.getSubmission(), result.get(4).getSubmission());
+            verify(mockSynapse, never()).getAllSubmissionStatusesByStatus(evaluationId, state, 0L, 2L);
+
+            // "1" leaves the queue, so that the last submission seen is no longer where it was
+            when(mockSynapse.getAllSubmissionStatusesByStatus(evaluationId, state, 4L, 2L)).thenReturn(createStatusPage(4));
+            when(mockSynapse.getAllSubmissionStatusesByStatus(evaluationId, state, 0L, 2L)).thenReturn(createStatusPage(4, "2", "3"));
+            when(mockSynapse.getAllSubmissionStatusesByStatus(evaluationId, state, 2L, 2L)).thenReturn(createStatusPage(4, "4", "5"));
+
+            // call under test:  all the statuses are listed again
+            result = evaluationUtils.selectSubmissions(evaluationId, state);
+
+            assertEquals(4, result.size());
+            assertEquals(b2.getSubmission(), result.get(0).getSubmission());
+            assertEquals(b5.getSubmission(), result.get(3).getSubmission());
+            verify(mockSynapse, times(1)).getSubmission("4");
+            verify(mockSynapse, times(1)).getSubmission("5");
+        } finally {
+            System.clearProperty(INCREMENTAL_SUBMISSION_DISCOVERY_PROPERTY_NAME);
+            System.clearProperty(SUBMISSION_PAGE_SIZE_PROPERTY_NAME);
+        }
+    }
 }
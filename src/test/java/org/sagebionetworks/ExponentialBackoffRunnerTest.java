@@ -0,0 +1,121 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+
+public class ExponentialBackoffRunnerTest {
+
+    @After
+    public void tearDown() {
+        ExponentialBackoffRunner.setDeadline(null);
+    }
+
+    private static Executable<Void,Void> failing(final AtomicInteger attempts, final SynapseException e) {
+        return new NoRefreshExecutableAdapter<Void,Void>() {
+            @Override
+            public Void execute(Void args) throws Throwable {
+                attempts.incrementAndGet();
+                throw e;
+            }};
+    }
+
+    @Test
+    public void testRetryOnlyGivenTypes() throws Throwable {
+        ExponentialBackoffRunner runner = new ExponentialBackoffRunner(
+                Collections.<Class<? extends SynapseException>>singletonList(SynapseConflictingUpdateException.class), 2);
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            runner.execute(failing(attempts, new SynapseServiceUnavailable("down")), null);
+            fail("exception expected");
+        } catch (SynapseServiceUnavailable e) {
+            // as expected
+        }
+        // left to the Synapse client to retry
+        assertEquals(1, attempts.get());
+
+        attempts.set(0);
+        try {
+            runner.execute(failing(attempts, new SynapseConflictingUpdateException("conflict")), null);
+            fail("exception expected");
+        } catch (SynapseConflictingUpdateException e) {
+            // as expected
+        }
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testDeadline() throws Throwable {
+        ExponentialBackoffRunner runner = new ExponentialBackoffRunner();
+        long giveUps = ExponentialBackoffRunner.getGiveUpCount();
+        ExponentialBackoffRunner.setDeadline(System.currentTimeMillis()+1000L);
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            runner.execute(failing(attempts, new SynapseServiceUnavailable("down")), null);
+            fail("exception expected");
+        } catch (SynapseServiceUnavailable e) {
+            // as expected
+        }
+        // pauses of (jittered) 500 and 1000 ms would overrun the deadline
+        assertTrue(attempts.get()>=2 && attempts.get()<=3);
+        assertEquals(giveUps+1, ExponentialBackoffRunner.getGiveUpCount());
+    }
+
+    @Test
+    public void testInterruptStopsRetries() throws Throwable {
+        ExponentialBackoffRunner runner = new ExponentialBackoffRunner();
+        AtomicInteger attempts = new AtomicInteger();
+        // e.g. the task making the calls was cancelled
+        Thread.currentThread().interrupt();
+        try {
+            runner.execute(failing(attempts, new SynapseServiceUnavailable("down")), null);
+            fail("exception expected");
+        } catch (SynapseServiceUnavailable e) {
+            // as expected
+        } finally {
+            // the interrupt is kept for the caller to see (and is cleared here for the other tests)
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testInterruptDuringPause() throws Throwable {
+        ExponentialBackoffRunner runner = new ExponentialBackoffRunner();
+        AtomicInteger attempts = new AtomicInteger();
+        final Thread caller = Thread.currentThread();
+        Thread interrupter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                caller.interrupt();
+            }
+        });
+        interrupter.start();
+        try {
+            runner.execute(failing(attempts, new SynapseServiceUnavailable("down")), null);
+            fail("exception expected");
+        } catch (SynapseServiceUnavailable e) {
+            // as expected
+        } finally {
+            assertTrue(Thread.interrupted());
+            interrupter.join();
+        }
+        // the first pause is at least 250 ms, so is interrupted
+        assertEquals(1, attempts.get());
+    }
+
+}
@@ -0,0 +1,80 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.io.Files;
+
+public class FolderCacheTest {
+
+    private File dir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testSavedCache() throws Exception {
+        FolderCache folderCache = new FolderCache(dir);
+        folderCache.putFolderId("syn101", "3350000", "syn102");
+        folderCache.setShared("syn101", "273950");
+
+        // call under test
+        FolderCache reloaded = new FolderCache(dir);
+
+        assertEquals("syn102", reloaded.getFolderId("syn101", "3350000"));
+        assertNull(reloaded.getFolderId("syn101", "3350001"));
+        assertTrue(reloaded.isShared("syn101", "273950"));
+        assertFalse(reloaded.isShared("syn101", "273951"));
+        assertFalse(reloaded.isShared("syn102", "273950"));
+    }
+
+    @Test
+    public void testRemoveFolder() throws Exception {
+        FolderCache folderCache = new FolderCache(dir);
+        folderCache.putFolderId("syn100", "273950", "syn101");
+        folderCache.putFolderId("syn101", "3350000", "syn102");
+        folderCache.putFolderId("syn100", "273951", "syn103");
+        folderCache.putFolderId("syn103", "3350001", "syn104");
+        folderCache.setShared("syn101", "273950");
+        folderCache.setShared("syn103", "273951");
+
+        // call under test
+        folderCache.removeFolder("syn102");
+
+        // the folder and its parent are forgotten, but not the other submitter's folders
+        FolderCache reloaded = new FolderCache(dir);
+        assertNull(reloaded.getFolderId("syn101", "3350000"));
+        assertNull(reloaded.getFolderId("syn100", "273950"));
+        assertFalse(reloaded.isShared("syn101", "273950"));
+        assertEquals("syn103", reloaded.getFolderId("syn100", "273951"));
+        assertEquals("syn104", reloaded.getFolderId("syn103", "3350001"));
+        assertTrue(reloaded.isShared("syn103", "273951"));
+    }
+
+    @Test
+    public void testUnreadableCache() throws Exception {
+        FileUtils.write(new File(dir, "folder_cache.json"), "{not json", "UTF-8");
+
+        // call under test
+        FolderCache folderCache = new FolderCache(dir);
+
+        assertNull(folderCache.getFolderId("syn101", "3350000"));
+    }
+
+}
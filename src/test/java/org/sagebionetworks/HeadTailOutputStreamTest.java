@@ -0,0 +1,73 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class HeadTailOutputStreamTest {
+
+    private static void write(HeadTailOutputStream os, String s) throws Exception {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        os.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testWithinQuota() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HeadTailOutputStream os = new HeadTailOutputStream(out, 4, 6);
+        write(os, "01");
+        write(os, "2345");
+        write(os, "6789");
+        os.finish();
+        assertFalse(os.isTruncated());
+        assertEquals(10L, os.getCount());
+        assertEquals("0123456789", out.toString());
+    }
+
+    @Test
+    public void testKeepsHeadAndTail() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HeadTailOutputStream os = new HeadTailOutputStream(out, 4, 6);
+        StringBuilder written = new StringBuilder();
+        for (int i=0; i<100; i++) {
+            String line = "line "+i+"\n";
+            write(os, line);
+            written.append(line);
+        }
+        // the head is passed on at once
+        assertEquals("line", out.toString());
+        os.finish();
+        assertTrue(os.isTruncated());
+        assertEquals(written.length(), os.getCount());
+        String result = out.toString();
+        assertTrue(result.startsWith("line\r\n[... "+(written.length()-10)+" bytes omitted"), result);
+        assertTrue(result.endsWith(" ...]\r\nne 99\n"), result);
+    }
+
+    @Test
+    public void testWriteLargerThanTail() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HeadTailOutputStream os = new HeadTailOutputStream(out, 2, 3);
+        write(os, "abcdefghij");
+        os.close();
+        String result = out.toString();
+        assertTrue(result.startsWith("ab\r\n[... 5 bytes omitted"), result);
+        assertTrue(result.endsWith("]\r\nhij"), result);
+    }
+
+    @Test
+    public void testHeadOnly() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HeadTailOutputStream os = new HeadTailOutputStream(out, 3, 0);
+        write(os, "abcdef");
+        os.finish();
+        assertTrue(os.isTruncated());
+        assertTrue(out.toString().startsWith("abc\r\n[... 3 bytes omitted"));
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.sagebionetworks.Constants.HEARTBEAT_INTERVAL_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.EvaluationUtils.FAILURE_REASON;
+import static org.sagebionetworks.EvaluationUtils.JOB_LAST_UPDATED_TIME_STAMP;
+import static org.sagebionetworks.EvaluationUtils.PROGRESS;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+
+public class HeartbeatCoalescerTest {
+
+    private static final long NOW = 1000000000L;
+
+    private HeartbeatCoalescer.Snapshot lastWritten;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        System.setProperty(HEARTBEAT_INTERVAL_SECONDS_PROPERTY_NAME, "300");
+        SubmissionStatus status = new SubmissionStatus();
+        status.setStatus(SubmissionStatusEnum.EVALUATION_IN_PROGRESS);
+        EvaluationUtils.setAnnotation(status, JOB_LAST_UPDATED_TIME_STAMP, NOW-60*1000L, false);
+        EvaluationUtils.setAnnotation(status, PROGRESS, 10.0, false);
+        lastWritten = HeartbeatCoalescer.snapshot(status);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        System.clearProperty(HEARTBEAT_INTERVAL_SECONDS_PROPERTY_NAME);
+    }
+
+    private static SubmissionStatusModifications heartbeat(long now, double progress) {
+        SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+        statusMods.setStatus(SubmissionStatusEnum.EVALUATION_IN_PROGRESS);
+        EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, now, false);
+        EvaluationUtils.setAnnotation(statusMods, PROGRESS, progress, false);
+        EvaluationUtils.removeAnnotation(statusMods, FAILURE_REASON);
+        return statusMods;
+    }
+
+    @Test
+    public void testHeartbeatWithinInterval() throws Exception {
+        assertFalse(HeartbeatCoalescer.isWorthWriting(lastWritten, heartbeat(NOW, 11.0), NOW));
+    }
+
+    @Test
+    public void testHeartbeatAfterInterval() throws Exception {
+        long later = NOW+300*1000L;
+        assertTrue(HeartbeatCoalescer.isWorthWriting(lastWritten, heartbeat(later, 11.0), later));
+    }
+
+    @Test
+    public void testProgress() throws Exception {
+        assertTrue(HeartbeatCoalescer.isWorthWriting(lastWritten, heartbeat(NOW, 20.0), NOW));
+    }
+
+    @Test
+    public void testOtherChanges() throws Exception {
+        SubmissionStatusModifications statusMods = heartbeat(NOW, 10.0);
+        statusMods.setStatus(SubmissionStatusEnum.ACCEPTED);
+        assertTrue(HeartbeatCoalescer.isWorthWriting(lastWritten, statusMods, NOW));
+
+        statusMods = heartbeat(NOW, 10.0);
+        EvaluationUtils.setAnnotation(statusMods, FAILURE_REASON, "failed", false);
+        assertTrue(HeartbeatCoalescer.isWorthWriting(lastWritten, statusMods, NOW));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        System.clearProperty(HEARTBEAT_INTERVAL_SECONDS_PROPERTY_NAME);
+        assertTrue(HeartbeatCoalescer.isWorthWriting(lastWritten, heartbeat(NOW, 10.0), NOW));
+    }
+
+}
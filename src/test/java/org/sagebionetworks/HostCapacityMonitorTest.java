@@ -0,0 +1,134 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sagebionetworks.Constants.HOST_CAPACITY_HEADROOM_PERCENT_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.WORKFLOW_DISK_ESTIMATE_MB_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.WORKFLOW_MEMORY_ESTIMATE_MB_PROPERTY_NAME;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.github.dockerjava.api.model.Info;
+import com.github.dockerjava.api.model.Statistics;
+import com.google.common.io.Files;
+
+@ExtendWith(MockitoExtension.class)
+public class HostCapacityMonitorTest {
+
+    private static final long GB = 1024L*1024L*1024L;
+
+    @Mock
+    private DockerUtils mockDockerUtils;
+
+    private HostCapacityMonitor monitor;
+
+    @BeforeEach
+    public void setUp() {
+        // don't let the test machine's disk limit the result
+        System.setProperty(WORKFLOW_DISK_ESTIMATE_MB_PROPERTY_NAME, "1");
+        System.setProperty(HOST_CAPACITY_HEADROOM_PERCENT_PROPERTY_NAME, "0");
+        System.setProperty(WORKFLOW_MEMORY_ESTIMATE_MB_PROPERTY_NAME, "1024");
+        monitor = new HostCapacityMonitor(mockDockerUtils, Files.createTempDir());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty(WORKFLOW_DISK_ESTIMATE_MB_PROPERTY_NAME);
+        System.clearProperty(HOST_CAPACITY_HEADROOM_PERCENT_PROPERTY_NAME);
+        System.clearProperty(WORKFLOW_MEMORY_ESTIMATE_MB_PROPERTY_NAME);
+    }
+
+    private static Statistics createStatistics(long containerCpu, long systemCpu, long preContainerCpu, long preSystemCpu, long memory) {
+        return createStatistics(containerCpu, systemCpu, preContainerCpu, preSystemCpu, memory, 8L);
+    }
+
+    private static Statistics createStatistics(long containerCpu, long systemCpu, long preContainerCpu, long preSystemCpu, long memory, Long onlineCpus) {
+        Statistics stats = mock(Statistics.class, Answers.RETURNS_DEEP_STUBS);
+        when(stats.getCpuStats().getCpuUsage().getTotalUsage()).thenReturn(containerCpu);
+        when(stats.getCpuStats().getSystemCpuUsage()).thenReturn(systemCpu);
+        when(stats.getCpuStats().getOnlineCpus()).thenReturn(onlineCpus);
+        // only used when there is no previous sample
+        lenient().when(stats.getPreCpuStats().getCpuUsage().getTotalUsage()).thenReturn(preContainerCpu);
+        lenient().when(stats.getPreCpuStats().getSystemCpuUsage()).thenReturn(preSystemCpu);
+        when(stats.getMemoryStats().getUsage()).thenReturn(memory);
+        return stats;
+    }
+
+    @Test
+    public void testNoRunningWorkflows() {
+        when(mockDockerUtils.getInfo()).thenReturn(new Info().withNCPU(8).withMemTotal(4*GB));
+
+        // method under test:  memory is the limit
+        assertEquals(4, monitor.getCapacityForNewWorkflows(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void testRunningWorkflowsUseCapacity() {
+        when(mockDockerUtils.getInfo()).thenReturn(new Info().withNCPU(8).withMemTotal(64*GB));
+        // each container is using half of the host's 8 CPUs
+        Statistics busy1 = createStatistics(1500L, 2000L, 1000L, 1000L, GB);
+        Statistics busy2 = createStatistics(1500L, 2000L, 1000L, 1000L, GB);
+        when(mockDockerUtils.getStatistics("c1")).thenReturn(busy1);
+        when(mockDockerUtils.getStatistics("c2")).thenReturn(busy2);
+
+        // method under test:  four CPUs are used by each workflow, so CPU is the limit
+        assertEquals(0, monitor.getCapacityForNewWorkflows(Arrays.asList("c1", "c2")));
+
+        // in the next sample c2 has gone idle, measured against the previous sample
+        Statistics idle = createStatistics(1500L, 3000L, 0L, 0L, GB);
+        when(mockDockerUtils.getStatistics("c2")).thenReturn(idle);
+        assertEquals(4, monitor.getCapacityForNewWorkflows(Arrays.asList("c1", "c2")));
+        verify(mockDockerUtils).getInfo();
+    }
+
+    @Test
+    public void testMissingStatistics() {
+        when(mockDockerUtils.getInfo()).thenReturn(new Info().withNCPU(8).withMemTotal(64*GB));
+        when(mockDockerUtils.getStatistics("c1")).thenReturn(null);
+
+        // method under test:  the container is assumed to use the default estimate of one CPU
+        assertEquals(7, monitor.getCapacityForNewWorkflows(Collections.singletonList("c1")));
+    }
+
+    @Test
+    public void testNoOnlineCpus() {
+        when(mockDockerUtils.getInfo()).thenReturn(new Info().withNCPU(8).withMemTotal(64*GB));
+        // without 'online_cpus' the host's CPU count is used:  the container is using half of 8 CPUs
+        Statistics busy = createStatistics(1500L, 2000L, 1000L, 1000L, GB, null);
+        when(mockDockerUtils.getStatistics("c1")).thenReturn(busy);
+
+        // method under test
+        assertEquals(4, monitor.getCapacityForNewWorkflows(Collections.singletonList("c1")));
+    }
+
+    @Test
+    public void testContainersSampledInParallel() {
+        when(mockDockerUtils.getInfo()).thenReturn(new Info().withNCPU(64).withMemTotal(64*GB));
+        final CountDownLatch allSampling = new CountDownLatch(3);
+        when(mockDockerUtils.getStatistics(anyString())).thenAnswer(i -> {
+            allSampling.countDown();
+            // only returns if all three containers are being sampled at once
+            assertTrue(allSampling.await(10, TimeUnit.SECONDS));
+            return null;
+        });
+
+        // method under test:  each container is assumed to use one CPU and 1GB
+        assertEquals(61, monitor.getCapacityForNewWorkflows(Arrays.asList("c1", "c2", "c3")));
+    }
+}
@@ -0,0 +1,49 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import org.junit.Test;
+
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
+
+public class IncrementalLogCallbackTest {
+
+    private static Frame frame(String payload) {
+        return new Frame(StreamType.STDOUT, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSkipsFramesAlreadyCollected() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        IncrementalLogCallback callback = new IncrementalLogCallback(os,
+                Instant.parse("2020-01-01T00:00:05.5Z"));
+
+        // Docker returns the whole second in which the cursor falls
+        callback.onNext(frame("2020-01-01T00:00:05.25Z old"));
+        callback.onNext(frame("2020-01-01T00:00:05.5Z old"));
+        callback.onNext(frame("2020-01-01T00:00:05.75Z new"));
+        callback.onNext(frame("2020-01-01T00:00:06.123456789Z newer"));
+
+        assertEquals("STDOUT: 2020-01-01T00:00:05.75Z new\r\nSTDOUT: 2020-01-01T00:00:06.123456789Z newer\r\n", os.toString());
+        assertEquals(Instant.parse("2020-01-01T00:00:06.123456789Z"), callback.getCursor());
+    }
+
+    @Test
+    public void testNoTimeStamp() throws Exception {
+        assertNull(IncrementalLogCallback.getTimeStamp(frame("no time stamp here")));
+        assertNull(IncrementalLogCallback.getTimeStamp(frame("2020-01-01T00:00:06.123456789Z-followed-by-more-than-a-time-stamp")));
+        assertEquals(Instant.parse("2020-01-01T00:00:06Z"), IncrementalLogCallback.getTimeStamp(frame("2020-01-01T00:00:06Z")));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        IncrementalLogCallback callback = new IncrementalLogCallback(os, null);
+        callback.onNext(frame("no time stamp here"));
+        assertEquals("STDOUT: no time stamp here\r\n", os.toString());
+        assertNull(callback.getCursor());
+    }
+
+}
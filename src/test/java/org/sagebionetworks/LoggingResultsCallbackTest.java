@@ -0,0 +1,115 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
+
+public class LoggingResultsCallbackTest {
+
+    @Test
+    public void testFramesWrittenAsRendered() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        LoggingResultsCallback callback = new LoggingResultsCallback(os, 30);
+        Frame[] frames = new Frame[] {
+                new Frame(StreamType.STDOUT, "  some output\n".getBytes(StandardCharsets.UTF_8)),
+                new Frame(StreamType.STDERR, "more output\r\n".getBytes(StandardCharsets.UTF_8)),
+                new Frame(StreamType.STDOUT, "\n".getBytes(StandardCharsets.UTF_8))
+        };
+        StringBuilder expected = new StringBuilder();
+        for (Frame frame : frames) {
+            callback.onNext(frame);
+            expected.append(frame.toString()+"\r\n");
+        }
+        assertEquals(expected.toString(), new String(os.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(expected.substring(expected.length()-30), callback.getTail());
+    }
+
+    @Test
+    public void testPayloadBytesCopied() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+        callback.onNext(new Frame(StreamType.STDERR, "caf\u00e9 \u2713\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("STDERR: caf\u00e9 \u2713\r\n", new String(os.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAwaitCompletion() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+        Thread dockerThread = new Thread() {
+            @Override
+            public void run() {
+                callback.onNext(new Frame(StreamType.STDOUT, "done".getBytes(StandardCharsets.UTF_8)));
+                callback.onComplete();
+            }
+        };
+        dockerThread.start();
+        callback.awaitCompletion(10000L);
+        assertTrue(callback.isComplete());
+        assertFalse(callback.isTruncated());
+        assertEquals("STDOUT: done\r\n", os.toString());
+        assertFalse(Thread.interrupted());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+        final boolean[] closed = new boolean[1];
+        callback.onStart(new Closeable() {
+            @Override
+            public void close() {
+                closed[0]=true;
+            }
+        });
+        try {
+            callback.awaitCompletion(10L);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // as expected
+        }
+        assertTrue(closed[0]);
+        // nothing is written once the caller has given up
+        callback.onNext(new Frame(StreamType.STDOUT, "late".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, os.size());
+    }
+
+    @Test
+    public void testByteLimit() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        LoggingResultsCallback callback = new LoggingResultsCallback(os, null, 20L);
+        callback.onNext(new Frame(StreamType.STDOUT, "0123".getBytes(StandardCharsets.UTF_8)));
+        callback.onNext(new Frame(StreamType.STDOUT, "4567".getBytes(StandardCharsets.UTF_8)));
+        callback.onNext(new Frame(StreamType.STDOUT, "89".getBytes(StandardCharsets.UTF_8)));
+        // returns at once, as collection has stopped
+        callback.awaitCompletion(10L);
+        assertTrue(callback.isTruncated());
+        assertEquals("STDOUT: 0123\r\n", os.toString());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+        callback.onError(new RuntimeException("connection lost"));
+        try {
+            callback.awaitCompletion(10L);
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals("connection lost", e.getCause().getMessage());
+        }
+        assertTrue(os.toString().contains("connection lost"));
+    }
+
+}
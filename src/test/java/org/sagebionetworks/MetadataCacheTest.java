@@ -0,0 +1,65 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.evaluation.model.Evaluation;
+import org.sagebionetworks.repo.model.annotation.v2.Annotations;
+import org.sagebionetworks.repo.model.file.FileHandleResults;
+
+@ExtendWith(MockitoExtension.class)
+public class MetadataCacheTest {
+
+    private static final String EVALUATION_ID = "111";
+    private static final String ENTITY_ID = "syn222";
+
+    @Mock
+    private SynapseClient mockSynapse;
+
+    @Test
+    public void testReadThrough() throws Exception {
+        MetadataCache metadataCache = new MetadataCache(mockSynapse);
+        Evaluation evaluation = new Evaluation();
+        evaluation.setId(EVALUATION_ID);
+        when(mockSynapse.getEvaluation(EVALUATION_ID)).thenReturn(evaluation);
+
+        // method under test
+        assertEquals(evaluation, metadataCache.getEvaluation(EVALUATION_ID));
+        assertEquals(evaluation, metadataCache.getEvaluation(EVALUATION_ID));
+
+        verify(mockSynapse, times(1)).getEvaluation(EVALUATION_ID);
+
+        metadataCache.invalidateEvaluation(EVALUATION_ID);
+        assertEquals(evaluation, metadataCache.getEvaluation(EVALUATION_ID));
+        verify(mockSynapse, times(2)).getEvaluation(EVALUATION_ID);
+    }
+
+    @Test
+    public void testInvalidateEntity() throws Exception {
+        MetadataCache metadataCache = new MetadataCache(mockSynapse);
+        FileHandleResults fileHandleResults = new FileHandleResults();
+        Annotations annotations = new Annotations();
+        when(mockSynapse.getEntityFileHandlesForCurrentVersion(ENTITY_ID)).thenReturn(fileHandleResults);
+        when(mockSynapse.getAnnotationsV2(ENTITY_ID)).thenReturn(annotations);
+
+        // method under test
+        assertEquals(fileHandleResults, metadataCache.getEntityFileHandlesForCurrentVersion(ENTITY_ID));
+        assertEquals(annotations, metadataCache.getAnnotationsV2(ENTITY_ID));
+        metadataCache.getEntityFileHandlesForCurrentVersion(ENTITY_ID);
+        metadataCache.getAnnotationsV2(ENTITY_ID);
+        metadataCache.invalidateEntity(ENTITY_ID);
+        metadataCache.getEntityFileHandlesForCurrentVersion(ENTITY_ID);
+        metadataCache.getAnnotationsV2(ENTITY_ID);
+
+        verify(mockSynapse, times(2)).getEntityFileHandlesForCurrentVersion(ENTITY_ID);
+        verify(mockSynapse, times(2)).getAnnotationsV2(ENTITY_ID);
+    }
+
+}
@@ -0,0 +1,129 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.sagebionetworks.repo.model.message.MessageToUser;
+
+import com.google.common.io.Files;
+
+@ExtendWith(MockitoExtension.class)
+public class NotificationOutboxTest {
+
+    @Mock
+    private SynapseClient mockSynapse;
+
+    private File dir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testDigestAndDedup() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(mockSynapse);
+        outbox.add("111", "Submission Pipeline Failed", "first", "key1");
+        outbox.add("111", "Submission Pipeline Failed", "second", "key2");
+        // already queued
+        outbox.add("111", "Submission Pipeline Failed", "first again", "key1");
+        outbox.add("222", "Workflow Complete", "done", null);
+        assertEquals(3, outbox.size());
+
+        // method under test
+        outbox.send();
+
+        ArgumentCaptor<MessageToUser> messageCaptor = ArgumentCaptor.forClass(MessageToUser.class);
+        ArgumentCaptor<String> bodyCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockSynapse, times(2)).sendStringMessage(messageCaptor.capture(), bodyCaptor.capture());
+        assertEquals(Collections.singleton("111"), messageCaptor.getAllValues().get(0).getRecipients());
+        assertEquals("Submission Pipeline Failed (2 notifications)", messageCaptor.getAllValues().get(0).getSubject());
+        assertTrue(bodyCaptor.getAllValues().get(0).startsWith("first"));
+        assertTrue(bodyCaptor.getAllValues().get(0).endsWith("second"));
+        assertEquals("Workflow Complete", messageCaptor.getAllValues().get(1).getSubject());
+        assertEquals(0, outbox.size());
+
+        // already sent
+        outbox.add("111", "Submission Pipeline Failed", "first again", "key1");
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void testSurvivesRestartUntilSent() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(mockSynapse, dir);
+        outbox.add("111", "Workflow Complete", "done", "key1");
+        when(mockSynapse.sendStringMessage(any(MessageToUser.class), anyString())).thenThrow(new SynapseServiceUnavailable("down"));
+
+        // method under test
+        outbox.send();
+        assertEquals(1, outbox.size());
+
+        // e.g. after a restart
+        outbox = new NotificationOutbox(mockSynapse, dir);
+        assertEquals(1, outbox.size());
+        // still waiting to be sent
+        outbox.add("111", "Workflow Complete", "done", "key1");
+        assertEquals(1, outbox.size());
+        outbox.add("111", "Workflow Complete", "done too", "key2");
+        assertEquals(2, outbox.size());
+    }
+
+    @Test
+    public void testRejectedNotificationIsNotRetried() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(mockSynapse, dir);
+        outbox.add("999", "Workflow Complete", "done", "key1");
+        when(mockSynapse.sendStringMessage(any(MessageToUser.class), anyString())).thenThrow(new SynapseNotFoundException("no such user"));
+
+        // method under test
+        outbox.send();
+
+        assertEquals(0, outbox.size());
+        outbox.send();
+        verify(mockSynapse, times(1)).sendStringMessage(any(MessageToUser.class), anyString());
+        // kept for the record, but not sent after a restart
+        assertEquals(1, new File(dir, "failed").list().length);
+        assertEquals(0, new NotificationOutbox(mockSynapse, dir).size());
+    }
+
+    @Test
+    public void testGivesUpAfterRepeatedFailures() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(mockSynapse, dir);
+        outbox.add("111", "Workflow Complete", "done", "key1");
+        when(mockSynapse.sendStringMessage(any(MessageToUser.class), anyString())).thenThrow(new SynapseServiceUnavailable("down"));
+
+        // method under test
+        for (int i=0; i<19; i++) outbox.send();
+        assertEquals(1, outbox.size());
+        // the number of attempts survives a restart
+        outbox = new NotificationOutbox(mockSynapse, dir);
+        outbox.send();
+
+        assertEquals(0, outbox.size());
+        verify(mockSynapse, times(20)).sendStringMessage(any(MessageToUser.class), anyString());
+    }
+
+}
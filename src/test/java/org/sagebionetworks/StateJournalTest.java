@@ -0,0 +1,112 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.io.Files;
+
+public class StateJournalTest {
+
+    private File dir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static StateJournal.Entry createEntry(String submissionId, String workflowId) {
+        StateJournal.Entry entry = new StateJournal.Entry(submissionId);
+        entry.setEvaluationId("9614112");
+        entry.setWorkflowId(workflowId);
+        entry.setSharedFolderId("syn101");
+        entry.setLockedFolderId("syn102");
+        return entry;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        StateJournal journal = new StateJournal(dir);
+        journal.put(createEntry("111", "workflow_job.111"));
+        journal.put(createEntry("222", "workflow_job.222"));
+        StateJournal.Entry entry = journal.get("111");
+        entry.setLastLogUpload(1000L);
+        entry.setStartedMessageSent(true);
+        journal.put(entry);
+        journal.remove("222");
+
+        // call under test
+        StateJournal replayed = new StateJournal(dir);
+
+        assertEquals(Collections.singleton("111"), replayed.getSubmissionIds());
+        StateJournal.Entry replayedEntry = replayed.get("111");
+        assertEquals("9614112", replayedEntry.getEvaluationId());
+        assertEquals("workflow_job.111", replayedEntry.getWorkflowId());
+        assertEquals("syn101", replayedEntry.getSharedFolderId());
+        assertEquals("syn102", replayedEntry.getLockedFolderId());
+        assertEquals(new Long(1000L), replayedEntry.getLastLogUpload());
+        assertTrue(replayedEntry.isStartedMessageSent());
+        assertEquals("111", replayed.getSubmissionIdForWorkflow("workflow_job.111"));
+        assertNull(replayed.getSubmissionIdForWorkflow("workflow_job.222"));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        StateJournal journal = new StateJournal(dir);
+        // enough changes to cause a snapshot to be written and the log to be cleared
+        for (int i=0; i<2500; i++) {
+            journal.put(createEntry(""+(i%10), "workflow_job."+i));
+        }
+        assertTrue(FileUtils.readLines(new File(dir, "journal.log"), StandardCharsets.UTF_8).size() < 1000);
+
+        // call under test
+        StateJournal replayed = new StateJournal(dir);
+
+        assertEquals(10, replayed.getSubmissionIds().size());
+        assertEquals("workflow_job.2499", replayed.get("9").getWorkflowId());
+    }
+
+    @Test
+    public void testIncompleteLastEntry() throws Exception {
+        StateJournal journal = new StateJournal(dir);
+        journal.put(createEntry("111", "workflow_job.111"));
+        // as if we crashed while writing the next change
+        try (FileOutputStream fos = new FileOutputStream(new File(dir, "journal.log"), true)) {
+            fos.write("{\"op\":\"put\",\"entry\":{\"submissionId\":\"22".getBytes(StandardCharsets.UTF_8));
+        }
+
+        // call under test
+        StateJournal replayed = new StateJournal(dir);
+
+        assertEquals(Collections.singleton("111"), replayed.getSubmissionIds());
+    }
+
+    @Test
+    public void testRetainOnly() throws Exception {
+        StateJournal journal = new StateJournal(dir);
+        journal.put(createEntry("111", "workflow_job.111"));
+        journal.put(createEntry("222", "workflow_job.222"));
+
+        // call under test
+        journal.retainOnly(Collections.singleton("222"));
+
+        assertEquals(Collections.singleton("222"), journal.getSubmissionIds());
+        assertEquals(Collections.singleton("222"), new StateJournal(dir).getSubmissionIds());
+    }
+
+}
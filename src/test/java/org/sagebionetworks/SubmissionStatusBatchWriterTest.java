@@ -0,0 +1,118 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.evaluation.model.SubmissionStatusBatch;
+import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+
+@ExtendWith(MockitoExtension.class)
+public class SubmissionStatusBatchWriterTest {
+
+    @Mock
+    private SynapseClient mockSynapse;
+
+    @Mock
+    private SubmissionUtils mockSubmissionUtils;
+
+    private SubmissionStatusBatchWriter batchWriter;
+
+    private List<String> outcomes;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        batchWriter = new SubmissionStatusBatchWriter(mockSynapse, mockSubmissionUtils);
+        outcomes = new ArrayList<String>();
+    }
+
+    private SubmissionStatus add(String evaluationId, final String submissionId) {
+        SubmissionStatus status = new SubmissionStatus();
+        status.setId(submissionId);
+        status.setStatus(SubmissionStatusEnum.EVALUATION_IN_PROGRESS);
+        SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+        statusMods.setStatus(SubmissionStatusEnum.ACCEPTED);
+        batchWriter.add(evaluationId, status, statusMods, new SubmissionStatusBatchWriter.Outcome() {
+            @Override
+            public void written() {
+                outcomes.add(submissionId+" written");
+            }
+            @Override
+            public void failed(Throwable t) {
+                outcomes.add(submissionId+" failed");
+            }
+        });
+        return status;
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        add("101", "111");
+        add("101", "222");
+        add("202", "333");
+
+        // call under test
+        batchWriter.flush();
+
+        ArgumentCaptor<SubmissionStatusBatch> batchCaptor = ArgumentCaptor.forClass(SubmissionStatusBatch.class);
+        verify(mockSynapse).updateSubmissionStatusBatch(eq("101"), batchCaptor.capture());
+        assertEquals(2, batchCaptor.getValue().getStatuses().size());
+        assertEquals(SubmissionStatusEnum.ACCEPTED, batchCaptor.getValue().getStatuses().get(0).getStatus());
+        verify(mockSynapse).updateSubmissionStatusBatch(eq("202"), any(SubmissionStatusBatch.class));
+        verify(mockSubmissionUtils, never()).updateSubmissionStatus(any(SubmissionStatus.class), any(SubmissionStatusModifications.class));
+        assertEquals(3, outcomes.size());
+
+        // nothing is left to write
+        batchWriter.flush();
+        verify(mockSynapse, times(2)).updateSubmissionStatusBatch(any(String.class), any(SubmissionStatusBatch.class));
+    }
+
+    @Test
+    public void testFlushFallsBackOnConflict() throws Exception {
+        SubmissionStatus status1 = add("101", "111");
+        SubmissionStatus status2 = add("101", "222");
+        when(mockSynapse.updateSubmissionStatusBatch(eq("101"), any(SubmissionStatusBatch.class))).
+            thenThrow(new SynapseConflictingUpdateException());
+        lenient().when(mockSubmissionUtils.updateSubmissionStatus(eq(status2), any(SubmissionStatusModifications.class))).
+            thenThrow(new RuntimeException());
+
+        // call under test
+        batchWriter.flush();
+
+        verify(mockSubmissionUtils).updateSubmissionStatus(eq(status1), any(SubmissionStatusModifications.class));
+        assertEquals("111 written", outcomes.get(0));
+        assertEquals("222 failed", outcomes.get(1));
+    }
+
+    @Test
+    public void testAddAfterFlushIsRefused() throws Exception {
+        add("101", "111");
+        batchWriter.flush();
+
+        // call under test
+        assertThrows(IllegalStateException.class, () -> add("101", "222"));
+
+        batchWriter.flush();
+        verify(mockSynapse, times(1)).updateSubmissionStatusBatch(eq("101"), any(SubmissionStatusBatch.class));
+        assertEquals(1, outcomes.size());
+    }
+
+}
@@ -1,14 +1,23 @@
 package org.sagebionetworks;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.sagebionetworks.EvaluationUtils.LEASE_EXPIRES;
+import static org.sagebionetworks.EvaluationUtils.LEASE_OWNER;
 import static org.sagebionetworks.SubmissionUtils.getRepoSuffixFromImage;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Test;
@@ -20,8 +29,11 @@ import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
 import org.sagebionetworks.evaluation.model.Submission;
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
 import org.sagebionetworks.repo.model.EntityBundle;
 import org.sagebionetworks.repo.model.FileEntity;
+import org.sagebionetworks.repo.model.Team;
+import org.sagebionetworks.repo.model.UserProfile;
 import org.sagebionetworks.repo.model.annotation.v2.Annotations;
 import org.sagebionetworks.schema.adapter.JSONObjectAdapter;
 import org.sagebionetworks.schema.adapter.org.json.JSONObjectAdapterImpl;
@@ -135,5 +147,81 @@ public class SubmissionUtilsTest {
         verify(synapse).getSubmissionStatus(SUBMISSION_ID);
     }
 
+    @Test
+    public void testClaimSubmission() throws Exception {
+        SubmissionUtils submissionUtils = new SubmissionUtils(synapse);
+
+        SubmissionStatus submissionStatus = new SubmissionStatus();
+        submissionStatus.setId(SUBMISSION_ID);
+        submissionStatus.setEtag("1");
+        submissionStatus.setStatus(SubmissionStatusEnum.RECEIVED);
+        when(synapse.updateSubmissionStatus(submissionStatus)).thenReturn(submissionStatus);
+
+        // method under test
+        assertEquals(submissionStatus, submissionUtils.claimSubmission(submissionStatus, "instance-1", 60000L));
+
+        assertTrue(SubmissionUtils.isLeasedBy(submissionStatus, "instance-1"));
+        assertTrue(SubmissionUtils.isLeasedByAnother(submissionStatus, "instance-2", System.currentTimeMillis()));
+        assertFalse(SubmissionUtils.isLeasedByAnother(submissionStatus, "instance-2", System.currentTimeMillis()+120000L));
+    }
+
+    @Test
+    public void testClaimSubmissionLostToAnotherInstance() throws Exception {
+        SubmissionUtils submissionUtils = new SubmissionUtils(synapse);
+
+        SubmissionStatus submissionStatusPreviouslyRetrieved = new SubmissionStatus();
+        submissionStatusPreviouslyRetrieved.setId(SUBMISSION_ID);
+        submissionStatusPreviouslyRetrieved.setEtag("1");
+        submissionStatusPreviouslyRetrieved.setStatus(SubmissionStatusEnum.RECEIVED);
+        // meanwhile another instance has claimed the submission
+        SubmissionStatus submissionStatusFromBackend = new SubmissionStatus();
+        submissionStatusFromBackend.setId(SUBMISSION_ID);
+        submissionStatusFromBackend.setEtag("2");
+        submissionStatusFromBackend.setStatus(SubmissionStatusEnum.RECEIVED);
+        EvaluationUtils.setAnnotation(submissionStatusFromBackend, LEASE_OWNER, "instance-2", true);
+        EvaluationUtils.setAnnotation(submissionStatusFromBackend, LEASE_EXPIRES, System.currentTimeMillis()+60000L, true);
+
+        when(synapse.updateSubmissionStatus(submissionStatusPreviouslyRetrieved)).thenThrow(SynapseConflictingUpdateException.class);
+        when(synapse.getSubmissionStatus(SUBMISSION_ID)).thenReturn(submissionStatusFromBackend);
+
+        // method under test
+        assertNull(submissionUtils.claimSubmission(submissionStatusPreviouslyRetrieved, "instance-1", 60000L));
+
+        // the other instance's claim is not overwritten
+        verify(synapse, times(1)).updateSubmissionStatus(any(SubmissionStatus.class));
+    }
+
+    @Test
+    public void testPrefetchSubmitters() throws Exception {
+        SubmissionUtils submissionUtils = new SubmissionUtils(synapse);
+
+        Submission userSubmission = new Submission();
+        userSubmission.setUserId("111");
+        Submission teamSubmission = new Submission();
+        teamSubmission.setUserId("111");
+        teamSubmission.setTeamId("222");
+        List<Submission> submissions = Arrays.asList(userSubmission, teamSubmission, userSubmission);
+
+        UserProfile userProfile = new UserProfile();
+        userProfile.setOwnerId("111");
+        userProfile.setUserName("auser");
+        Team team = new Team();
+        team.setId("222");
+        team.setName("ateam");
+        when(synapse.listUserProfiles(Collections.singletonList(111L))).thenReturn(Collections.singletonList(userProfile));
+        when(synapse.listTeams(Collections.singletonList(222L))).thenReturn(Collections.singletonList(team));
+
+        // method under test
+        submissionUtils.prefetchSubmitters(submissions);
+
+        assertEquals("auser", submissionUtils.getSubmitter(userSubmission).getName());
+        assertEquals("ateam", submissionUtils.getSubmitter(teamSubmission).getName());
+        // names already known are not looked up again
+        submissionUtils.prefetchSubmitters(submissions);
+        verify(synapse, times(1)).listUserProfiles(any(List.class));
+        verify(synapse, times(1)).listTeams(any(List.class));
+        verify(synapse, never()).getUserProfile(any(String.class));
+        verify(synapse, never()).getTeam(any(String.class));
+    }
 
 }
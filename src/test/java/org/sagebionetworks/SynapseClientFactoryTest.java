@@ -2,7 +2,13 @@ package org.sagebionetworks;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+
 import org.junit.Test;
+import org.sagebionetworks.SynapseClientFactory.CallClass;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.repo.model.message.MessageToUser;
 
 public class SynapseClientFactoryTest {
 
@@ -11,4 +17,18 @@ public class SynapseClientFactoryTest {
         assertEquals(2, SynapseClientFactory.createRetryingProxy(new IncrementerImpl(), Incrementer.class).increment(1));
     }
 
+    @Test
+    public void testGetCallClass() throws Exception {
+        assertEquals(CallClass.READ, SynapseClientFactory.getCallClass(
+                SynapseClient.class.getMethod("getSubmissionStatus", String.class)));
+        assertEquals(CallClass.WRITE, SynapseClientFactory.getCallClass(
+                SynapseClient.class.getMethod("updateSubmissionStatus", SubmissionStatus.class)));
+        assertEquals(CallClass.UPLOAD, SynapseClientFactory.getCallClass(
+                SynapseClient.class.getMethod("multipartUpload", File.class, Long.class, Boolean.class, Boolean.class)));
+        assertEquals(CallClass.MESSAGE, SynapseClientFactory.getCallClass(
+                SynapseClient.class.getMethod("sendStringMessage", MessageToUser.class, String.class)));
+        assertEquals(CallClass.LOCAL, SynapseClientFactory.getCallClass(
+                SynapseClient.class.getMethod("setBearerAuthorizationToken", String.class)));
+    }
+
 }
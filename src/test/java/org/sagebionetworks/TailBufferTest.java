@@ -0,0 +1,62 @@
+package org.sagebionetworks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class TailBufferTest {
+
+    private static void write(TailBuffer tail, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        tail.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testKeepsLastCharacters() throws Exception {
+        TailBuffer tail = new TailBuffer(5);
+        assertNull(tail.getTail());
+        write(tail, "abc");
+        assertEquals("abc", tail.getTail());
+        write(tail, "de\r\n");
+        assertEquals("cde\r\n", tail.getTail());
+        long count = 7;
+        for (int i=0; i<1000; i++) {
+            String line = "line "+i+"\n";
+            write(tail, line);
+            count += line.length();
+        }
+        assertEquals(" 999\n", tail.getTail());
+        // a single write longer than the ring
+        write(tail, "0123456789012345678901234567890123456789");
+        assertEquals("56789", tail.getTail());
+        assertEquals(count+40, tail.getCount());
+    }
+
+    @Test
+    public void testMultiByteCharacters() throws Exception {
+        TailBuffer tail = new TailBuffer(3);
+        // two bytes each, so the ring wraps part way through a character
+        write(tail, "ééééé");
+        assertEquals("ééé", tail.getTail());
+        // three bytes each
+        write(tail, "x✓✓✓✓");
+        assertEquals("✓✓✓", tail.getTail());
+        // a surrogate pair is not split
+        write(tail, "a😀b");
+        assertEquals("😀b", tail.getTail());
+        write(tail, "😀😀");
+        assertEquals("😀", tail.getTail());
+    }
+
+    @Test
+    public void testNoCapacity() throws Exception {
+        TailBuffer tail = new TailBuffer(0);
+        assertNull(tail.getTail());
+        write(tail, "abc");
+        assertEquals("", tail.getTail());
+    }
+
+}
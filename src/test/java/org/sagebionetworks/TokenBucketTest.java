@@ -0,0 +1,45 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstThenWait() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(10d);
+        long start = System.currentTimeMillis();
+        for (int i=0; i<10; i++) tokenBucket.acquire();
+        assertTrue(System.currentTimeMillis()-start<90L);
+        // the bucket is empty, so the next call waits for a token
+        tokenBucket.acquire();
+        tokenBucket.acquire();
+        assertTrue(System.currentTimeMillis()-start>=150L);
+    }
+
+    @Test
+    public void testThrottled() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(10d);
+        tokenBucket.throttled();
+        assertEquals(5d, tokenBucket.getRate(), 0.1d);
+        for (int i=0; i<10; i++) tokenBucket.throttled();
+        // never below a tenth of the configured rate
+        assertEquals(1d, tokenBucket.getRate(), 0.1d);
+        // and waiting callers are held back
+        long start = System.currentTimeMillis();
+        tokenBucket.acquire();
+        assertTrue(System.currentTimeMillis()-start>=500L);
+    }
+
+    @Test
+    public void testNoLimit() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(0d);
+        tokenBucket.throttled();
+        long start = System.currentTimeMillis();
+        for (int i=0; i<1000; i++) tokenBucket.acquire();
+        assertTrue(System.currentTimeMillis()-start<500L);
+    }
+
+}
@@ -7,6 +7,10 @@ import static org.sagebionetworks.Constants.SUBMISSION_FAILED;
 import static org.sagebionetworks.Constants.SUBMITTER_NOTIFICATION_MASK_PARAM_NAME;
 import static org.sagebionetworks.Constants.SUBMISSION_STARTED;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -52,4 +56,16 @@ public class UtilsTest {
         assertTrue(Utils.notificationEnabled(SUBMISSION_FAILED));
     }
 
+    @Test
+    public void testReadTail() throws Exception {
+        File file = File.createTempFile("log", ".txt");
+        try {
+            Files.write(file.toPath(), "first line\nsecond line\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("line\n", Utils.readTail(file, 5));
+            assertEquals("first line\nsecond line\n", Utils.readTail(file, 1000));
+        } finally {
+            file.delete();
+        }
+    }
+
 }
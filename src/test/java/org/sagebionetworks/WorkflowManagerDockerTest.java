@@ -1,11 +1,15 @@
 package org.sagebionetworks;
 
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_DEFAULT;
 import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
@@ -14,17 +18,24 @@ import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.SHARED_VOLUME_NAME;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.EventActor;
+import com.github.dockerjava.api.model.EventType;
+
 @ExtendWith(MockitoExtension.class)
 public class WorkflowManagerDockerTest {
 
@@ -86,4 +97,32 @@ public class WorkflowManagerDockerTest {
 
     }
 
+    @Test
+    public void testSubscribeToWorkflowEvents() throws Exception {
+        ArgumentCaptor<ResultCallback<Event>> callbackCaptor = ArgumentCaptor.forClass(ResultCallback.class);
+        when(mockDockerUtils.subscribeToEvents(anyList(), callbackCaptor.capture())).thenAnswer(i -> i.getArgument(1));
+        WorkflowEventListener mockListener = Mockito.mock(WorkflowEventListener.class);
+
+        // Call under test
+        assertTrue(workflowManagerDocker.subscribeToWorkflowEvents(mockListener));
+        // subscribing again has no effect
+        assertTrue(workflowManagerDocker.subscribeToWorkflowEvents(mockListener));
+        verify(mockDockerUtils, times(1)).subscribeToEvents(anyList(), any());
+
+        ResultCallback<Event> callback = callbackCaptor.getValue();
+        callback.onNext(new Event().withType(EventType.CONTAINER).withAction("die").withEventActor(
+                new EventActor().withId("123").withAttributes(Collections.singletonMap("name", "workflow_job.123"))));
+        callback.onNext(new Event().withType(EventType.CONTAINER).withAction("start").withEventActor(
+                new EventActor().withId("456").withAttributes(Collections.singletonMap("name", "workflow_job.456"))));
+        callback.onNext(new Event().withType(EventType.CONTAINER).withAction("die").withEventActor(
+                new EventActor().withId("789").withAttributes(Collections.singletonMap("name", "some_other_container"))));
+        verify(mockListener).workflowJobStopped("workflow_job.123");
+        verifyNoMoreInteractions(mockListener);
+
+        // once the subscription is lost we can subscribe again
+        callback.onError(new RuntimeException());
+        assertTrue(workflowManagerDocker.subscribeToWorkflowEvents(mockListener));
+        verify(mockDockerUtils, times(2)).subscribeToEvents(anyList(), any());
+    }
+
 }
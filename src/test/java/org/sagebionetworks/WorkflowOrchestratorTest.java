@@ -1,29 +1,49 @@
 package org.sagebionetworks;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_DEFAULT;
 import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.COMPOSE_PROJECT_NAME_ENV_VAR;
 import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.INCREMENTAL_LOG_COLLECTION_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.NOTIFICATION_OUTBOX_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.NOTIFICATION_PRINCIPAL_ID;
+import static org.sagebionetworks.Constants.ORCHESTRATOR_INSTANCE_ID_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.ROOT_TEMPLATE_ANNOTATION_NAME;
 import static org.sagebionetworks.Constants.SHARED_VOLUME_NAME;
+import static org.sagebionetworks.Constants.STATE_JOURNAL_DIR_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.SYNAPSE_PAT_PROPERTY;
 import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
 import static org.sagebionetworks.Utils.dockerComposeName;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
 import org.json.JSONObject;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -33,6 +53,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
 import org.sagebionetworks.evaluation.model.Submission;
 import org.sagebionetworks.evaluation.model.SubmissionBundle;
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
@@ -47,6 +68,9 @@ import org.sagebionetworks.repo.model.file.ExternalFileHandle;
 import org.sagebionetworks.repo.model.file.FileHandle;
 import org.sagebionetworks.repo.model.file.FileHandleResults;
 
+import com.github.dockerjava.api.model.Container;
+import com.google.common.io.Files;
+
 @ExtendWith(MockitoExtension.class)
 public class WorkflowOrchestratorTest {
 
@@ -111,6 +135,13 @@ public class WorkflowOrchestratorTest {
         System.clearProperty("SYNAPSE_PAT");
         System.clearProperty(DOCKER_ENGINE_URL_PROPERTY_NAME);
         System.clearProperty("EVALUATION_TEMPLATES");
+        System.clearProperty(MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME);
+        System.clearProperty(STATE_JOURNAL_DIR_PROPERTY_NAME);
+        System.clearProperty(INCREMENTAL_LOG_COLLECTION_PROPERTY_NAME);
+        System.clearProperty(NOTIFICATION_OUTBOX_PROPERTY_NAME);
+        System.clearProperty(NOTIFICATION_PRINCIPAL_ID);
+        System.clearProperty(ORCHESTRATOR_INSTANCE_ID_PROPERTY_NAME);
+        System.clearProperty(MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME);
         System.setProperty(AGENT_SHARED_DIR_PROPERTY_NAME, AGENT_SHARED_DIR_DEFAULT);
     }
 
@@ -136,6 +167,201 @@ public class WorkflowOrchestratorTest {
         verify(mockEvaluationUtils).selectSubmissions(EVALUATION_ID, SubmissionStatusEnum.RECEIVED);
     }
 
+    @Test
+    public void testCreateNewWorkflowJobsForSeveralEvaluations() throws Throwable {
+        System.setProperty(MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME, "0");
+        String otherEvaluationId = "444";
+        SubmissionBundle bundle = new SubmissionBundle();
+        Submission submission = new Submission();
+        submission.setId(SUBMISSION_ID);
+        submission.setUserId(USER_ID);
+        bundle.setSubmission(submission);
+        bundle.setSubmissionStatus(new SubmissionStatus());
+        when(mockEvaluationUtils.selectSubmissions(EVALUATION_ID, SubmissionStatusEnum.RECEIVED)).thenReturn(Collections.singletonList(bundle));
+        when(mockEvaluationUtils.selectSubmissions(otherEvaluationId, SubmissionStatusEnum.RECEIVED)).thenReturn(null);
+        Map<String,WorkflowURLEntrypointAndSynapseRef> templates = new HashMap<String,WorkflowURLEntrypointAndSynapseRef>();
+        templates.put(EVALUATION_ID, WORKFLOW_REF);
+        templates.put(otherEvaluationId, WORKFLOW_REF);
+
+        // method under test
+        workflowOrchestrator.createNewWorkflowJobs(Arrays.asList(EVALUATION_ID, otherEvaluationId), templates);
+
+        verify(mockEvaluationUtils).selectSubmissions(EVALUATION_ID, SubmissionStatusEnum.RECEIVED);
+        verify(mockEvaluationUtils).selectSubmissions(otherEvaluationId, SubmissionStatusEnum.RECEIVED);
+        // there are no slots available, so nothing is started
+        verify(mockSubmissionUtils, never()).updateSubmissionStatus(any(), any());
+    }
+
+    @Test
+    public void testCreateNewWorkflowJobsDespiteFailingQueue() throws Throwable {
+        String instanceId = "orchestrator-1";
+        System.setProperty(ORCHESTRATOR_INSTANCE_ID_PROPERTY_NAME, instanceId);
+        WorkflowOrchestrator orchestrator = new WorkflowOrchestrator(
+                mockSynapse, mockEvaluationUtils,
+                mockDockerUtils, mockSubmissionUtils, 60000L);
+        String otherEvaluationId = "444";
+        SubmissionBundle bundle = new SubmissionBundle();
+        Submission submission = new Submission();
+        submission.setId(SUBMISSION_ID);
+        submission.setUserId(USER_ID);
+        submission.setEvaluationId(otherEvaluationId);
+        bundle.setSubmission(submission);
+        SubmissionStatus submissionStatus = new SubmissionStatus();
+        bundle.setSubmissionStatus(submissionStatus);
+        RuntimeException queueFailure = new RuntimeException("queue unavailable");
+        when(mockEvaluationUtils.selectSubmissions(EVALUATION_ID, SubmissionStatusEnum.RECEIVED)).thenThrow(queueFailure);
+        when(mockEvaluationUtils.selectSubmissions(otherEvaluationId, SubmissionStatusEnum.RECEIVED)).thenReturn(Collections.singletonList(bundle));
+        // another Orchestrator has claimed the submission, so the start goes no further
+        when(mockSubmissionUtils.claimSubmission(eq(submissionStatus), eq(instanceId), anyLong())).thenReturn(null);
+        Map<String,WorkflowURLEntrypointAndSynapseRef> templates = new HashMap<String,WorkflowURLEntrypointAndSynapseRef>();
+        templates.put(EVALUATION_ID, WORKFLOW_REF);
+        templates.put(otherEvaluationId, WORKFLOW_REF);
+
+        // method under test
+        RuntimeException thrown = assertThrows(RuntimeException.class,
+                () -> orchestrator.createNewWorkflowJobs(Arrays.asList(EVALUATION_ID, otherEvaluationId), templates));
+
+        // the failure of one queue is reported, but does not stop the other queue's submission from being started
+        assertEquals(queueFailure, thrown);
+        verify(mockSubmissionUtils).claimSubmission(eq(submissionStatus), eq(instanceId), anyLong());
+    }
+
+    @Test
+    public void testMissingQueueIsInvalidated() throws Throwable {
+        SynapseNotFoundException notFound = new SynapseNotFoundException("no such evaluation");
+        when(mockEvaluationUtils.selectSubmissions(EVALUATION_ID, SubmissionStatusEnum.RECEIVED)).thenThrow(notFound);
+
+        // method under test
+        assertThrows(SynapseNotFoundException.class, () -> workflowOrchestrator.createNewWorkflowJobs(EVALUATION_ID, WORKFLOW_REF));
+
+        // the cached evaluation is not used again
+        verify(mockEvaluationUtils).invalidateEvaluation(EVALUATION_ID);
+    }
+
+    @Test
+    public void testFailedStartFreesAdmission() throws Throwable {
+        String instanceId = "orchestrator-1";
+        System.setProperty(ORCHESTRATOR_INSTANCE_ID_PROPERTY_NAME, instanceId);
+        System.setProperty(MAX_CONCURRENT_WORKFLOWS_PER_EVALUATION_PROPERTY_NAME, "1");
+        System.setProperty(NOTIFICATION_PRINCIPAL_ID, USER_ID);
+        WorkflowOrchestrator orchestrator = new WorkflowOrchestrator(
+                mockSynapse, mockEvaluationUtils,
+                mockDockerUtils, mockSubmissionUtils, 60000L);
+        SubmissionBundle bundle = new SubmissionBundle();
+        Submission submission = new Submission();
+        submission.setId(SUBMISSION_ID);
+        submission.setUserId(USER_ID);
+        submission.setEvaluationId(EVALUATION_ID);
+        bundle.setSubmission(submission);
+        bundle.setSubmissionStatus(new SubmissionStatus());
+        when(mockEvaluationUtils.selectSubmissions(EVALUATION_ID, SubmissionStatusEnum.RECEIVED)).thenReturn(Collections.singletonList(bundle));
+        when(mockSubmissionUtils.claimSubmission(any(SubmissionStatus.class), eq(instanceId), anyLong())).thenThrow(new IllegalStateException("failed to start"));
+
+        // method under test
+        assertThrows(IllegalStateException.class, () -> orchestrator.createNewWorkflowJobs(EVALUATION_ID, WORKFLOW_REF));
+        // the failed start does not count against the evaluation's limit, so it is tried again
+        assertThrows(IllegalStateException.class, () -> orchestrator.createNewWorkflowJobs(EVALUATION_ID, WORKFLOW_REF));
+
+        verify(mockSubmissionUtils, times(2)).claimSubmission(any(SubmissionStatus.class), eq(instanceId), anyLong());
+    }
+
+    @Test
+    public void testNotificationOutboxRequiresDirectory() throws Throwable {
+        System.setProperty(NOTIFICATION_OUTBOX_PROPERTY_NAME, "true");
+        // the queued notifications would be lost on a restart
+        assertThrows(IllegalStateException.class, () -> new WorkflowOrchestrator(
+                mockSynapse, mockEvaluationUtils,
+                mockDockerUtils, mockSubmissionUtils, 60000L));
+    }
+
+    @Test
+    public void testUpdateJobForgetsDeletedFolder() throws Throwable {
+        File journalDir = Files.createTempDir();
+        try {
+            StateJournal.Entry entry = new StateJournal.Entry(SUBMISSION_ID);
+            entry.setSharedFolderId(FOLDER_ID);
+            entry.setLockedFolderId(FOLDER_ID);
+            new StateJournal(journalDir).put(entry);
+            System.setProperty(STATE_JOURNAL_DIR_PROPERTY_NAME, journalDir.getAbsolutePath());
+            System.setProperty(INCREMENTAL_LOG_COLLECTION_PROPERTY_NAME, "false");
+            WorkflowOrchestrator orchestrator = new WorkflowOrchestrator(
+                    mockSynapse, mockEvaluationUtils,
+                    mockDockerUtils, mockSubmissionUtils, 60000L);
+
+            Container container = mock(Container.class);
+            when(container.getId()).thenReturn("c1");
+            WorkflowJobDocker job = new WorkflowJobDocker();
+            job.setContainer(container);
+            when(mockDockerUtils.getLogs(eq("c1"), any(OutputStream.class), any())).thenAnswer(i -> {
+                OutputStream os = i.getArgument(1);
+                os.write("some output".getBytes(StandardCharsets.UTF_8));
+                return null;
+            });
+            // the folder recorded in the journal has been deleted
+            when(mockSynapse.multipartUpload(any(File.class), isNull(), anyBoolean(), anyBoolean())).thenThrow(new SynapseNotFoundException("deleted"));
+            SubmissionBundle bundle = new SubmissionBundle();
+            Submission submission = new Submission();
+            submission.setId(SUBMISSION_ID);
+            submission.setUserId(USER_ID);
+            bundle.setSubmission(submission);
+            bundle.setSubmissionStatus(new SubmissionStatus());
+            WorkflowStatus workflowStatus = new WorkflowStatus();
+            workflowStatus.setRunning(true);
+
+            // method under test
+            assertThrows(SynapseNotFoundException.class, () -> {
+                orchestrator.updateJob(job, workflowStatus, bundle, new SubmissionStatusModifications());
+            });
+
+            // next time the folders will be looked for afresh
+            StateJournal.Entry replayed = new StateJournal(journalDir).get(SUBMISSION_ID);
+            assertNull(replayed.getSharedFolderId());
+            assertNull(replayed.getLockedFolderId());
+        } finally {
+            FileUtils.deleteDirectory(journalDir);
+        }
+    }
+
+    @Test
+    public void testUpdateJobKeepsFinishedJobUntilStatusWritten() throws Throwable {
+        File journalDir = Files.createTempDir();
+        try {
+            StateJournal.Entry entry = new StateJournal.Entry(SUBMISSION_ID);
+            entry.setSharedFolderId(FOLDER_ID);
+            entry.setLockedFolderId(FOLDER_ID);
+            new StateJournal(journalDir).put(entry);
+            System.setProperty(STATE_JOURNAL_DIR_PROPERTY_NAME, journalDir.getAbsolutePath());
+            System.setProperty(INCREMENTAL_LOG_COLLECTION_PROPERTY_NAME, "false");
+            WorkflowOrchestrator orchestrator = new WorkflowOrchestrator(
+                    mockSynapse, mockEvaluationUtils,
+                    mockDockerUtils, mockSubmissionUtils, 60000L);
+
+            Container container = mock(Container.class);
+            when(container.getId()).thenReturn("c1");
+            WorkflowJobDocker job = new WorkflowJobDocker();
+            job.setContainer(container);
+            SubmissionBundle bundle = new SubmissionBundle();
+            Submission submission = new Submission();
+            submission.setId(SUBMISSION_ID);
+            submission.setUserId(USER_ID);
+            bundle.setSubmission(submission);
+            bundle.setSubmissionStatus(new SubmissionStatus());
+            WorkflowStatus workflowStatus = new WorkflowStatus();
+            workflowStatus.setRunning(false);
+            workflowStatus.setExitStatus(ExitStatus.SUCCESS);
+
+            // method under test
+            assertEquals(WorkflowUpdateStatus.DONE,
+                    orchestrator.updateJob(job, workflowStatus, bundle, new SubmissionStatusModifications()));
+
+            // the container goes only once the final status has been written
+            verify(mockDockerUtils, never()).removeContainer(any(), anyBoolean());
+            verify(mockDockerUtils, never()).renameContainer(any(), any());
+        } finally {
+            FileUtils.deleteDirectory(journalDir);
+        }
+    }
+
     @Test
     public void getWorkflowURLAndEntrypointNullAnnotations() throws Exception {
         JSONObject o = new JSONObject();